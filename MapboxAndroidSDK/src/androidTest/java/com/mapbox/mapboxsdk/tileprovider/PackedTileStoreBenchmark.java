@@ -0,0 +1,166 @@
+package com.mapbox.mapboxsdk.tileprovider;
+
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import com.jakewharton.disklrucache.DiskLruCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the packed tile store with the one file per tile DiskLruCache it can replace:
+ * writing tiles, reading them in random order and opening a store full of tiles. Results are
+ * logged under the PackedTileStoreBenchmark tag.
+ */
+public class PackedTileStoreBenchmark extends InstrumentationTestCase {
+
+    private static final String TAG = "PackedTileStoreBenchmark";
+
+    private static final int TILE_COUNT = 3000;
+    private static final int READ_COUNT = 3000;
+    private static final int MAXIMUM_SIZE = 100 * 1024 * 1024;
+
+    private File mDirectory;
+    private byte[][] mTiles;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(getInstrumentation().getTargetContext().getCacheDir(), TAG);
+        deleteDirectory(mDirectory);
+
+        // Random bytes of the size of typical PNG and JPEG tiles, they don't compress either
+        final Random random = new Random(42);
+        mTiles = new byte[TILE_COUNT][];
+        for (int i = 0; i < TILE_COUNT; i++) {
+            mTiles[i] = new byte[4 * 1024 + random.nextInt(28 * 1024)];
+            random.nextBytes(mTiles[i]);
+        }
+    }
+
+    public void tearDown() throws Exception {
+        deleteDirectory(mDirectory);
+        super.tearDown();
+    }
+
+    public void testPackedTileStore() throws Exception {
+        final File directory = new File(mDirectory, "packed");
+
+        long start = SystemClock.elapsedRealtime();
+        PackedTileStore store = new PackedTileStore(directory, MAXIMUM_SIZE);
+        for (int i = 0; i < TILE_COUNT; i++) {
+            assertTrue(store.put(key(i), mTiles[i]));
+        }
+        final long writeMs = SystemClock.elapsedRealtime() - start;
+        store.close();
+
+        start = SystemClock.elapsedRealtime();
+        store = new PackedTileStore(directory, MAXIMUM_SIZE);
+        final long openMs = SystemClock.elapsedRealtime() - start;
+        assertEquals(TILE_COUNT, store.getEntryCount());
+
+        final Random random = new Random(7);
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < READ_COUNT; i++) {
+            final int tile = random.nextInt(TILE_COUNT);
+            assertTrue(Arrays.equals(mTiles[tile], store.get(key(tile))));
+        }
+        final long readMs = SystemClock.elapsedRealtime() - start;
+
+        Log.i(TAG, "PackedTileStore: write " + writeMs + "ms, open " + openMs + "ms, read "
+                + readMs + "ms, " + store.getSegmentCount() + " files");
+        store.close();
+    }
+
+    public void testDiskLruCache() throws Exception {
+        final File directory = new File(mDirectory, "disklrucache");
+
+        long start = SystemClock.elapsedRealtime();
+        DiskLruCache cache = DiskLruCache.open(directory, 1, 1, MAXIMUM_SIZE);
+        for (int i = 0; i < TILE_COUNT; i++) {
+            final DiskLruCache.Editor editor = cache.edit(diskLruCacheKey(i));
+            final OutputStream out = editor.newOutputStream(0);
+            out.write(mTiles[i]);
+            out.close();
+            editor.commit();
+        }
+        cache.flush();
+        final long writeMs = SystemClock.elapsedRealtime() - start;
+        cache.close();
+
+        start = SystemClock.elapsedRealtime();
+        cache = DiskLruCache.open(directory, 1, 1, MAXIMUM_SIZE);
+        final long openMs = SystemClock.elapsedRealtime() - start;
+
+        final Random random = new Random(7);
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < READ_COUNT; i++) {
+            final int tile = random.nextInt(TILE_COUNT);
+            final DiskLruCache.Snapshot snapshot = cache.get(diskLruCacheKey(tile));
+            assertNotNull(snapshot);
+            final byte[] data = readFully(snapshot.getInputStream(0), mTiles[tile].length);
+            snapshot.close();
+            assertTrue(Arrays.equals(mTiles[tile], data));
+        }
+        final long readMs = SystemClock.elapsedRealtime() - start;
+
+        Log.i(TAG, "DiskLruCache: write " + writeMs + "ms, open " + openMs + "ms, read "
+                + readMs + "ms, " + (TILE_COUNT + 1) + " files");
+        cache.close();
+    }
+
+    public void testCompactionKeepsLiveTiles() throws Exception {
+        final File directory = new File(mDirectory, "compaction");
+        // Small segments, so that overwriting tiles leaves some of them mostly unused
+        final PackedTileStore store = new PackedTileStore(directory, MAXIMUM_SIZE, 256 * 1024);
+        for (int pass = 0; pass < 3; pass++) {
+            for (int i = 0; i < TILE_COUNT / 10; i++) {
+                assertTrue(store.put(key(i), mTiles[(i + pass) % TILE_COUNT]));
+            }
+        }
+        assertTrue(store.getCompactionCount() > 0);
+        for (int i = 0; i < TILE_COUNT / 10; i++) {
+            assertTrue(Arrays.equals(mTiles[(i + 2) % TILE_COUNT], store.get(key(i))));
+        }
+        store.close();
+    }
+
+    private static String key(final int i) {
+        return "mapbox.streets/" + 16 + "/" + (i % 64) + "/" + (i / 64);
+    }
+
+    private static String diskLruCacheKey(final int i) {
+        // DiskLruCache keys must be file names, BitmapLruCache uses an MD5 hash of the url
+        return "tile" + i;
+    }
+
+    private static byte[] readFully(final InputStream in, final int length) throws IOException {
+        final byte[] data = new byte[length];
+        int read = 0;
+        int count;
+        while (read < length && (count = in.read(data, read, length - read)) != -1) {
+            read += count;
+        }
+        in.close();
+        return data;
+    }
+
+    private static void deleteDirectory(final File directory) {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                if (file.isDirectory()) {
+                    deleteDirectory(file);
+                } else {
+                    file.delete();
+                }
+            }
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,115 @@
+package com.mapbox.mapboxsdk.util;
+
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.os.Debug;
+import android.test.InstrumentationTestCase;
+
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+
+import java.util.IdentityHashMap;
+
+/**
+ * Guards the draw loop against allocations: looping over the same viewport again must not
+ * allocate anything, tiles included.
+ */
+public class TileLooperAllocationTest extends InstrumentationTestCase {
+
+    private static final String CACHE_KEY = "mapbox.streets";
+    private static final float ZOOM = 12;
+    private static final int TILE_SIZE = 256;
+    private static final int LOOPS = 100;
+
+    private final Rect mViewPort = new Rect();
+    private final Rect mClipRect = new Rect();
+    private CountingTileLooper mLooper;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        // A phone screen somewhere in the middle of the world
+        mViewPort.set(500000, 400000, 501080, 401920);
+        mClipRect.set(mViewPort);
+        mLooper = new CountingTileLooper();
+    }
+
+    public void testSameViewportDoesNotAllocate() throws Exception {
+        // Twice, to fill the tiles of both the current and the previous loop
+        mLooper.loop(null, CACHE_KEY, ZOOM, TILE_SIZE, mViewPort, mClipRect);
+        mLooper.loop(null, CACHE_KEY, ZOOM, TILE_SIZE, mViewPort, mClipRect);
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        for (int i = 0; i < LOOPS; i++) {
+            mLooper.loop(null, CACHE_KEY, ZOOM, TILE_SIZE, mViewPort, mClipRect);
+        }
+        final int allocations = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+
+        assertTrue(mLooper.mHandled > 0);
+        assertEquals("Allocations in " + LOOPS + " loops", 0, allocations);
+    }
+
+    public void testPanningReusesTilesStillInView() throws Exception {
+        mLooper.loop(null, CACHE_KEY, ZOOM, TILE_SIZE, mViewPort, mClipRect);
+        final IdentityHashMap<MapTile, Boolean> before = new IdentityHashMap<MapTile, Boolean>();
+        for (final MapTile tile : mLooper.mLastTiles.keySet()) {
+            before.put(tile, Boolean.TRUE);
+        }
+
+        // One tile to the right
+        mViewPort.offset(TILE_SIZE, 0);
+        mClipRect.set(mViewPort);
+        mLooper.mLastTiles.clear();
+        mLooper.loop(null, CACHE_KEY, ZOOM, TILE_SIZE, mViewPort, mClipRect);
+
+        int reused = 0;
+        for (final MapTile tile : mLooper.mLastTiles.keySet()) {
+            if (before.containsKey(tile)) {
+                reused++;
+            }
+        }
+        // Every column but the new one
+        final int columns = mLooper.mLowerRight.x - mLooper.mUpperLeft.x + 1;
+        final int rows = mLooper.mLowerRight.y - mLooper.mUpperLeft.y + 1;
+        assertEquals((columns - 1) * rows, reused);
+    }
+
+    public void testZoomChangeDoesNotReuseTiles() throws Exception {
+        mLooper.loop(null, CACHE_KEY, ZOOM, TILE_SIZE, mViewPort, mClipRect);
+        final MapTile first = mLooper.mLastTiles.keySet().iterator().next();
+
+        mViewPort.set(mViewPort.left * 2, mViewPort.top * 2, mViewPort.left * 2 + 1080,
+                mViewPort.top * 2 + 1920);
+        mClipRect.set(mViewPort);
+        mLooper.mLastTiles.clear();
+        mLooper.loop(null, CACHE_KEY, ZOOM + 1, TILE_SIZE, mViewPort, mClipRect);
+        for (final MapTile tile : mLooper.mLastTiles.keySet()) {
+            assertNotSame(first, tile);
+            assertEquals((int) ZOOM + 1, tile.getZ());
+        }
+    }
+
+    private static class CountingTileLooper extends TileLooper {
+        int mHandled;
+        final IdentityHashMap<MapTile, Boolean> mLastTiles =
+                new IdentityHashMap<MapTile, Boolean>();
+        boolean mRecord = true;
+
+        @Override
+        public void initializeLoop(final float pZoomLevel, final int pTileSizePx) {
+            mRecord = mLastTiles.isEmpty();
+        }
+
+        @Override
+        public void handleTile(final Canvas pCanvas, final String pCacheKey,
+                               final int pTileSizePx, final MapTile pTile, final int pX,
+                               final int pY, final Rect pClipRect) {
+            // As the memory cache lookup does
+            pTile.getCacheKey();
+            mHandled++;
+            if (mRecord) {
+                mLastTiles.put(pTile, Boolean.TRUE);
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package uk.co.senab.bitmapcache;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.test.InstrumentationTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Tiles put in the cache as downloaded, from an array or a stream, must be released by the
+ * Memory Cache once evicted: referenced by no cache and recycled once no longer displayed.
+ */
+public class BitmapLruCacheRecycleTest extends InstrumentationTestCase {
+
+    private static final int TILE_SIZE = 256;
+    // Room for one decoded tile, a second one evicts it
+    private static final int MEMORY_CACHE_SIZE = TILE_SIZE * TILE_SIZE * 4 + 1024;
+
+    private BitmapLruCache mCache;
+    private byte[] mTile;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        mCache = new BitmapLruCache.Builder(getInstrumentation().getTargetContext())
+                .setMemoryCacheEnabled(true)
+                .setMemoryCacheMaxSize(MEMORY_CACHE_SIZE)
+                .setRecyclePolicy(BitmapLruCache.RecyclePolicy.ALWAYS)
+                .build();
+
+        final Bitmap bitmap = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.BLUE);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, bytes);
+        bitmap.recycle();
+        mTile = bytes.toByteArray();
+    }
+
+    public void testEvictedTileFromArrayIsRecycled() throws Exception {
+        final CacheableBitmapDrawable tile = mCache.put("tile/1", mTile, null);
+        assertNotNull(tile);
+        display(tile);
+
+        mCache.put("tile/2", mTile, null);
+
+        assertFalse(mCache.containsInMemoryCache("tile/1"));
+        assertFalse(tile.isReferencedByCache());
+        assertFalse(tile.isBitmapValid());
+    }
+
+    public void testEvictedTileFromStreamIsRecycled() throws Exception {
+        final CacheableBitmapDrawable tile =
+                mCache.put("tile/1", new ByteArrayInputStream(mTile), null);
+        assertNotNull(tile);
+        display(tile);
+
+        mCache.put("tile/2", new ByteArrayInputStream(mTile), null);
+
+        assertFalse(mCache.containsInMemoryCache("tile/1"));
+        assertFalse(tile.isReferencedByCache());
+        assertFalse(tile.isBitmapValid());
+    }
+
+    /**
+     * Draw and release the tile, as the map does, so that it is recycled as soon as it is
+     * evicted rather than after a delay.
+     */
+    private static void display(final CacheableBitmapDrawable tile) {
+        tile.setBeingUsed(true);
+        tile.setBeingUsed(false);
+        assertTrue(tile.isReferencedByCache());
+        assertTrue(tile.isBitmapValid());
+    }
+}
@@ -6,8 +6,11 @@ import android.util.Log;
 import com.mapbox.mapboxsdk.clustering.Cluster;
 import com.mapbox.mapboxsdk.clustering.ClusterItem;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -15,14 +18,78 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * Optimistically fetch clusters for adjacent zoom levels, caching them as necessary.
  */
 public class PreCachingAlgorithmDecorator<T extends ClusterItem> implements Algorithm<T> {
+    public static final int DEFAULT_CACHE_SIZE = 5;
+
+    // Every decorator alive, so that their caches can be shrunk under memory pressure
+    private static final Set<PreCachingAlgorithmDecorator<?>> sDecorators =
+            Collections.newSetFromMap(new WeakHashMap<PreCachingAlgorithmDecorator<?>, Boolean>());
+    private static int sCacheSize = DEFAULT_CACHE_SIZE;
+
     private final Algorithm<T> mAlgorithm;
 
-    // TODO: evaluate maxSize parameter for LruCache.
-    private final LruCache<Integer, Set<? extends Cluster<T>>> mCache = new LruCache<Integer, Set<? extends Cluster<T>>>(5);
+    private final LruCache<Integer, Set<? extends Cluster<T>>> mCache;
     private final ReadWriteLock mCacheLock = new ReentrantReadWriteLock();
 
     public PreCachingAlgorithmDecorator(Algorithm<T> algorithm) {
         mAlgorithm = algorithm;
+        synchronized (sDecorators) {
+            mCache = new LruCache<Integer, Set<? extends Cluster<T>>>(sCacheSize);
+            sDecorators.add(this);
+        }
+    }
+
+    /**
+     * Set the number of zoom levels whose clusters every decorator keeps. Below 3 the adjacent
+     * zoom levels are no longer computed ahead, they would only evict the one in view.
+     *
+     * @param zoomLevels the number of zoom levels, at least 1
+     */
+    public static void setCacheSize(final int zoomLevels) {
+        if (zoomLevels < 1) {
+            throw new IllegalArgumentException("Invalid cluster cache size: " + zoomLevels);
+        }
+        synchronized (sDecorators) {
+            sCacheSize = zoomLevels;
+        }
+        for (final PreCachingAlgorithmDecorator<?> decorator : getDecorators()) {
+            decorator.mCacheLock.writeLock().lock();
+            try {
+                decorator.mCache.resize(zoomLevels);
+            } finally {
+                decorator.mCacheLock.writeLock().unlock();
+            }
+        }
+    }
+
+    public static int getCacheSize() {
+        synchronized (sDecorators) {
+            return sCacheSize;
+        }
+    }
+
+    /**
+     * Drop the clusters cached by every decorator, they are computed again when next drawn.
+     *
+     * @return the number of zoom levels dropped
+     */
+    public static int evictAllCaches() {
+        int count = 0;
+        for (final PreCachingAlgorithmDecorator<?> decorator : getDecorators()) {
+            decorator.mCacheLock.writeLock().lock();
+            try {
+                count += decorator.mCache.size();
+                decorator.mCache.evictAll();
+            } finally {
+                decorator.mCacheLock.writeLock().unlock();
+            }
+        }
+        return count;
+    }
+
+    private static ArrayList<PreCachingAlgorithmDecorator<?>> getDecorators() {
+        synchronized (sDecorators) {
+            return new ArrayList<PreCachingAlgorithmDecorator<?>>(sDecorators);
+        }
     }
 
     public void addItem(T item) {
@@ -55,6 +122,9 @@ public class PreCachingAlgorithmDecorator<T extends ClusterItem> implements Algo
     public Set<? extends Cluster<T>> getClusters(double zoom) {
         int discreteZoom = (int) zoom;
         Set<? extends Cluster<T>> results = getClustersInternal(discreteZoom);
+        if (mCache.maxSize() < 3) {
+            return results;
+        }
         // TODO: Check if requests are already in-flight.
         if (mCache.get(discreteZoom + 1) == null) {
             new Thread(new PrecacheRunnable(discreteZoom + 1)).start();
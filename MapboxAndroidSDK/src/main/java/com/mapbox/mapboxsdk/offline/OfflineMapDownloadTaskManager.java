@@ -0,0 +1,412 @@
+package com.mapbox.mapboxsdk.offline;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import com.mapbox.mapboxsdk.constants.MapboxConstants;
+import com.mapbox.mapboxsdk.tileprovider.modules.ConfigurablePriorityThreadFactory;
+import com.mapbox.mapboxsdk.util.HttpClientRegistry;
+import com.mapbox.mapboxsdk.util.MapboxUtils;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads the resources of an offline map job on a dedicated pool of worker threads.
+ * <p/>
+ * Workers take urls from a page read from the database in rowid order, so that a region of
+ * several hundred thousand tiles never has to be held in memory, nor a cursor kept open across
+ * threads. Every request goes through the shared client of the {@link HttpClientRegistry}, so
+ * workers reuse keep-alive connections, and downloaded resources are written in batches, one
+ * transaction per batch.
+ * <p/>
+ * The number of workers adapts to the network: every few seconds it is raised by one while that
+ * still improves throughput, lowered by one when it does not, and halved when requests start to
+ * fail or time out.
+ */
+public class OfflineMapDownloadTaskManager {
+
+    private static final String TAG = "OfflineMapDownloadTaskManager";
+
+    public static final int DEFAULT_MAXIMUM_CONCURRENCY = 8;
+    public static final int DEFAULT_PAGE_SIZE = 256;
+    public static final int MINIMUM_CONCURRENCY = 1;
+
+    // Resources downloaded before they are written in one transaction
+    private static final int WRITE_BATCH_SIZE = 32;
+    private static final long WRITE_INTERVAL_MS = 1000;
+    // How often the number of workers is reconsidered
+    private static final long ADJUST_INTERVAL_MS = 3000;
+    // Throughput change between two windows that is considered significant
+    private static final float THROUGHPUT_TOLERANCE = 0.05f;
+    // Attempts for a url failing with a network error or a server error
+    private static final int MAXIMUM_ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MS = 1000;
+    private static final long THREAD_KEEP_ALIVE_S = 30;
+
+    private final OfflineMapDownloader downloader;
+    private final int maximumConcurrency;
+    private final int pageSize;
+    private final ThreadPoolExecutor executor;
+    private final OkHttpClient client;
+
+    // Guarded by this
+    private final ArrayDeque<String> page = new ArrayDeque<String>();
+    private long lastRowId = 0;
+    private boolean exhausted = false;
+    private boolean stopped = false;
+    private int targetConcurrency;
+    private int workerCount = 0;
+    private LinkedHashMap<String, byte[]> pendingWrites = new LinkedHashMap<String, byte[]>();
+    private long pendingSinceMs = 0;
+    private long windowStartMs = 0;
+    private int windowFiles = 0;
+    private int windowFailures = 0;
+    private float lastThroughput = 0;
+
+    private final AtomicLong startTimeMs = new AtomicLong(0);
+    private final AtomicLong downloadedCount = new AtomicLong(0);
+    private final AtomicLong downloadedBytes = new AtomicLong(0);
+    private final AtomicLong failedCount = new AtomicLong(0);
+    private final AtomicLong retryCount = new AtomicLong(0);
+    private final AtomicLong pageCount = new AtomicLong(0);
+
+    /**
+     * @param downloader the downloader owning the job
+     * @param maximumConcurrency the maximum number of concurrent downloads
+     * @param pageSize the number of urls read from the database at a time
+     */
+    OfflineMapDownloadTaskManager(final OfflineMapDownloader downloader, final int maximumConcurrency, final int pageSize) {
+        if (maximumConcurrency < MINIMUM_CONCURRENCY || pageSize < 1) {
+            throw new IllegalArgumentException("Invalid download configuration: concurrency = " + maximumConcurrency + ", page size = " + pageSize);
+        }
+        this.downloader = downloader;
+        this.maximumConcurrency = maximumConcurrency;
+        this.pageSize = pageSize;
+        this.targetConcurrency = Math.max(MINIMUM_CONCURRENCY, maximumConcurrency / 2);
+        this.client = HttpClientRegistry.getHttpClientRegistry().getClient();
+        this.executor = new ThreadPoolExecutor(maximumConcurrency, maximumConcurrency,
+                THREAD_KEEP_ALIVE_S, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ConfigurablePriorityThreadFactory(Thread.NORM_PRIORITY, "offline download"));
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Start downloading the urls of the job that haven't been downloaded yet.
+     */
+    public synchronized void start() {
+        final long now = SystemClock.elapsedRealtime();
+        startTimeMs.set(now);
+        windowStartMs = now;
+        startWorkers();
+    }
+
+    /**
+     * Stop taking new urls. Downloads in progress are completed, but not written.
+     */
+    public synchronized void shutdown() {
+        stopped = true;
+        page.clear();
+        pendingWrites.clear();
+        executor.shutdown();
+    }
+
+    // Must be called while holding the lock
+    private void startWorkers() {
+        while (!stopped && !exhausted && workerCount < targetConcurrency) {
+            try {
+                executor.execute(new Worker());
+                workerCount++;
+            } catch (final RejectedExecutionException e) {
+                Log.w(TAG, "Unable to start a download worker", e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the next url to download, or null if the worker asking should stop, in which case
+     * it is no longer counted as running
+     */
+    private synchronized String nextUrl() {
+        String url = null;
+        if (!stopped && downloader.isRunning() && workerCount <= targetConcurrency) {
+            if (page.isEmpty() && !exhausted) {
+                final List<String> urls = new ArrayList<String>(pageSize);
+                lastRowId = downloader.sqliteReadOfflineMapURLsToBeDownloaded(lastRowId, pageSize, urls);
+                page.addAll(urls);
+                pageCount.incrementAndGet();
+                // Urls are read in rowid order, past the ones already handed out, so a short
+                // page means that every url has been seen.
+                exhausted = urls.size() < pageSize;
+            }
+            url = page.poll();
+        }
+        if (url == null) {
+            workerCount--;
+        }
+        return url;
+    }
+
+    private void onDownloaded(final String url, final byte[] data) {
+        downloadedCount.incrementAndGet();
+        downloadedBytes.addAndGet(data.length);
+        Map<String, byte[]> batch = null;
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            final long now = SystemClock.elapsedRealtime();
+            if (pendingWrites.isEmpty()) {
+                pendingSinceMs = now;
+            }
+            pendingWrites.put(url, data);
+            if (pendingWrites.size() >= WRITE_BATCH_SIZE || now - pendingSinceMs >= WRITE_INTERVAL_MS) {
+                batch = takePendingWrites();
+            }
+            onRequestFinished(false, now);
+        }
+        if (batch != null) {
+            downloader.sqliteSaveDownloadedData(batch);
+        }
+    }
+
+    private void onFailed(final boolean finalAttempt) {
+        if (finalAttempt) {
+            failedCount.incrementAndGet();
+        } else {
+            retryCount.incrementAndGet();
+        }
+        synchronized (this) {
+            onRequestFinished(true, SystemClock.elapsedRealtime());
+        }
+    }
+
+    // Must be called while holding the lock
+    private Map<String, byte[]> takePendingWrites() {
+        final Map<String, byte[]> batch = pendingWrites;
+        pendingWrites = new LinkedHashMap<String, byte[]>();
+        return batch;
+    }
+
+    // Must be called while holding the lock
+    private void onRequestFinished(final boolean failed, final long now) {
+        if (failed) {
+            windowFailures++;
+        } else {
+            windowFiles++;
+        }
+        final long elapsed = now - windowStartMs;
+        if (elapsed < ADJUST_INTERVAL_MS) {
+            return;
+        }
+
+        final float throughput = windowFiles * 1000f / elapsed;
+        final int previous = targetConcurrency;
+        if (windowFailures > 0) {
+            // The network or the server is struggling, back off quickly
+            targetConcurrency = Math.max(MINIMUM_CONCURRENCY, targetConcurrency / 2);
+        } else if (throughput > lastThroughput * (1 + THROUGHPUT_TOLERANCE)) {
+            targetConcurrency = Math.min(maximumConcurrency, targetConcurrency + 1);
+        } else if (throughput < lastThroughput * (1 - THROUGHPUT_TOLERANCE)) {
+            targetConcurrency = Math.max(MINIMUM_CONCURRENCY, targetConcurrency - 1);
+        }
+        if (targetConcurrency != previous) {
+            Log.d(TAG, String.format(MapboxConstants.MAPBOX_LOCALE, "%.1f files/s, %d failures: concurrency %d -> %d",
+                    throughput, windowFailures, previous, targetConcurrency));
+        }
+        lastThroughput = throughput;
+        windowStartMs = now;
+        windowFiles = 0;
+        windowFailures = 0;
+        // Workers above the target stop by themselves when asking for their next url
+        startWorkers();
+    }
+
+    private void onWorkerFinished(final boolean retired) {
+        Map<String, byte[]> batch = null;
+        boolean finished;
+        synchronized (this) {
+            if (!retired) {
+                workerCount--;
+            }
+            if (!stopped && !pendingWrites.isEmpty()) {
+                batch = takePendingWrites();
+            }
+            // The target never drops below one worker, so no workers left means that the
+            // urls ran out, the job was stopped or the last worker failed.
+            finished = workerCount == 0;
+            if (finished) {
+                executor.shutdown();
+            }
+        }
+        if (batch != null) {
+            downloader.sqliteSaveDownloadedData(batch);
+        }
+        if (finished) {
+            Log.i(TAG, "Download tasks finished: " + this);
+            downloader.onDownloadTasksFinished(this);
+        }
+    }
+
+    /**
+     * Download a url, retrying network and server errors a few times.
+     */
+    private void download(final String url) {
+        final Request request = new Request.Builder()
+                .url(url)
+                .header("User-Agent", MapboxUtils.getUserAgent())
+                .build();
+        for (int attempt = 1; ; attempt++) {
+            int status = 0;
+            IOException error = null;
+            try {
+                final Response response = client.newCall(request).execute();
+                status = response.code();
+                if (status == HttpURLConnection.HTTP_OK) {
+                    // Reading the whole body releases the connection back to the pool
+                    onDownloaded(url, response.body().bytes());
+                    return;
+                }
+                response.body().close();
+            } catch (final IOException e) {
+                error = e;
+            }
+
+            final boolean retryable = error != null || status >= HttpURLConnection.HTTP_INTERNAL_ERROR || status == 429;
+            final boolean finalAttempt = !retryable || attempt >= MAXIMUM_ATTEMPTS;
+            onFailed(finalAttempt);
+            if (finalAttempt) {
+                if (error != null) {
+                    Log.w(TAG, String.format(MapboxConstants.MAPBOX_LOCALE, "Failed to download %s: %s", url, error.getMessage()));
+                    downloader.notifyDelegateOfNetworkConnectivityError(error);
+                } else {
+                    Log.w(TAG, String.format(MapboxConstants.MAPBOX_LOCALE, "HTTP Error connection.  Response Code = %d for url = %s", status, url));
+                    downloader.notifyDelegateOfHTTPStatusError(status, url);
+                }
+                return;
+            }
+            try {
+                Thread.sleep(RETRY_DELAY_MS << (attempt - 1));
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private class Worker implements Runnable {
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            boolean retired = false;
+            try {
+                String url;
+                while ((url = nextUrl()) != null) {
+                    download(url);
+                }
+                retired = true;
+            } catch (final RuntimeException e) {
+                Log.e(TAG, "Error in download worker", e);
+            } finally {
+                onWorkerFinished(retired);
+            }
+        }
+    }
+
+    public int getMaximumConcurrency() {
+        return maximumConcurrency;
+    }
+
+    /**
+     * @return the number of concurrent downloads currently aimed for
+     */
+    public synchronized int getTargetConcurrency() {
+        return targetConcurrency;
+    }
+
+    /**
+     * @return the number of workers running
+     */
+    public synchronized int getWorkerCount() {
+        return workerCount;
+    }
+
+    public long getDownloadedCount() {
+        return downloadedCount.get();
+    }
+
+    public long getDownloadedBytes() {
+        return downloadedBytes.get();
+    }
+
+    /**
+     * @return the number of urls given up on
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * @return the number of requests retried after a network or server error
+     */
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    /**
+     * @return the number of pages of urls read from the database
+     */
+    public long getPageCount() {
+        return pageCount.get();
+    }
+
+    /**
+     * @return the number of files downloaded per second since the start (or the last reset)
+     */
+    public float getThroughput() {
+        final long elapsed = SystemClock.elapsedRealtime() - startTimeMs.get();
+        return elapsed > 0 ? downloadedCount.get() * 1000f / elapsed : 0;
+    }
+
+    /**
+     * @return the number of bytes downloaded per second since the start (or the last reset)
+     */
+    public float getByteRate() {
+        final long elapsed = SystemClock.elapsedRealtime() - startTimeMs.get();
+        return elapsed > 0 ? downloadedBytes.get() * 1000f / elapsed : 0;
+    }
+
+    public void resetStats() {
+        startTimeMs.set(SystemClock.elapsedRealtime());
+        downloadedCount.set(0);
+        downloadedBytes.set(0);
+        failedCount.set(0);
+        retryCount.set(0);
+        pageCount.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "OfflineMapDownloadTaskManager{workers=" + getWorkerCount()
+                + ", target=" + getTargetConcurrency() + "/" + maximumConcurrency
+                + ", downloaded=" + getDownloadedCount()
+                + ", bytes=" + getDownloadedBytes()
+                + ", failed=" + getFailedCount()
+                + ", retried=" + getRetryCount()
+                + ", pages=" + getPageCount()
+                + ", throughput=" + getThroughput() + " files/s}";
+    }
+}
@@ -4,6 +4,7 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.ContextWrapper;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.os.AsyncTask;
 import android.text.TextUtils;
@@ -18,10 +19,8 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
@@ -30,8 +29,10 @@ import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.UUID;
@@ -47,6 +48,7 @@ public class OfflineMapDownloader implements MapboxConstants {
     private Context context;
 
     private SQLiteDatabase db;
+    private final Object dbLock = new Object();
 
     /**
      * The possible states of the offline map downloader.
@@ -70,88 +72,6 @@ public class OfflineMapDownloader implements MapboxConstants {
         MBXOfflineMapDownloaderStateAvailable
     }
 
-    private class OfflineMapDownloadTaskManager {
-
-        private Iterator<String> itr;
-        private int concurrentCount;
-
-        public OfflineMapDownloadTaskManager(Iterator<String> itr, int concurrentCount) {
-            this.itr = itr;
-            this.concurrentCount = concurrentCount;
-        }
-
-        public void start() {
-            for (int i = 0; i < concurrentCount; i++) {
-                startDownloadTask();
-            }
-        }
-
-        private void startDownloadTask() {
-            if (!itr.hasNext()) {
-                return;
-            }
-/*
-            if (!NetworkUtils.isNetworkAvailable(context)) {
-                Log.w(TAG, "Network is no longer available.");
-//                    [self notifyDelegateOfNetworkConnectivityError:error];
-            }
-*/
-            AsyncTask<String, Void, Void> task = new AsyncTask<String, Void, Void>() {
-                @Override
-                protected Void doInBackground(String... params) {
-                    HttpURLConnection conn = null;
-                    String url = params[0];
-                    try {
-                        conn = NetworkUtils.getHttpURLConnection(new URL(url));
-                        Log.d(TAG, "URL to download = " + conn.getURL().toString());
-                        conn.setConnectTimeout(60000);
-                        conn.connect();
-                        int rc = conn.getResponseCode();
-                        if (rc != HttpURLConnection.HTTP_OK) {
-                            String msg = String.format(MAPBOX_LOCALE, "HTTP Error connection.  Response Code = %d for url = %s", rc, conn.getURL().toString());
-                            Log.w(TAG, msg);
-                            notifyDelegateOfHTTPStatusError(rc, params[0]);
-                            throw new IOException(msg);
-                        }
-
-                        ByteArrayOutputStream bais = new ByteArrayOutputStream();
-                        InputStream is = null;
-                        try {
-                            is = conn.getInputStream();
-                            // Read 4K at a time
-                            byte[] byteChunk = new byte[4096];
-                            int n;
-
-                            while ((n = is.read(byteChunk)) > 0) {
-                                bais.write(byteChunk, 0, n);
-                            }
-                        } catch (IOException e) {
-                            Log.e(TAG, String.format(MAPBOX_LOCALE, "Failed while reading bytes from %s: %s", conn.getURL().toString(), e.getMessage()));
-                            e.printStackTrace();
-                        } finally {
-                            if (is != null) {
-                                is.close();
-                            }
-                            conn.disconnect();
-                        }
-                        sqliteSaveDownloadedData(bais.toByteArray(), url);
-                    } catch (IOException e) {
-                        Log.e(TAG, e.getMessage());
-                        e.printStackTrace();
-                    } finally {
-                        if (conn != null) {
-                            conn.disconnect();
-                        }
-                    }
-
-                    startDownloadTask();
-                    return null;
-                }
-            };
-            task.execute(itr.next());
-        }
-    }
-
     private String uniqueID;
     private String mapID;
     private boolean includesMetadata;
@@ -160,10 +80,14 @@ public class OfflineMapDownloader implements MapboxConstants {
     private CoordinateRegion mapRegion;
     private int minimumZ;
     private int maximumZ;
-    private MBXOfflineMapDownloaderState state;
+    private volatile MBXOfflineMapDownloaderState state;
     private int totalFilesWritten;
     private int totalFilesExpectedToWrite;
 
+    private int maximumConcurrency = OfflineMapDownloadTaskManager.DEFAULT_MAXIMUM_CONCURRENCY;
+    private int pageSize = OfflineMapDownloadTaskManager.DEFAULT_PAGE_SIZE;
+    private volatile OfflineMapDownloadTaskManager taskManager;
+
 
     private ArrayList<OfflineMapDatabase> mutableOfflineMapDatabases;
 
@@ -336,37 +260,98 @@ public class OfflineMapDownloader implements MapboxConstants {
         sqliteQueryWrittenAndExpectedCountsWithError();
         Log.d(TAG, String.format(MAPBOX_LOCALE, "totalFilesExpectedToWrite = %d, totalFilesWritten = %d", this.totalFilesExpectedToWrite, this.totalFilesWritten));
 
-//        [_sqliteQueue addOperationWithBlock:^{
-        // Get the actual URLs
-        Iterator<String> urlIter = sqliteReadOfflineMapURLsToBeDownloadedLimit(-1);
-        if (urlIter == null) {
-            // The operation failed for one reason or another (e.g. we're on the main thread).
-            closeDatabase();
-            return;
-        }
-
-        if (!urlIter.hasNext()) {
+        if (this.totalFilesWritten >= this.totalFilesExpectedToWrite) {
             // All files are downloaded, but hasn't been persisted yet.
             finishUpDownloadProcess();
             return;
         }
 
-        OfflineMapDownloadTaskManager manager = new OfflineMapDownloadTaskManager(urlIter, 8);
+        // The urls are read from the database a page at a time by the task manager's workers
+        OfflineMapDownloadTaskManager manager = new OfflineMapDownloadTaskManager(this, maximumConcurrency, pageSize);
+        this.taskManager = manager;
         manager.start();
     }
 
+    /**
+     * Set how many resources may be downloaded at the same time. The task manager adapts the
+     * number of concurrent downloads to the network, up to this maximum. Applies to the next
+     * download job, or the next time a job is resumed.
+     *
+     * @param maximumConcurrency the maximum number of concurrent downloads, at least 1
+     */
+    public void setMaximumConcurrency(int maximumConcurrency) {
+        if (maximumConcurrency < OfflineMapDownloadTaskManager.MINIMUM_CONCURRENCY) {
+            throw new IllegalArgumentException("maximumConcurrency < " + OfflineMapDownloadTaskManager.MINIMUM_CONCURRENCY + ": " + maximumConcurrency);
+        }
+        this.maximumConcurrency = maximumConcurrency;
+    }
+
+    public int getMaximumConcurrency() {
+        return maximumConcurrency;
+    }
+
+    /**
+     * Set how many urls are read from the database at a time while downloading.
+     *
+     * @param pageSize the number of urls per page, at least 1
+     */
+    public void setPageSize(int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize < 1: " + pageSize);
+        }
+        this.pageSize = pageSize;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * @return the task manager of the current (or last) download job, for its throughput and
+     * concurrency statistics, or null if nothing was downloaded yet
+     */
+    public OfflineMapDownloadTaskManager getTaskManager() {
+        return taskManager;
+    }
+
+    boolean isRunning() {
+        return this.state == MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateRunning;
+    }
+
+    /**
+     * Called by the task manager once its last worker has stopped.
+     */
+    void onDownloadTasksFinished(OfflineMapDownloadTaskManager manager) {
+        synchronized (this) {
+            if (manager != this.taskManager || !isRunning() || this.totalFilesWritten >= this.totalFilesExpectedToWrite) {
+                return;
+            }
+            // Some urls couldn't be downloaded (the listeners were told about each of them). Suspend
+            // the job rather than leave it running with nothing left to do, so it can be resumed.
+            Log.w(TAG, String.format(MAPBOX_LOCALE, "Download tasks finished with %d of %d files written, suspending.", this.totalFilesWritten, this.totalFilesExpectedToWrite));
+            this.state = MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateSuspended;
+        }
+        notifyDelegateOfStateChange();
+    }
+
 /*
     Implementation: sqlite stuff
 */
 
     public void sqliteSaveDownloadedData(byte[] data, String url) {
+        sqliteSaveDownloadedData(Collections.singletonMap(url, data));
+    }
+
+    /**
+     * Write a batch of downloaded resources in a single transaction.
+     *
+     * @param downloads the data of each resource, by url
+     */
+    public void sqliteSaveDownloadedData(Map<String, byte[]> downloads) {
         if (AppUtils.runningOnMainThread()) {
             Log.w(TAG, "trying to run sqliteSaveDownloadedData() on main thread. Return.");
             return;
         }
-//        assert(_activeDataSessionTasks > 0);
-
-//        [_sqliteQueue addOperationWithBlock:^{
 
         // Bail out if the state has changed to canceling, suspended, or available
         //
@@ -375,78 +360,100 @@ public class OfflineMapDownloader implements MapboxConstants {
             return;
         }
 
-        // Open the database read-write and multi-threaded. The slightly obscure c-style variable names here and below are
-        // used to stay consistent with the sqlite documentaion.
-        // Continue by inserting an image blob into the data table
+        // Insert the image blobs into the resources table
         //
         SQLiteDatabase db = database();
         db.beginTransaction();
-
-//      String query2 = "INSERT INTO data(value) VALUES(?);";
-        ContentValues values = new ContentValues();
-        values.put(OfflineDatabaseHandler.FIELD_RESOURCES_URL, url);
-        values.put(OfflineDatabaseHandler.FIELD_RESOURCES_DATA, data);
-        values.put(OfflineDatabaseHandler.FIELD_RESOURCES_STATUS, 200);
-        db.replace(OfflineDatabaseHandler.TABLE_RESOURCES, null, values);
-
-        db.setTransactionSuccessful();
-        db.endTransaction();
-
-/*
-        if(error)
-        {
+        try {
+            for (Map.Entry<String, byte[]> download : downloads.entrySet()) {
+                ContentValues values = new ContentValues();
+                values.put(OfflineDatabaseHandler.FIELD_RESOURCES_URL, download.getKey());
+                values.put(OfflineDatabaseHandler.FIELD_RESOURCES_DATA, download.getValue());
+                values.put(OfflineDatabaseHandler.FIELD_RESOURCES_STATUS, 200);
+                db.replace(OfflineDatabaseHandler.TABLE_RESOURCES, null, values);
+            }
+            db.setTransactionSuccessful();
+        } catch (SQLException e) {
             // Oops, that didn't work. Notify the delegate.
             //
-            [self notifyDelegateOfSqliteError:error];
+            Log.e(TAG, "Error saving downloaded data: " + e.toString());
+            notifyDelegateOfSqliteError(e);
+            return;
+        } finally {
+            db.endTransaction();
         }
-        else
-        {
-*/
+
         // Update the progress
         //
-        this.totalFilesWritten += 1;
+        int written;
+        synchronized (this) {
+            this.totalFilesWritten += downloads.size();
+            written = this.totalFilesWritten;
+        }
         notifyDelegateOfProgress();
-        Log.d(TAG, "totalFilesWritten = " + this.totalFilesWritten + "; totalFilesExpectedToWrite = " + this.totalFilesExpectedToWrite);
+        Log.d(TAG, "totalFilesWritten = " + written + "; totalFilesExpectedToWrite = " + this.totalFilesExpectedToWrite);
 
         // If all the downloads are done, clean up and notify the delegate
         //
-        if (this.totalFilesWritten >= this.totalFilesExpectedToWrite) {
+        if (written >= this.totalFilesExpectedToWrite) {
             finishUpDownloadProcess();
         }
-/*
-        }
-*/
-
-        // If this was the last of a batch of urls in the data session's download queue, and there are more urls
-        // to be downloaded, get another batch of urls from the database and keep working.
-        //
-/*
-        if(activeDataSessionTasks > 0)
-        {
-            _activeDataSessionTasks -= 1;
-        }
-        if(_activeDataSessionTasks == 0 && _totalFilesWritten < _totalFilesExpectedToWrite)
-        {
-            [self startDownloading];
-        }
-*/
     }
 
     private void finishUpDownloadProcess() {
-        if (this.state == MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateRunning) {
+        OfflineMapDatabase offlineMap;
+        synchronized (this) {
+            if (this.state != MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateRunning) {
+                return;
+            }
             Log.i(TAG, "Just finished downloading all materials.  Persist the OfflineMapDatabase, change the state, and call it a day.");
+            // Stop the workers before the database is closed
+            if (this.taskManager != null) {
+                this.taskManager.shutdown();
+            }
             // This is what to do when we've downloaded all the files
             //
             // Populate OfflineMapDatabase object and persist it
-            OfflineMapDatabase offlineMap = completeDatabaseAndInstantiateOfflineMapWithError();
+            offlineMap = completeDatabaseAndInstantiateOfflineMapWithError();
             if (offlineMap != null) {
                 this.mutableOfflineMapDatabases.add(offlineMap);
             }
-            notifyDelegateOfCompletionWithOfflineMapDatabase(offlineMap);
-
             this.state = MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateAvailable;
-            notifyDelegateOfStateChange();
         }
+        notifyDelegateOfCompletionWithOfflineMapDatabase(offlineMap);
+        notifyDelegateOfStateChange();
+    }
+
+    /**
+     * Read a page of the urls that haven't been downloaded yet, in rowid order.
+     *
+     * @param afterRowId only urls with a greater rowid are read, so that urls handed out by a
+     *                   previous page aren't read again while they are being downloaded
+     * @param limit      the maximum number of urls to read
+     * @param urls       receives the urls
+     * @return the rowid of the last url read, or afterRowId if there were none
+     */
+    long sqliteReadOfflineMapURLsToBeDownloaded(long afterRowId, int limit, List<String> urls) {
+        if (AppUtils.runningOnMainThread()) {
+            Log.w(TAG, "Attempting to run sqliteReadOfflineMapURLsToBeDownloaded() on main thread.  Returning.");
+            return afterRowId;
+        }
+
+        String query = String.format(MAPBOX_LOCALE, "SELECT rowid, %s FROM %s WHERE %s IS NULL AND rowid > %d ORDER BY rowid LIMIT %d;",
+                OfflineDatabaseHandler.FIELD_RESOURCES_URL, OfflineDatabaseHandler.TABLE_RESOURCES, OfflineDatabaseHandler.FIELD_RESOURCES_STATUS,
+                afterRowId, limit);
+
+        long lastRowId = afterRowId;
+        Cursor cursor = database().rawQuery(query, null);
+        try {
+            while (cursor.moveToNext()) {
+                lastRowId = cursor.getLong(0);
+                urls.add(cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return lastRowId;
     }
 
     public Iterator<String> sqliteReadOfflineMapURLsToBeDownloadedLimit(int limit) {
@@ -895,34 +902,42 @@ public class OfflineMapDownloader implements MapboxConstants {
     }
 
     public void resume() {
-        if (state != MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateSuspended) {
-            return;
+        synchronized (this) {
+            if (state != MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateSuspended) {
+                return;
+            }
+            // Resume a previously suspended download job
+            //
+            state = MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateRunning;
         }
-/*
-        // Resume a previously suspended download job
-        //
-        [_backgroundWorkQueue addOperationWithBlock:^{
-            _state = MBXOfflineMapDownloaderStateRunning;
-            [self startDownloading];
-            [self notifyDelegateOfStateChange];
-        }];
-*/
+        notifyDelegateOfStateChange();
+
+        AsyncTask<Void, Void, Void> resumeDownload = new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... params) {
+                // Urls that failed are still marked as not downloaded, so they are tried again
+                startDownloading();
+                return null;
+            }
+        };
+        resumeDownload.execute();
     }
 
     public void suspend() {
         Log.d(TAG, "suspend called with state = " + state);
-/*
-        if (state == MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateRunning) {
-            // Stop a download job, preserving the necessary state to resume later
+        synchronized (this) {
+            if (state != MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateRunning) {
+                return;
+            }
+            // Stop a download job, preserving the necessary state to resume later. Whatever
+            // hasn't been written yet is downloaded again on resume.
             //
-            [_backgroundWorkQueue addOperationWithBlock:^{
-                [_sqliteQueue cancelAllOperations];
-                _state = MBXOfflineMapDownloaderStateSuspended;
-                _activeDataSessionTasks = 0;
-                [self notifyDelegateOfStateChange];
-            }];
+            state = MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateSuspended;
+            if (taskManager != null) {
+                taskManager.shutdown();
+            }
         }
-*/
+        notifyDelegateOfStateChange();
     }
 
 /*
@@ -973,16 +988,20 @@ public class OfflineMapDownloader implements MapboxConstants {
     }
 
     private SQLiteDatabase database() {
-        if (db == null) {
-            db = OfflineDatabaseManager.getOfflineDatabaseManager(context).getOfflineDatabaseHandlerForMapId(mapID).getWritableDatabase();
+        synchronized (dbLock) {
+            if (db == null) {
+                db = OfflineDatabaseManager.getOfflineDatabaseManager(context).getOfflineDatabaseHandlerForMapId(mapID).getWritableDatabase();
+            }
+            return db;
         }
-        return db;
     }
 
     private void closeDatabase() {
-        if (db != null) {
-            db.close();
-            db = null;
+        synchronized (dbLock) {
+            if (db != null) {
+                db.close();
+                db = null;
+            }
         }
     }
 }
@@ -81,6 +81,13 @@ public class Icon implements MapboxConstants {
         return sIconCache;
     }
 
+    /**
+     * @return the cache shared by all icons, or null if no icon has been loaded yet
+     */
+    public static BitmapLruCache getIconCache() {
+        return sIconCache;
+    }
+
     /**
      * Creates a unique subdirectory of the designated app cache directory. Tries to use external
      * but if not mounted, falls back on internal storage.
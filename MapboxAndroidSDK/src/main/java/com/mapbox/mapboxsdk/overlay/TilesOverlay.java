@@ -6,14 +6,18 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Point;
+import android.graphics.PointF;
 import android.graphics.Rect;
 import android.graphics.Shader;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
 import android.util.Log;
+import android.widget.Scroller;
 import com.mapbox.mapboxsdk.tileprovider.MapTile;
 import com.mapbox.mapboxsdk.tileprovider.MapTileLayerBase;
+import com.mapbox.mapboxsdk.tileprovider.MapTilePrefetcher;
+import com.mapbox.mapboxsdk.tileprovider.MemoryGovernor;
 import com.mapbox.mapboxsdk.util.GeometryMath;
 import com.mapbox.mapboxsdk.util.TileLooper;
 import com.mapbox.mapboxsdk.util.constants.UtilConstants;
@@ -53,6 +57,7 @@ public class TilesOverlay extends SafeDrawOverlay {
     float mCurrentZoomFactor = 1;
     private float mRescaleZoomDiffMax = 4;
     private boolean isAnimating = false;
+    private boolean mIdle = false;
     private boolean mOptionsMenuEnabled = true;
 
     private int mWorldSize_2;
@@ -129,6 +134,7 @@ public class TilesOverlay extends SafeDrawOverlay {
         }
         //Commented for now. It needs heavy testing to see if we actually need it
         isAnimating = mapView.isAnimating();
+        mIdle = !isAnimating && mapView.getScroller().isFinished();
 
         // Calculate the half-world size
         final Projection pj = mapView.getProjection();
@@ -146,6 +152,7 @@ public class TilesOverlay extends SafeDrawOverlay {
                 drawLoadingTile(c.getSafeCanvas(), mapView, zoomLevel, mClipRect);
             }
             drawTiles(c.getSafeCanvas(), zoomLevel, tileSize, mViewPort, mClipRect);
+            updatePrefetcher(mapView);
         }
 
         if (UtilConstants.DEBUGMODE && mapView.getScrollableAreaLimit() != null) {
@@ -160,6 +167,38 @@ public class TilesOverlay extends SafeDrawOverlay {
         }
     }
 
+    /**
+     * Tell the tile provider where the map is heading, so that it loads tiles ahead of it.
+     * Coordinates are passed as fractions of the world size.
+     *
+     * @param mapView the map view being drawn
+     */
+    private void updatePrefetcher(final MapView mapView) {
+        final MapTilePrefetcher prefetcher = mTileProvider.getPrefetcher();
+        if (!prefetcher.isEnabled()) {
+            return;
+        }
+        final float zoom = mapView.getZoomLevel(false);
+        final float worldSize = Projection.mapSize(zoom);
+        final PointF scroll = mapView.getScrollPoint();
+        final double centerX = scroll.x / worldSize + 0.5;
+        final double centerY = scroll.y / worldSize + 0.5;
+        final double spanX = mapView.getWidth() / worldSize;
+        final double spanY = mapView.getHeight() / worldSize;
+
+        final Scroller scroller = mapView.getScroller();
+        if (mapView.isAnimating()) {
+            final PointF target = mapView.getController().getAnimationTargetCenter();
+            prefetcher.update(zoom, centerX, centerY, spanX, spanY, mapView.getZoomLevel(true),
+                    target.x / worldSize + 0.5, target.y / worldSize + 0.5);
+        } else if (!scroller.isFinished()) {
+            prefetcher.update(zoom, centerX, centerY, spanX, spanY, zoom,
+                    scroller.getFinalX() / worldSize + 0.5, scroller.getFinalY() / worldSize + 0.5);
+        } else {
+            prefetcher.update(zoom, centerX, centerY, spanX, spanY);
+        }
+    }
+
     /**
      * Draw a loading tile image to make in-progress tiles easier to deal with.
      *
@@ -204,6 +243,15 @@ public class TilesOverlay extends SafeDrawOverlay {
         public void initializeLoop(final float pZoomLevel, final int pTileSizePx) {
 
             final int roundedZoom = (int) Math.floor(pZoomLevel);
+            // let the tile providers load the tiles closest to the centre first
+            mTileProvider.getViewport().set(roundedZoom, mUpperLeft.x, mUpperLeft.y,
+                    mLowerRight.x, mLowerRight.y);
+            // and keep the zoom levels around this one ready
+            mTileProvider.getPyramidPrefetcher().update(roundedZoom, mUpperLeft.x, mUpperLeft.y,
+                    mLowerRight.x, mLowerRight.y, mIdle);
+            // and tell how much the tiles preloaded at startup spared the first frame
+            mTileProvider.getHotSet().onDraw(roundedZoom, mUpperLeft.x, mUpperLeft.y,
+                    mLowerRight.x, mLowerRight.y);
             if (roundedZoom != pZoomLevel) {
                 final int mapTileUpperBound = 1 << roundedZoom;
                 mCurrentZoomFactor =
@@ -294,8 +342,9 @@ public class TilesOverlay extends SafeDrawOverlay {
                 final int tileSize =
                         mTileProvider.getTileSource() != null ? mTileProvider.getTileSource()
                                 .getTileSizePixels() : 256;
-                mLoadingTileBitmap =
-                        Bitmap.createBitmap(tileSize, tileSize, Bitmap.Config.ARGB_8888);
+                mLoadingTileBitmap = Bitmap.createBitmap(tileSize, tileSize,
+                        Color.alpha(mLoadingBackgroundColor) == 0xff ? Bitmap.Config.RGB_565
+                                : Bitmap.Config.ARGB_8888);
                 final Canvas canvas = new Canvas(mLoadingTileBitmap);
                 canvas.drawColor(mLoadingBackgroundColor);
                 final int lineSize = tileSize / 16;
@@ -307,7 +356,7 @@ public class TilesOverlay extends SafeDrawOverlay {
                 mLoadingTilePaint.setShader(new BitmapShader(mLoadingTileBitmap, Shader.TileMode.REPEAT, Shader.TileMode.REPEAT));
             } catch (final OutOfMemoryError e) {
                 Log.e(TAG, "OutOfMemoryError getting loading tile: " + e.toString());
-                System.gc();
+                MemoryGovernor.getMemoryGovernor().onLowMemory();
             }
         }
         return mLoadingTilePaint;
@@ -439,7 +488,7 @@ public class TilesOverlay extends SafeDrawOverlay {
             int oldTileY = GeometryMath.mod((int) GeometryMath.rightShift(pY, mDiff), mOldTileUpperBound);
 
             // get the correct fraction of the tile from cache and scale up
-            final MapTile oldTile = new MapTile(pCacheKey,
+            final MapTile oldTile = new MapTile(pCacheKey, pTile.getLayerId(),
                     mOldZoomRound, oldTileX, oldTileY);
             final Drawable oldDrawable = mTileProvider.getMapTileFromMemory(oldTile);
 
@@ -457,11 +506,16 @@ public class TilesOverlay extends SafeDrawOverlay {
                     mSrcRect.set(xx, yy, xx + mTileSize_2, yy + mTileSize_2);
                     mDestRect.set(0, 0, pTileSizePx, pTileSizePx);
 
+                    // A part of an opaque tile is opaque too
+                    final Bitmap.Config config = oldBitmap.getConfig() == Bitmap.Config.RGB_565
+                            ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+
                     // Try to get a bitmap from the pool, otherwise allocate a new one
-                    Bitmap bitmap = mTileProvider.getBitmapFromRemoved(pTileSizePx, pTileSizePx);
+                    Bitmap bitmap =
+                            mTileProvider.getBitmapFromRemoved(pTileSizePx, pTileSizePx, config);
 
                     if (bitmap == null) {
-                        bitmap = Bitmap.createBitmap(pTileSizePx, pTileSizePx, Bitmap.Config.ARGB_8888);
+                        bitmap = Bitmap.createBitmap(pTileSizePx, pTileSizePx, config);
                     }
                     final Canvas canvas = new Canvas(bitmap);
                     canvas.drawBitmap(oldBitmap, mSrcRect, mDestRect, null);
@@ -498,7 +552,7 @@ public class TilesOverlay extends SafeDrawOverlay {
                 for (int y = 0; y < numTiles; y++) {
                     oldTileY = GeometryMath.mod(yy + y, mOldTileUpperBound);
                     oldTileX = GeometryMath.mod(xx + x, mOldTileUpperBound);
-                    final MapTile oldTile = new MapTile(pCacheKey,
+                    final MapTile oldTile = new MapTile(pCacheKey, pTile.getLayerId(),
                             mOldZoomRound, oldTileX, oldTileY);
                     Drawable oldDrawable = mTileProvider.getMapTileFromMemory(oldTile);
 
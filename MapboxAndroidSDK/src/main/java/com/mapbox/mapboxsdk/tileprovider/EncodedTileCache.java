@@ -0,0 +1,256 @@
+package com.mapbox.mapboxsdk.tileprovider;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A memory cache of tiles as they were received, encoded as PNG, JPEG or WebP, which take a
+ * fraction of the memory of decoded bitmaps. It sits between the bitmap memory cache and the
+ * disk: a tile that fell out of the bitmap cache but is still here only needs decoding again,
+ * without reading the disk, which is what panning back and forth over the same area keeps
+ * doing.
+ * <p/>
+ * The tiles are packed into direct buffers cut into blocks of {@link #BLOCK_SIZE} bytes. On
+ * Android, direct buffers are backed by non-movable arrays on the Java heap: they count towards
+ * the heap limit like any other array, but the many small tiles live in a few large buffers,
+ * which the garbage collector doesn't have to trace or move. Buffers are allocated as the cache
+ * fills up, up to its maximum size, and blocks freed by evicted tiles are reused. The least
+ * recently used tiles are evicted first.
+ */
+public class EncodedTileCache {
+    private static final String TAG = "EncodedTileCache";
+
+    public static final int BLOCK_SIZE = 4 * 1024;
+    private static final int BLOCKS_PER_BUFFER = 256;
+
+    private int mMaxSize;
+    private int mSize;
+
+    // In access order, the eldest entry is the least recently used
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(256, 0.75f, true);
+    private final ArrayList<ByteBuffer> mBuffers = new ArrayList<ByteBuffer>();
+    private int[] mFreeBlocks = new int[BLOCKS_PER_BUFFER];
+    private int mFreeBlockCount;
+
+    private final AtomicLong mHitCount = new AtomicLong(0);
+    private final AtomicLong mMissCount = new AtomicLong(0);
+    private final AtomicLong mPutCount = new AtomicLong(0);
+    private final AtomicLong mEvictionCount = new AtomicLong(0);
+
+    /**
+     * @param maxSize the maximum size of the tiles kept, in bytes
+     */
+    public EncodedTileCache(final int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Invalid encoded tile cache size: " + maxSize);
+        }
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * @param key the key of the tile
+     * @return a copy of the encoded tile, or null if it isn't in the cache
+     */
+    public synchronized byte[] get(final String key) {
+        final Entry entry = mEntries.get(key);
+        if (entry == null) {
+            mMissCount.incrementAndGet();
+            return null;
+        }
+        mHitCount.incrementAndGet();
+        final byte[] data = new byte[entry.length];
+        int offset = 0;
+        for (final int block : entry.blocks) {
+            final ByteBuffer buffer = mBuffers.get(block / BLOCKS_PER_BUFFER);
+            final int count = Math.min(BLOCK_SIZE, data.length - offset);
+            buffer.position((block % BLOCKS_PER_BUFFER) * BLOCK_SIZE);
+            buffer.get(data, offset, count);
+            offset += count;
+        }
+        return data;
+    }
+
+    /**
+     * Keep an encoded tile, evicting the least recently used ones if there isn't room for it.
+     *
+     * @param key the key of the tile
+     * @param data the encoded tile, copied into the cache
+     * @return false if the tile is too large to be kept
+     */
+    public synchronized boolean put(final String key, final byte[] data) {
+        if (data == null) {
+            return false;
+        }
+        final int blockCount = (data.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        // A single tile may not push out a large share of the others
+        if (blockCount * BLOCK_SIZE > mMaxSize / 4) {
+            return false;
+        }
+        remove(key);
+        trimToSize(mMaxSize - blockCount * BLOCK_SIZE);
+        final int[] blocks = new int[blockCount];
+        for (int i = 0; i < blockCount; i++) {
+            blocks[i] = allocateBlock();
+        }
+        int offset = 0;
+        for (final int block : blocks) {
+            final ByteBuffer buffer = mBuffers.get(block / BLOCKS_PER_BUFFER);
+            final int count = Math.min(BLOCK_SIZE, data.length - offset);
+            buffer.position((block % BLOCKS_PER_BUFFER) * BLOCK_SIZE);
+            buffer.put(data, offset, count);
+            offset += count;
+        }
+        mEntries.put(key, new Entry(data.length, blocks));
+        mSize += blockCount * BLOCK_SIZE;
+        mPutCount.incrementAndGet();
+        return true;
+    }
+
+    public synchronized boolean contains(final String key) {
+        return mEntries.containsKey(key);
+    }
+
+    public synchronized void remove(final String key) {
+        final Entry entry = mEntries.remove(key);
+        if (entry != null) {
+            release(entry);
+        }
+    }
+
+    /**
+     * Evict the least recently used tiles until the cache is no larger than a size. The buffers
+     * themselves are kept for the tiles to come, see {@link #clear()} to free them.
+     *
+     * @param size the size in bytes
+     */
+    public synchronized void trimToSize(final int size) {
+        final Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+        while (mSize > size && iterator.hasNext()) {
+            final Entry entry = iterator.next().getValue();
+            iterator.remove();
+            release(entry);
+            mEvictionCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Evict every tile and free the buffers.
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+        mBuffers.clear();
+        mFreeBlockCount = 0;
+        mSize = 0;
+    }
+
+    /**
+     * Change the maximum size of the cache, evicting tiles if it shrinks.
+     *
+     * @param maxSize the maximum size in bytes
+     */
+    public synchronized void setMaxSize(final int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Invalid encoded tile cache size: " + maxSize);
+        }
+        mMaxSize = maxSize;
+        trimToSize(maxSize);
+        if (mBuffers.size() * BLOCKS_PER_BUFFER * BLOCK_SIZE > 2 * maxSize) {
+            // Far more buffers than the new size needs, start over with fewer of them
+            clear();
+        }
+    }
+
+    private int allocateBlock() {
+        if (mFreeBlockCount == 0) {
+            final int first = mBuffers.size() * BLOCKS_PER_BUFFER;
+            mBuffers.add(ByteBuffer.allocateDirect(BLOCKS_PER_BUFFER * BLOCK_SIZE));
+            if (mFreeBlocks.length < BLOCKS_PER_BUFFER) {
+                mFreeBlocks = new int[BLOCKS_PER_BUFFER];
+            }
+            // Handed out from the start of the buffer
+            for (int i = 0; i < BLOCKS_PER_BUFFER; i++) {
+                mFreeBlocks[i] = first + BLOCKS_PER_BUFFER - 1 - i;
+            }
+            mFreeBlockCount = BLOCKS_PER_BUFFER;
+        }
+        return mFreeBlocks[--mFreeBlockCount];
+    }
+
+    private void release(final Entry entry) {
+        if (mFreeBlockCount + entry.blocks.length > mFreeBlocks.length) {
+            final int[] freeBlocks = new int[Math.max(mFreeBlocks.length * 2,
+                    mFreeBlockCount + entry.blocks.length)];
+            System.arraycopy(mFreeBlocks, 0, freeBlocks, 0, mFreeBlockCount);
+            mFreeBlocks = freeBlocks;
+        }
+        for (final int block : entry.blocks) {
+            mFreeBlocks[mFreeBlockCount++] = block;
+        }
+        mSize -= entry.blocks.length * BLOCK_SIZE;
+    }
+
+    /**
+     * @return the memory taken by the tiles in bytes, counting whole blocks
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized int maxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized int getEntryCount() {
+        return mEntries.size();
+    }
+
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    public long getPutCount() {
+        return mPutCount.get();
+    }
+
+    public long getEvictionCount() {
+        return mEvictionCount.get();
+    }
+
+    public void resetStats() {
+        mHitCount.set(0);
+        mMissCount.set(0);
+        mPutCount.set(0);
+        mEvictionCount.set(0);
+    }
+
+    @Override
+    public synchronized String toString() {
+        final long hits = getHitCount();
+        final long requests = hits + getMissCount();
+        return TAG + "{entries=" + mEntries.size()
+                + ", size=" + mSize + "/" + mMaxSize
+                + ", buffers=" + mBuffers.size()
+                + ", hits=" + hits
+                + ", hitRate=" + (requests > 0 ? (100 * hits / requests) : 0) + "%"
+                + ", evictions=" + getEvictionCount() + "}";
+    }
+
+    private static final class Entry {
+        final int length;
+        final int[] blocks;
+
+        Entry(final int length, final int[] blocks) {
+            this.length = length;
+            this.blocks = blocks;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.mapbox.mapboxsdk.tileprovider;
+
+/**
+ * A {@link IMapTileProviderCallback} that is told apart when a request is dropped rather than
+ * failed. Requests dropped for a callback that doesn't implement this are reported through
+ * {@link IMapTileProviderCallback#mapTileRequestFailed(MapTileRequestState)}, as they always
+ * were.
+ */
+public interface IMapTileCancellationCallback extends IMapTileProviderCallback {
+
+    /**
+     * The map tile request was dropped before completing, typically because the tile is no
+     * longer in view. No further provider should be tried.
+     *
+     * @param aState a state object
+     */
+    void mapTileRequestCancelled(MapTileRequestState aState);
+}
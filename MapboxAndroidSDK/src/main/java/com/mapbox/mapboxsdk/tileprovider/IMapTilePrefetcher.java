@@ -0,0 +1,49 @@
+package com.mapbox.mapboxsdk.tileprovider;
+
+/**
+ * Something that loads tiles before they are drawn, through
+ * {@link MapTileLayerBase#prefetchMapTile(MapTile, IMapTilePrefetcher, int)}. It sets the
+ * priority of its requests and is told how each of them ends.
+ */
+public interface IMapTilePrefetcher {
+
+    /**
+     * Compute the loading priority of a prefetch request, see
+     * {@link MapTileViewport#getPriority(MapTile)}.
+     *
+     * @param tile the tile
+     * @param generation the generation the request was made in
+     * @return the priority, or {@link MapTileViewport#PRIORITY_NONE} if the tile is no longer
+     * wanted
+     */
+    float getPriority(MapTile tile, int generation);
+
+    /**
+     * The tile was loaded and is now in the cache.
+     *
+     * @param tile the tile
+     */
+    void onPrefetchCompleted(MapTile tile);
+
+    /**
+     * No provider could load the tile.
+     *
+     * @param tile the tile
+     */
+    void onPrefetchFailed(MapTile tile);
+
+    /**
+     * The request was dropped before completing.
+     *
+     * @param tile the tile
+     */
+    void onPrefetchCancelled(MapTile tile);
+
+    /**
+     * The request was still in flight when its tile came into view, and now carries on as a
+     * regular request.
+     *
+     * @param tile the tile
+     */
+    void onPrefetchPromoted(MapTile tile);
+}
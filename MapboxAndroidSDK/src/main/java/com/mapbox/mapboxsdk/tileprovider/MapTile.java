@@ -5,6 +5,7 @@ import com.mapbox.mapboxsdk.constants.GeoConstants;
 import com.mapbox.mapboxsdk.constants.MapboxConstants;
 import com.mapbox.mapboxsdk.geometry.BoundingBox;
 import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
+import java.util.HashMap;
 
 /**
  * A map tile is distributed using the observer pattern. The tile is delivered by a tile provider
@@ -19,13 +20,20 @@ public class MapTile implements GeoConstants, MapboxConstants, TileLayerConstant
     public static final int MAPTILE_SUCCESS_ID = 0;
     public static final int MAPTILE_FAIL_ID = MAPTILE_SUCCESS_ID + 1;
 
+    private static final int MAXIMUM_LAYER_ID = 0x3fff;
+    private static final HashMap<String, Integer> sLayerIds = new HashMap<String, Integer>();
+    // The layer looked up last, tiles are mostly created in a row for one layer
+    private static volatile LayerId sLastLayerId;
+
     // This class must be immutable because it's used as the key in the cache hash map
-    // (ie all the fields are final).
+    // (ie all the fields are final, path and cacheKey are only computed on first use).
     private final int x;
     private final int y;
     private final int z;
-    private final String path;
-    private final String cacheKey;
+    private final int layerId;
+    private final String baseKey;
+    private String path;
+    private String cacheKey;
     private final int code;
     private Rect mTileRect;
 
@@ -39,12 +47,90 @@ public class MapTile implements GeoConstants, MapboxConstants, TileLayerConstant
     }
 
     public MapTile(final String aCacheKey, final int az, final int ax, final int ay) {
+        this(aCacheKey, getLayerId(aCacheKey), az, ax, ay);
+    }
+
+    /**
+     * @param aCacheKey the cache key of the layer
+     * @param aLayerId the id of that layer, see {@link #getLayerId(String)}: callers creating
+     * many tiles look it up once rather than for every tile
+     */
+    public MapTile(final String aCacheKey, final int aLayerId, final int az, final int ax,
+                   final int ay) {
         this.z = az;
         this.x = ax;
         this.y = ay;
-        this.path = (new StringBuilder()).append(z).append('/').append(x).append('/').append(y).toString();
-        this.cacheKey = aCacheKey + "/" + path;
-        this.code = ((17 * (37 + z)) * (37 * x)) * (37 + y);
+        this.baseKey = aCacheKey;
+        this.layerId = aLayerId;
+        // Mix every bit of the key: the old product of the coordinates was 0 for every tile of
+        // column 0 and collided heavily elsewhere
+        final long hash = getKey() * 0x9E3779B97F4A7C15L;
+        this.code = (int) (hash ^ (hash >>> 32));
+    }
+
+    /**
+     * Get the small number standing for a layer in packed tile keys.
+     *
+     * @param aCacheKey the cache key of the layer
+     * @return its id, the same for the lifetime of the process
+     * @throws IllegalStateException if all {@code MAXIMUM_LAYER_ID + 1} ids are taken
+     */
+    public static int getLayerId(final String aCacheKey) {
+        final LayerId last = sLastLayerId;
+        if (last != null && (aCacheKey == null ? last.key == null : aCacheKey.equals(last.key))) {
+            return last.id;
+        }
+        synchronized (sLayerIds) {
+            Integer id = sLayerIds.get(aCacheKey);
+            if (id == null) {
+                if (sLayerIds.size() > MAXIMUM_LAYER_ID) {
+                    // Reusing an id would give the tiles of two layers the same keys
+                    throw new IllegalStateException("Out of layer ids, " + sLayerIds.size()
+                            + " layers already have one: " + aCacheKey);
+                }
+                id = sLayerIds.size();
+                sLayerIds.put(aCacheKey, id);
+            }
+            sLastLayerId = new LayerId(aCacheKey, id);
+            return id;
+        }
+    }
+
+    private static final class LayerId {
+        final String key;
+        final int id;
+
+        LayerId(final String key, final int id) {
+            this.key = key;
+            this.id = id;
+        }
+    }
+
+    /**
+     * Pack the layer and coordinates of a tile into a single value, to identify tiles without
+     * allocating, hashing or comparing strings. Valid up to zoom level 22.
+     *
+     * @param layerId the layer, see {@link #getLayerId(String)}
+     * @param z the zoom level
+     * @param x the column
+     * @param y the row
+     * @return the key, never negative
+     */
+    public static long packKey(final int layerId, final int z, final int x, final int y) {
+        return ((long) (layerId & MAXIMUM_LAYER_ID) << 49) | ((long) (z & 0x1f) << 44)
+                | ((long) (x & 0x3fffff) << 22) | (y & 0x3fffff);
+    }
+
+    /**
+     * @return the layer and coordinates of the tile packed into a single value, see
+     * {@link #packKey(int, int, int, int)}
+     */
+    public long getKey() {
+        return packKey(layerId, z, x, y);
+    }
+
+    public int getLayerId() {
+        return layerId;
     }
 
     public int getZ() {
@@ -60,16 +146,28 @@ public class MapTile implements GeoConstants, MapboxConstants, TileLayerConstant
     }
 
     public String getPath() {
-        return path;
+        // Built on first use, most tiles drawn are only ever looked up by their cache key
+        String result = path;
+        if (result == null) {
+            result = (new StringBuilder()).append(z).append('/').append(x).append('/').append(y).toString();
+            path = result;
+        }
+        return result;
     }
 
     public String getCacheKey() {
-        return cacheKey;
+        String result = cacheKey;
+        if (result == null) {
+            result = (new StringBuilder()).append(baseKey).append('/').append(z).append('/')
+                    .append(x).append('/').append(y).toString();
+            cacheKey = result;
+        }
+        return result;
     }
 
     @Override
     public String toString() {
-        return path;
+        return getPath();
     }
 
     @Override
@@ -84,7 +182,7 @@ public class MapTile implements GeoConstants, MapboxConstants, TileLayerConstant
             return false;
         }
         final MapTile rhs = (MapTile) obj;
-        return z == rhs.z && x == rhs.x && y == rhs.y;
+        return z == rhs.z && x == rhs.x && y == rhs.y && layerId == rhs.layerId;
     }
 
     @Override
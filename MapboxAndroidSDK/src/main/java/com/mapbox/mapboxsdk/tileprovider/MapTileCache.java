@@ -7,13 +7,17 @@ import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.Environment;
+import android.support.v4.util.LruCache;
 import android.util.Log;
 
 import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
 import com.mapbox.mapboxsdk.util.BitmapUtils;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.Charset;
 
 import uk.co.senab.bitmapcache.BitmapLruCache;
 import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
@@ -25,12 +29,55 @@ import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 public class MapTileCache implements TileLayerConstants {
 
     protected static BitmapLruCache sCachedTiles = null;
+    protected static PackedTileStore sPackedTiles = null;
+    protected static EncodedTileCache sEncodedTiles = null;
     private Context context;
     static final String TAG = "MapTileCache";
     private static final String DISK_CACHE_SUBDIR = "mapbox_tiles_cache";
+    private static final String PACKED_STORE_SUBDIR = "mapbox_tiles_store";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String VALIDATORS_KEY_SUFFIX = "#validators";
+    private static final int VALIDATORS_MEMORY_CACHE_SIZE = 1024;
+
+    /**
+     * HTTP validators of recently used tiles, see {@link MapTileValidators}.
+     */
+    private static final LruCache<String, MapTileValidators> sValidators =
+            new LruCache<String, MapTileValidators>(VALIDATORS_MEMORY_CACHE_SIZE);
+
+    /**
+     * Memory kept for the tiles of the zoom levels around the one in view, see
+     * {@link #pinTile(MapTile)}. A negative value means the default share of the memory cache.
+     */
+    private static int sPyramidCacheSize = -1;
+
+    /**
+     * Budget of the memory cache, shared out between map views by the
+     * {@link MapTileCacheManager}. A negative value means the default for the device.
+     */
+    private static int sMemoryCacheSize = -1;
+
+    /**
+     * Memory kept for encoded tiles, see {@link #setEncodedCacheSize(int)}. 0 when disabled.
+     */
+    private static int sEncodedCacheSize = 0;
+
+    /**
+     * Memory kept for disk cache writes waiting to be committed, see
+     * {@link #setDiskWriteQueueSize(int)}.
+     */
+    private static int sDiskWriteQueueSize = BitmapLruCache.DEFAULT_DISK_WRITE_QUEUE_MAX_SIZE;
+
+    /**
+     * Decides which tiles the memory cache evicts, see {@link #setEvictionPolicy}. Null for
+     * least recently used first.
+     */
+    private static BitmapLruCache.EvictionPolicy sEvictionPolicy = null;
+
     private int mMaximumCacheSize;
 
     private boolean mDiskCacheEnabled = false;
+    private boolean mPackedDiskStoreEnabled = false;
 
     public MapTileCache(final Context aContext) {
         this(aContext, CACHE_MAPTILEDISKSIZE_DEFAULT);
@@ -60,16 +107,57 @@ public class MapTileCache implements TileLayerConstants {
                 Log.i(TAG, "cacheDir previously created '" + cacheDir.getAbsolutePath() + "'");
             }
             sCachedTiles = (new BitmapLruCache.Builder(context)).setMemoryCacheEnabled(true)
-                    .setMemoryCacheMaxSize(BitmapUtils.calculateMemoryCacheSize(context))
-                    .setDiskCacheEnabled(mDiskCacheEnabled)
+                    .setMemoryCacheMaxSize(getMemoryCacheSize())
+                    .setDiskCacheEnabled(mDiskCacheEnabled && !mPackedDiskStoreEnabled)
                     .setDiskCacheMaxSize(mMaximumCacheSize)
                     .setDiskCacheLocation(cacheDir)
                     .build();
+            sCachedTiles.setPinnedCacheMaxSize(getPyramidCacheSize());
+            // Tiles of the cache this one replaces are gone
+            MapTileCacheManager.getMapTileCacheManager().clearEntries();
+            sCachedTiles.setEvictionPolicy(getActiveEvictionPolicy());
+            sCachedTiles.setDiskWriteQueueMaxSize(sDiskWriteQueueSize);
             Log.i(TAG, "Disk Cache Enabled: '" + sCachedTiles.isDiskCacheEnabled() + "'; Memory Cache Enabled: '" + sCachedTiles.isMemoryCacheEnabled() + "'");
         }
         return sCachedTiles;
     }
 
+    /**
+     * Get the packed disk store, opening it first if it isn't open yet.
+     *
+     * @return the store, or null if tiles are kept in the one file per tile disk cache
+     */
+    protected PackedTileStore getPackedStore() {
+        if (!mDiskCacheEnabled || !mPackedDiskStoreEnabled) {
+            return null;
+        }
+        synchronized (MapTileCache.class) {
+            if (sPackedTiles == null) {
+                try {
+                    sPackedTiles = new PackedTileStore(
+                            getDiskCacheDir(context, PACKED_STORE_SUBDIR), mMaximumCacheSize);
+                } catch (final IOException e) {
+                    Log.e(TAG, "can't open the packed tile store, using the disk cache", e);
+                    setPackedDiskStoreEnabled(false);
+                    return null;
+                }
+            }
+            return sPackedTiles;
+        }
+    }
+
+    /**
+     * @return the memory cache of encoded tiles, or null if it is disabled
+     */
+    public EncodedTileCache getEncodedCache() {
+        synchronized (MapTileCache.class) {
+            if (sEncodedTiles == null && sEncodedCacheSize > 0) {
+                sEncodedTiles = new EncodedTileCache(sEncodedCacheSize);
+            }
+            return sEncodedTiles;
+        }
+    }
+
     /**
      * Computes a prefixed key for a tile.
      *
@@ -84,7 +172,7 @@ public class MapTileCache implements TileLayerConstants {
         String key = getCacheKey(aTile);
         CacheableBitmapDrawable result = getCache().getFromMemoryCache(key);
         if (result == null) {
-            result = getCache().getFromDiskCache(key, null);
+            result = getFromDisk(key, null);
         }
         return result;
     }
@@ -94,16 +182,102 @@ public class MapTileCache implements TileLayerConstants {
     }
 
     public CacheableBitmapDrawable getMapTileFromDisk(final MapTile aTile) {
-        return getCache().getFromDiskCache(getCacheKey(aTile), null);
+        return getFromDisk(getCacheKey(aTile), null);
+    }
+
+    /**
+     * @param aTile the tile
+     * @param decodeOpts options used to decode the tile, see
+     * {@link com.mapbox.mapboxsdk.tileprovider.tilesource.TileLayer#getDecodeOptions()}
+     * @return the tile decoded from the memory cache of encoded tiles or read from the disk
+     * cache, or null if it is in neither
+     */
+    public CacheableBitmapDrawable getMapTileFromDisk(final MapTile aTile,
+                                                      final BitmapFactory.Options decodeOpts) {
+        return getFromDisk(getCacheKey(aTile), decodeOpts);
     }
 
     public CacheableBitmapDrawable putTileStream(final MapTile aTile, final InputStream inputStream,
                                                  final BitmapFactory.Options decodeOpts) {
+        if (getPackedStore() != null && inputStream != null) {
+            try {
+                return putTileBytes(aTile, readFully(inputStream), decodeOpts);
+            } catch (final IOException e) {
+                Log.e(TAG, "Error reading tile " + aTile, e);
+                return null;
+            }
+        }
         return getCache().put(getCacheKey(aTile), inputStream, decodeOpts);
     }
 
+    /**
+     * Cache a tile from its encoded image, as received from the tile server. The image is
+     * decoded for the memory cache only, the disk cache keeps the original bytes rather than a
+     * PNG re-encoding of the bitmap, which is both much cheaper to write and much smaller for
+     * JPEG tiles.
+     *
+     * @param aTile the tile
+     * @param data the encoded image
+     * @param decodeOpts options used to decode the image, or null
+     * @return the decoded tile, or null if the image could not be decoded
+     */
+    public CacheableBitmapDrawable putTileBytes(final MapTile aTile, final byte[] data,
+                                                final BitmapFactory.Options decodeOpts) {
+        final String key = getCacheKey(aTile);
+        final CacheableBitmapDrawable drawable = getCache().put(key, data, decodeOpts);
+        final PackedTileStore store = getPackedStore();
+        if (drawable != null && store != null) {
+            store.put(key, data);
+        }
+        final EncodedTileCache encoded = getEncodedCache();
+        if (drawable != null && encoded != null) {
+            encoded.put(key, data);
+        }
+        return drawable;
+    }
+
+    /**
+     * Decode a tile into the memory cache, and keep its encoded image in the memory cache of
+     * encoded tiles if it is enabled. Nothing is written to disk.
+     *
+     * @param aTile the tile
+     * @param data the encoded image
+     * @param decodeOpts options used to decode the image, or null
+     * @return the decoded tile, or null if the image could not be decoded
+     */
+    public CacheableBitmapDrawable putTileBytesInMemoryCache(final MapTile aTile, final byte[] data,
+                                                             final BitmapFactory.Options decodeOpts) {
+        final String key = getCacheKey(aTile);
+        final CacheableBitmapDrawable drawable = decodeIntoMemory(key, data, decodeOpts);
+        final EncodedTileCache encoded = getEncodedCache();
+        if (drawable != null && encoded != null) {
+            encoded.put(key, data);
+        }
+        return drawable;
+    }
+
+    /**
+     * Write the encoded image of a tile to the disk cache, as it was received.
+     *
+     * @param aTile the tile
+     * @param data the encoded image
+     * @return true if the image was written
+     */
+    public boolean putTileBytesInDiskCache(final MapTile aTile, final byte[] data) {
+        final PackedTileStore store = getPackedStore();
+        if (store != null) {
+            return store.put(getCacheKey(aTile), data);
+        }
+        return getCache().putInDiskCache(getCacheKey(aTile), data);
+    }
+
     public CacheableBitmapDrawable putTileBitmap(final MapTile aTile, final Bitmap bitmap) {
-        return getCache().put(getCacheKey(aTile), bitmap);
+        final CacheableBitmapDrawable drawable = getCache().put(getCacheKey(aTile), bitmap);
+        final PackedTileStore store = getPackedStore();
+        if (store != null) {
+            store.put(getCacheKey(aTile), compress(bitmap));
+        }
+        return drawable;
     }
 
     public CacheableBitmapDrawable putTile(final MapTile aTile, final Drawable aDrawable) {
@@ -114,7 +288,11 @@ public class MapTileCache implements TileLayerConstants {
                 drawable = getCache().putInMemoryCache(getCacheKey(aTile),
                         ((BitmapDrawable) aDrawable).getBitmap());
             }
-            if (getCache().isDiskCacheEnabled() && !getCache().containsInDiskCache(key)) {
+            if (getPackedStore() != null) {
+                if (!getPackedStore().contains(key)) {
+                    getPackedStore().put(key, compress(((BitmapDrawable) aDrawable).getBitmap()));
+                }
+            } else if (getCache().isDiskCacheEnabled() && !getCache().containsInDiskCache(key)) {
                 if (drawable != null) {
                     getCache().putInDiskCache(getCacheKey(aTile), drawable);
                 } else {
@@ -151,6 +329,13 @@ public class MapTileCache implements TileLayerConstants {
                                                       final Drawable aDrawable) {
         if (aDrawable != null && aDrawable instanceof BitmapDrawable) {
             String key = getCacheKey(aTile);
+            final PackedTileStore store = getPackedStore();
+            if (store != null) {
+                if (!store.contains(key)) {
+                    store.put(key, compress(((BitmapDrawable) aDrawable).getBitmap()));
+                }
+                return null;
+            }
             if (getCache().isDiskCacheEnabled() && !getCache().containsInDiskCache(key)) {
                 return getCache().putInDiskCache(getCacheKey(aTile),
                         ((BitmapDrawable) aDrawable).getBitmap());
@@ -159,29 +344,386 @@ public class MapTileCache implements TileLayerConstants {
         return null;
     }
 
+    /**
+     * Get the HTTP validators stored for a tile, from memory or from the disk cache.
+     *
+     * @param aTile the tile
+     * @return the validators, or null if none are known
+     */
+    public MapTileValidators getTileValidators(final MapTile aTile) {
+        final String key = getCacheKey(aTile);
+        MapTileValidators validators = sValidators.get(key);
+        if (validators == null && isDiskCacheAvailable()) {
+            validators = MapTileValidators.parse(getStringFromDisk(key + VALIDATORS_KEY_SUFFIX));
+            if (validators != null) {
+                sValidators.put(key, validators);
+            }
+        }
+        return validators;
+    }
+
+    /**
+     * Whether a tile is known to be past the lifetime its server gave it, through Cache-Control
+     * max-age or Expires. Only the validators in memory are looked at, so that this can be
+     * called while drawing.
+     *
+     * @param aTile the tile
+     * @return true if the tile is stale and should be refreshed
+     */
+    public boolean isTileExpired(final MapTile aTile) {
+        final MapTileValidators validators = sValidators.get(getCacheKey(aTile));
+        return validators != null && validators.isExpired();
+    }
+
+    /**
+     * Store the HTTP validators of a tile next to it.
+     *
+     * @param aTile the tile
+     * @param validators its validators
+     */
+    public void putTileValidators(final MapTile aTile, final MapTileValidators validators) {
+        if (validators == null) {
+            return;
+        }
+        final String key = getCacheKey(aTile);
+        sValidators.put(key, validators);
+        if (isDiskCacheAvailable()) {
+            putStringInDisk(key + VALIDATORS_KEY_SUFFIX, validators.serialize());
+        }
+    }
+
+    /**
+     * Keep a tile that is in memory resident, even once the memory cache would evict it, within
+     * the budget set by {@link #setPyramidCacheSize(int)}. Used for the tiles of the zoom levels
+     * above and below the one in view, so that zooming can draw them straight away.
+     *
+     * @param aTile the tile
+     * @return whether the tile was in memory and is now pinned
+     */
+    public boolean pinTile(final MapTile aTile) {
+        return getCache().pinInMemoryCache(getCacheKey(aTile));
+    }
+
+    /**
+     * Set the memory kept for pinned tiles, see {@link #pinTile(MapTile)}.
+     *
+     * @param bytes the budget in bytes, 0 to disable pinning
+     */
+    public void setPyramidCacheSize(final int bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Invalid pyramid cache size: " + bytes);
+        }
+        sPyramidCacheSize = bytes;
+        if (sCachedTiles != null) {
+            sCachedTiles.setPinnedCacheMaxSize(bytes);
+        }
+    }
+
+    /**
+     * Set the memory kept for tiles as they were received, between the bitmap memory cache and
+     * the disk, see {@link EncodedTileCache}. A tile that fell out of the bitmap cache but is
+     * still there is decoded again without reading the disk. Encoded tiles are several times
+     * smaller than bitmaps, so a few megabytes go a long way.
+     *
+     * @param bytes the budget in bytes, 0 to disable the encoded cache
+     */
+    public void setEncodedCacheSize(final int bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Invalid encoded cache size: " + bytes);
+        }
+        synchronized (MapTileCache.class) {
+            sEncodedCacheSize = bytes;
+            if (sEncodedTiles != null) {
+                if (bytes == 0) {
+                    sEncodedTiles.clear();
+                    sEncodedTiles = null;
+                } else {
+                    sEncodedTiles.setMaxSize(bytes);
+                }
+            }
+        }
+    }
+
+    public int getEncodedCacheSize() {
+        return sEncodedCacheSize;
+    }
+
+    /**
+     * Set the memory kept for tiles waiting to be written to the disk cache. Tiles are written
+     * behind, in batches, by a background thread instead of the thread that loaded them, and are
+     * read back from memory until they are on disk. Tiles that don't fit are not written.
+     *
+     * @param bytes the budget in bytes, 0 to write tiles as they are loaded
+     */
+    public void setDiskWriteQueueSize(final int bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Invalid disk write queue size: " + bytes);
+        }
+        sDiskWriteQueueSize = bytes;
+        if (sCachedTiles != null) {
+            sCachedTiles.setDiskWriteQueueMaxSize(bytes);
+        }
+    }
+
+    public int getDiskWriteQueueSize() {
+        return sDiskWriteQueueSize;
+    }
+
+    /**
+     * Drop the tiles waiting to be written to the disk cache, to free their memory. They stay in
+     * the memory cache if they are there.
+     *
+     * @return the number of tiles dropped
+     */
+    public int dropPendingDiskWrites() {
+        return sCachedTiles != null ? sCachedTiles.dropPendingDiskWrites() : 0;
+    }
+
+    /**
+     * @return the memory kept for pinned tiles in bytes, by default a quarter of the memory cache
+     */
+    public int getPyramidCacheSize() {
+        if (sPyramidCacheSize < 0) {
+            return BitmapUtils.calculateMemoryCacheSize(context) / 4;
+        }
+        return sPyramidCacheSize;
+    }
+
+    /**
+     * Set how the memory cache chooses the tiles it evicts once it is full, for instance a
+     * {@link MapTileEvictionPolicy}.
+     *
+     * @param policy the policy, or null to evict the least recently used tiles
+     */
+    public void setEvictionPolicy(final BitmapLruCache.EvictionPolicy policy) {
+        sEvictionPolicy = policy;
+        updateEvictionPolicy();
+    }
+
+    /**
+     * Give the memory cache the {@link MapTileCacheManager} as its eviction policy while it
+     * shares the cache out between layers, the policy set otherwise.
+     */
+    static void updateEvictionPolicy() {
+        final BitmapLruCache cache = sCachedTiles;
+        if (cache != null) {
+            final BitmapLruCache.EvictionPolicy policy = getActiveEvictionPolicy();
+            if (policy instanceof MapTileCacheManager) {
+                // Replayed by the memory cache
+                ((MapTileCacheManager) policy).clearEntries();
+            }
+            cache.setEvictionPolicy(policy);
+        }
+    }
+
+    private static BitmapLruCache.EvictionPolicy getActiveEvictionPolicy() {
+        final MapTileCacheManager manager = MapTileCacheManager.getMapTileCacheManager();
+        return manager.isPartitioning() ? manager : sEvictionPolicy;
+    }
+
+    /**
+     * Set the budget of the memory cache, shared by every map view. With several map views, see
+     * {@link MapTileCacheManager} for how it is shared out.
+     *
+     * @param bytes the budget in bytes
+     */
+    public void setMemoryCacheSize(final int bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("Invalid memory cache size: " + bytes);
+        }
+        sMemoryCacheSize = bytes;
+        if (sCachedTiles != null) {
+            sCachedTiles.setMemoryCacheMaxSize(bytes);
+        }
+    }
+
+    /**
+     * @return the budget of the memory cache in bytes, by default depending on the memory of the
+     * device
+     */
+    public int getMemoryCacheSize() {
+        if (sMemoryCacheSize < 0) {
+            return BitmapUtils.calculateMemoryCacheSize(context);
+        }
+        return sMemoryCacheSize;
+    }
+
+    public BitmapLruCache.EvictionPolicy getEvictionPolicy() {
+        return sEvictionPolicy;
+    }
+
+    /**
+     * @return the share of tiles looked up in the memory cache that were found there, from 0
+     * to 1, to compare eviction policies
+     */
+    public float getMemoryCacheHitRate() {
+        final BitmapLruCache cache = getCache();
+        final long hits = cache.getMemoryCacheHitCount();
+        final long requests = hits + cache.getMemoryCacheMissCount();
+        return requests > 0 ? (float) hits / requests : 0;
+    }
+
+    /**
+     * @return the share of decodes that reused the bitmap of an evicted tile instead of
+     * allocating a new one, from 0 to 1
+     */
+    public float getBitmapReuseRate() {
+        final BitmapLruCache cache = getCache();
+        final long hits = cache.getReuseHitCount();
+        final long requests = hits + cache.getReuseMissCount();
+        return requests > 0 ? (float) hits / requests : 0;
+    }
+
+    public void resetMemoryCacheStats() {
+        getCache().resetMemoryCacheStats();
+        getCache().resetReuseStats();
+    }
+
     public boolean containsTile(final MapTile aTile) {
+        final PackedTileStore store = getPackedStore();
+        if (store != null) {
+            final String key = getCacheKey(aTile);
+            return getCache().containsInMemoryCache(key) || store.contains(key);
+        }
         return getCache().contains(getCacheKey(aTile));
     }
 
+    public boolean containsTileInMemory(final MapTile aTile) {
+        return getCache().containsInMemoryCache(getCacheKey(aTile));
+    }
+
     public boolean containsTileInDiskCache(final MapTile aTile) {
+        final PackedTileStore store = getPackedStore();
+        if (store != null) {
+            return store.contains(getCacheKey(aTile));
+        }
         return getCache().isDiskCacheEnabled() && getCache().containsInDiskCache(getCacheKey(aTile));
     }
 
     public void removeTile(final MapTile aTile) {
-        getCache().remove(getCacheKey(aTile));
+        final String key = getCacheKey(aTile);
+        getCache().remove(key);
+        sValidators.remove(key);
+        removeEncoded(key);
+        final PackedTileStore store = getPackedStore();
+        if (store != null) {
+            store.remove(key);
+            store.remove(key + VALIDATORS_KEY_SUFFIX);
+        } else {
+            getCache().removeFromDiskCache(key + VALIDATORS_KEY_SUFFIX);
+        }
     }
 
     public void removeTileFromMemory(final MapTile aTile) {
         String key = getCacheKey(aTile);
         getCache().removeFromMemoryCache(key);
+        removeEncoded(key);
     }
 
     public void purgeMemoryCache() {
         getCache().purgeMemoryCache();
+        final EncodedTileCache encoded = getEncodedCache();
+        if (encoded != null) {
+            encoded.clear();
+        }
     }
 
     public void purgeDiskCache() {
         getCache().purgeDiskCache();
+        final EncodedTileCache encoded = getEncodedCache();
+        if (encoded != null) {
+            encoded.clear();
+        }
+        final PackedTileStore store = getPackedStore();
+        if (store != null) {
+            store.clear();
+        }
+        sValidators.evictAll();
+    }
+
+    private boolean isDiskCacheAvailable() {
+        return getPackedStore() != null || getCache().isDiskCacheEnabled();
+    }
+
+    private CacheableBitmapDrawable getFromDisk(final String key,
+                                                final BitmapFactory.Options decodeOpts) {
+        final EncodedTileCache encoded = getEncodedCache();
+        if (encoded != null) {
+            final byte[] data = encoded.get(key);
+            if (data != null) {
+                return decodeIntoMemory(key, data, decodeOpts);
+            }
+        }
+        final PackedTileStore store = getPackedStore();
+        if (store == null && encoded == null) {
+            return getCache().getFromDiskCache(key, decodeOpts);
+        }
+        // Read as bytes, to keep them in the encoded cache
+        final byte[] data = store != null ? store.get(key) : getCache().getBytesFromDiskCache(key);
+        if (data == null) {
+            return null;
+        }
+        // Decoded into the memory cache, as the disk cache does
+        final CacheableBitmapDrawable drawable = decodeIntoMemory(key, data, decodeOpts);
+        if (drawable == null) {
+            Log.w(TAG, "Removing tile " + key + " that can't be decoded from the disk cache");
+            if (store != null) {
+                store.remove(key);
+            } else {
+                getCache().removeFromDiskCache(key);
+            }
+        } else if (encoded != null) {
+            encoded.put(key, data);
+        }
+        return drawable;
+    }
+
+    private CacheableBitmapDrawable decodeIntoMemory(final String key, final byte[] data,
+                                                     final BitmapFactory.Options decodeOpts) {
+        final Bitmap bitmap = decodeBitmap(data, decodeOpts);
+        return bitmap != null ? getCache().putInMemoryCache(key, bitmap) : null;
+    }
+
+    private void removeEncoded(final String key) {
+        final EncodedTileCache encoded = getEncodedCache();
+        if (encoded != null) {
+            encoded.remove(key);
+        }
+    }
+
+    private String getStringFromDisk(final String key) {
+        final PackedTileStore store = getPackedStore();
+        if (store == null) {
+            return getCache().getStringFromDiskCache(key);
+        }
+        final byte[] data = store.get(key);
+        return data != null ? new String(data, UTF_8) : null;
+    }
+
+    private void putStringInDisk(final String key, final String value) {
+        final PackedTileStore store = getPackedStore();
+        if (store == null) {
+            getCache().putStringInDiskCache(key, value);
+        } else {
+            store.put(key, value.getBytes(UTF_8));
+        }
+    }
+
+    private static byte[] compress(final Bitmap bitmap) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        return out.toByteArray();
+    }
+
+    private static byte[] readFully(final InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8 * 1024];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        in.close();
+        return out.toByteArray();
     }
 
     public CacheableBitmapDrawable createCacheableBitmapDrawable(Bitmap bitmap, MapTile aTile) {
@@ -193,6 +735,11 @@ public class MapTileCache implements TileLayerConstants {
         return getCache().getBitmapFromRemoved(width, height);
     }
 
+    public Bitmap getBitmapFromRemoved(final int width, final int height,
+                                       final Bitmap.Config config) {
+        return getCache().getBitmapFromRemoved(width, height, config);
+    }
+
     public Bitmap decodeBitmap(final byte[] data, final BitmapFactory.Options opts) {
         return getCache().decodeBitmap(new BitmapLruCache.ByteArrayInputStreamProvider(data), opts);
     }
@@ -222,11 +769,42 @@ public class MapTileCache implements TileLayerConstants {
     public void setDiskCacheEnabled(final boolean enabled) {
         if (mDiskCacheEnabled != enabled) {
             mDiskCacheEnabled = enabled;
-            sCachedTiles = null;
+            invalidateCache();
         }
     }
 
     public boolean isDiskCacheEnabled() {
         return mDiskCacheEnabled;
     }
+
+    /**
+     * Keep the tiles on disk in a {@link PackedTileStore}, a few large files read through
+     * memory mappings, instead of one file per tile. Much faster to open and to read with a
+     * large disk cache. Tiles already in the other store are not moved over.
+     *
+     * @param enabled whether to use the packed store
+     */
+    public void setPackedDiskStoreEnabled(final boolean enabled) {
+        if (mPackedDiskStoreEnabled != enabled) {
+            mPackedDiskStoreEnabled = enabled;
+            invalidateCache();
+        }
+    }
+
+    public boolean isPackedDiskStoreEnabled() {
+        return mPackedDiskStoreEnabled;
+    }
+
+    /**
+     * Build the shared cache again on next use, if it doesn't have the disk cache this one
+     * wants. Every map view starts with the disk cache disabled, then enables it: rebuilding
+     * each time would drop the tiles in memory of every other map view.
+     */
+    private void invalidateCache() {
+        final BitmapLruCache cache = sCachedTiles;
+        if (cache != null
+                && cache.isDiskCacheEnabled() != (mDiskCacheEnabled && !mPackedDiskStoreEnabled)) {
+            sCachedTiles = null;
+        }
+    }
 }
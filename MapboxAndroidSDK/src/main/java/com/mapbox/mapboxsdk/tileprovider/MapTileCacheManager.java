@@ -0,0 +1,435 @@
+package com.mapbox.mapboxsdk.tileprovider;
+
+import android.os.SystemClock;
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import uk.co.senab.bitmapcache.BitmapLruCache;
+
+/**
+ * Shares the tile memory cache out between the layers drawing from it, so that one map view
+ * flinging doesn't evict the tiles of every other. Each layer in use joins a partition, keyed by
+ * its cache key, with a weight: the partitions draw on the one budget of the memory cache, each
+ * being guaranteed a share of it in proportion to its weight.
+ * <p/>
+ * A partition may hold more than its share while the others don't need theirs. Once the memory
+ * cache is full, the tiles of the partition furthest over its share are evicted first, and a
+ * partition under its share only loses tiles when every other is under its own. Partitions not
+ * drawn from for {@link #getIdleTimeout()} milliseconds weigh a quarter of their weight, lending
+ * most of their share to the map views in use. Tiles of layers without a partition have no
+ * share and go first.
+ * <p/>
+ * Within a partition, tiles are evicted least recently used first, or by the eviction policy of
+ * its layer, see {@link MapTileLayerBase#setViewportEvictionEnabled(boolean)}.
+ * <p/>
+ * The manager is the eviction policy of the memory cache from the second partition on. With a
+ * single partition, the memory cache evicts as set by
+ * {@link MapTileCache#setEvictionPolicy(BitmapLruCache.EvictionPolicy)}.
+ */
+public class MapTileCacheManager implements BitmapLruCache.SizedEvictionPolicy {
+    private static final String TAG = "MapTileCacheManager";
+
+    public static final float DEFAULT_WEIGHT = 1f;
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 10 * 1000;
+
+    private static final float IDLE_WEIGHT_SHARE = 0.25f;
+
+    private static MapTileCacheManager mapTileCacheManager = null;
+
+    private final HashMap<String, Partition> mPartitions = new HashMap<String, Partition>();
+    private final Partition mUnpartitioned = new Partition();
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+
+    private long mIdleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+
+    // Scores are computed for every tile at once, and stay valid until a tile is used, added or
+    // removed, or the budget changes
+    private boolean mScoresValid = false;
+    private int mScoredBudget;
+
+    private MapTileCacheManager() {
+        super();
+    }
+
+    public static synchronized MapTileCacheManager getMapTileCacheManager() {
+        if (mapTileCacheManager == null) {
+            mapTileCacheManager = new MapTileCacheManager();
+        }
+        return mapTileCacheManager;
+    }
+
+    /**
+     * Start drawing tiles of a layer from the memory cache. Several map views showing the same
+     * layer share its partition, their weights adding up.
+     *
+     * @param cacheKey the cache key of the layer
+     * @param weight the share of the memory cache wanted, relative to the other partitions
+     * @param policy the eviction policy within the partition, or null for least recently used
+     * first
+     */
+    public void join(final String cacheKey, final float weight,
+                     final BitmapLruCache.EvictionPolicy policy) {
+        if (!(weight > 0)) {
+            throw new IllegalArgumentException("Invalid partition weight: " + weight);
+        }
+        final int count;
+        synchronized (this) {
+            Partition partition = mPartitions.get(cacheKey);
+            if (partition == null) {
+                partition = new Partition();
+                mPartitions.put(cacheKey, partition);
+                // Tiles of the layer cached before it joined
+                moveEntries(mUnpartitioned, partition, cacheKey);
+                count = mPartitions.size();
+            } else {
+                count = 0;
+            }
+            partition.members++;
+            partition.weight += weight;
+            partition.lastAccess = SystemClock.uptimeMillis();
+            if (policy != null) {
+                setPolicy(partition, policy);
+            }
+            mScoresValid = false;
+        }
+        if (count > 0) {
+            Log.d(TAG, "Partition of " + cacheKey + " joined, " + count + " partitions");
+        }
+        if (count == 2) {
+            MapTileCache.updateEvictionPolicy();
+        }
+    }
+
+    /**
+     * Stop drawing tiles of a layer, with the weight it was joined with. Once the last map view
+     * showing a layer leaves, its tiles are the first evicted.
+     *
+     * @param cacheKey the cache key of the layer
+     * @param weight the weight given to {@link #join}
+     */
+    public void leave(final String cacheKey, final float weight) {
+        final int count;
+        synchronized (this) {
+            final Partition partition = mPartitions.get(cacheKey);
+            if (partition == null) {
+                return;
+            }
+            partition.members--;
+            partition.weight -= weight;
+            if (partition.members > 0) {
+                mScoresValid = false;
+                return;
+            }
+            mPartitions.remove(cacheKey);
+            setPolicy(partition, null);
+            moveEntries(partition, mUnpartitioned, null);
+            count = mPartitions.size();
+            mScoresValid = false;
+        }
+        Log.d(TAG, "Partition of " + cacheKey + " left, " + count + " partitions");
+        if (count == 1) {
+            MapTileCache.updateEvictionPolicy();
+        }
+    }
+
+    /**
+     * Set how the tiles of a partition are evicted once it is over its share.
+     *
+     * @param cacheKey the cache key of the layer
+     * @param policy the policy, or null for least recently used first
+     */
+    public synchronized void setPolicy(final String cacheKey,
+                                       final BitmapLruCache.EvictionPolicy policy) {
+        final Partition partition = mPartitions.get(cacheKey);
+        if (partition != null) {
+            setPolicy(partition, policy);
+            mScoresValid = false;
+        }
+    }
+
+    /**
+     * @return whether the memory cache is shared out, between two partitions or more
+     */
+    public synchronized boolean isPartitioning() {
+        return mPartitions.size() > 1;
+    }
+
+    /**
+     * @param timeoutMs how long a partition may go without drawing a tile before it lends most of
+     * its share to the others, in milliseconds
+     */
+    public synchronized void setIdleTimeout(final long timeoutMs) {
+        if (timeoutMs <= 0) {
+            throw new IllegalArgumentException("Invalid idle timeout: " + timeoutMs);
+        }
+        mIdleTimeoutMs = timeoutMs;
+        mScoresValid = false;
+    }
+
+    public synchronized long getIdleTimeout() {
+        return mIdleTimeoutMs;
+    }
+
+    public synchronized int getPartitionCount() {
+        return mPartitions.size();
+    }
+
+    /**
+     * @param cacheKey the cache key of the layer
+     * @return the size of the tiles of its partition in the memory cache in bytes
+     */
+    public synchronized int getPartitionSize(final String cacheKey) {
+        final Partition partition = mPartitions.get(cacheKey);
+        return partition != null ? partition.size : 0;
+    }
+
+    /**
+     * @param cacheKey the cache key of the layer
+     * @return the memory guaranteed to its partition in bytes, at the current budget of the
+     * memory cache
+     */
+    public int getPartitionShare(final String cacheKey) {
+        final int budget = getBudget();
+        synchronized (this) {
+            final Partition partition = mPartitions.get(cacheKey);
+            if (partition == null) {
+                return 0;
+            }
+            final long now = SystemClock.uptimeMillis();
+            return (int) (budget * getWeight(partition, now) / getTotalWeight(now));
+        }
+    }
+
+    /**
+     * Forget the tiles of a memory cache that is no longer used, or that is about to be replayed
+     * by {@link BitmapLruCache#setEvictionPolicy(BitmapLruCache.EvictionPolicy)}.
+     */
+    synchronized void clearEntries() {
+        mEntries.clear();
+        mUnpartitioned.clear();
+        for (final Partition partition : mPartitions.values()) {
+            partition.clear();
+        }
+        mScoresValid = false;
+    }
+
+    @Override
+    public synchronized void onAdded(final String url, final int size) {
+        Entry entry = mEntries.get(url);
+        if (entry == null) {
+            final String layer = getLayer(url);
+            final Partition partition = mPartitions.get(layer);
+            entry = new Entry(url, layer, partition != null ? partition : mUnpartitioned);
+            mEntries.put(url, entry);
+            entry.partition.entries.put(url, entry);
+        } else {
+            entry.partition.size -= entry.size;
+            entry.partition.entries.get(url);
+        }
+        entry.size = size;
+        entry.partition.size += size;
+        onUse(entry);
+    }
+
+    @Override
+    public synchronized void onAccess(final String url) {
+        final Entry entry = mEntries.get(url);
+        if (entry == null) {
+            onAdded(url, 0);
+            return;
+        }
+        // Moves it to the end of the access order
+        entry.partition.entries.get(url);
+        onUse(entry);
+    }
+
+    @Override
+    public synchronized void onRemoved(final String url) {
+        final Entry entry = mEntries.remove(url);
+        if (entry == null) {
+            return;
+        }
+        final Partition partition = entry.partition;
+        partition.entries.remove(url);
+        partition.size -= entry.size;
+        if (partition.policy != null) {
+            partition.policy.onRemoved(url);
+        }
+        mScoresValid = false;
+    }
+
+    @Override
+    public float getEvictionScore(final String url) {
+        // Read outside of this lock, the memory cache calls in with its own held
+        final int budget = getBudget();
+        synchronized (this) {
+            if (!mScoresValid || budget != mScoredBudget) {
+                computeScores(budget);
+            }
+            final Entry entry = mEntries.get(url);
+            return entry != null ? entry.score : Float.MAX_VALUE;
+        }
+    }
+
+    private void onUse(final Entry entry) {
+        final Partition partition = entry.partition;
+        partition.lastAccess = SystemClock.uptimeMillis();
+        if (partition.policy != null) {
+            partition.policy.onAccess(entry.url);
+        }
+        mScoresValid = false;
+    }
+
+    /**
+     * Score every tile by how far over its share its partition would be before the tile is
+     * evicted, so that evicting the highest scores first always takes from the partition
+     * furthest over its share.
+     */
+    private void computeScores(final int budget) {
+        final long now = SystemClock.uptimeMillis();
+        final float totalWeight = getTotalWeight(now);
+        scorePartition(mUnpartitioned, 0, budget);
+        for (final Partition partition : mPartitions.values()) {
+            scorePartition(partition, (long) (budget * getWeight(partition, now) / totalWeight),
+                    budget);
+        }
+        mScoresValid = true;
+        mScoredBudget = budget;
+    }
+
+    private static void scorePartition(final Partition partition, final long share,
+                                       final int budget) {
+        if (partition.entries.isEmpty()) {
+            return;
+        }
+        final List<Entry> order = new ArrayList<Entry>(partition.entries.values());
+        final BitmapLruCache.EvictionPolicy policy = partition.policy;
+        if (policy != null) {
+            // Highest scores of the partition's policy first, as the memory cache does
+            final long[] sorted = new long[order.size()];
+            for (int i = 0; i < sorted.length; i++) {
+                final float value = policy.getEvictionScore(order.get(i).url);
+                final float score = value > 0 ? value : 0;
+                sorted[i] = ((long) -Float.floatToIntBits(score) << 32) | i;
+            }
+            Arrays.sort(sorted);
+            final List<Entry> entries = new ArrayList<Entry>(order);
+            for (int i = 0; i < sorted.length; i++) {
+                order.set(i, entries.get((int) sorted[i]));
+            }
+        }
+        // The share is at most the budget: scores are never negative
+        long excess = partition.size - share;
+        for (final Entry entry : order) {
+            entry.score = (excess + budget) / 1024f;
+            excess -= entry.size;
+        }
+    }
+
+    private float getWeight(final Partition partition, final long now) {
+        return now - partition.lastAccess > mIdleTimeoutMs ? partition.weight * IDLE_WEIGHT_SHARE
+                : partition.weight;
+    }
+
+    private float getTotalWeight(final long now) {
+        float total = 0;
+        for (final Partition partition : mPartitions.values()) {
+            total += getWeight(partition, now);
+        }
+        return total > 0 ? total : 1;
+    }
+
+    private void setPolicy(final Partition partition, final BitmapLruCache.EvictionPolicy policy) {
+        partition.policy = policy;
+        if (policy != null) {
+            for (final String url : partition.entries.keySet()) {
+                policy.onAccess(url);
+            }
+        }
+    }
+
+    /**
+     * Move the tiles of {@code layer}, or all of them if null, in their access order.
+     */
+    private void moveEntries(final Partition from, final Partition to, final String layer) {
+        final List<Entry> moved = new ArrayList<Entry>();
+        for (final Entry entry : from.entries.values()) {
+            if (layer == null || layer.equals(entry.layer)) {
+                moved.add(entry);
+            }
+        }
+        for (final Entry entry : moved) {
+            from.entries.remove(entry.url);
+            from.size -= entry.size;
+            entry.partition = to;
+            to.entries.put(entry.url, entry);
+            to.size += entry.size;
+            if (to.policy != null) {
+                to.policy.onAccess(entry.url);
+            }
+        }
+    }
+
+    private static int getBudget() {
+        final BitmapLruCache cache = MapTileCache.sCachedTiles;
+        return cache != null ? cache.getMemoryCacheMaxSize() : 0;
+    }
+
+    /**
+     * @return the cache key of the layer of a tile, before its coordinates, see
+     * {@link MapTile#getCacheKey()}
+     */
+    private static String getLayer(final String url) {
+        int end = url.length();
+        for (int i = 0; i < 3 && end > 0; i++) {
+            end = url.lastIndexOf('/', end - 1);
+        }
+        return end > 0 ? url.substring(0, end) : "";
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder builder = new StringBuilder("MapTileCacheManager {");
+        for (final Map.Entry<String, Partition> partition : mPartitions.entrySet()) {
+            builder.append(partition.getKey()).append('=')
+                    .append(partition.getValue().size / 1024).append("KB, ");
+        }
+        return builder.append("unpartitioned=").append(mUnpartitioned.size / 1024)
+                .append("KB}").toString();
+    }
+
+    private static final class Partition {
+        float weight;
+        int members;
+        BitmapLruCache.EvictionPolicy policy;
+        int size;
+        long lastAccess;
+
+        // In access order, the eldest entry is the least recently used
+        final LinkedHashMap<String, Entry> entries =
+                new LinkedHashMap<String, Entry>(64, 0.75f, true);
+
+        void clear() {
+            entries.clear();
+            size = 0;
+        }
+    }
+
+    private static final class Entry {
+        final String url;
+        final String layer;
+        Partition partition;
+        int size;
+        float score;
+
+        Entry(final String url, final String layer, final Partition partition) {
+            this.url = url;
+            this.layer = layer;
+            this.partition = partition;
+        }
+    }
+}
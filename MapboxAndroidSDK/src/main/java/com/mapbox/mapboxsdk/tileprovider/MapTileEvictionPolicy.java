@@ -0,0 +1,127 @@
+package com.mapbox.mapboxsdk.tileprovider;
+
+import android.os.SystemClock;
+import java.util.HashMap;
+import uk.co.senab.bitmapcache.BitmapLruCache;
+
+/**
+ * Evicts tiles from the memory cache by how useful they are likely to be again, instead of by
+ * how recently they were drawn alone. Each tile is scored by:
+ * <ul>
+ * <li>the time since its second to last use, as in LRU-2: a tile drawn once while flinging
+ * goes before a tile that keeps coming back into view. Draws less than {@link
+ * #CORRELATED_USE_PERIOD_MS} apart count as a single use, since every frame draws every
+ * tile in view.</li>
+ * <li>its distance from the viewport.</li>
+ * <li>its zoom level: tiles of the zoom levels above the one in view cover more of the map and
+ * are what zooming out is drawn from, so they are kept longer than those below it.</li>
+ * </ul>
+ * The lowest scores are kept, so a fling across tiles at a high zoom level no longer pushes out
+ * the lower zoom tiles around the viewport.
+ */
+public class MapTileEvictionPolicy implements BitmapLruCache.EvictionPolicy {
+
+    public static final long CORRELATED_USE_PERIOD_MS = 1000;
+
+    /**
+     * How long ago a tile used only once counts as having been used before that.
+     */
+    private static final long SINGLE_USE_AGE_MS = 30 * 1000;
+
+    /**
+     * The time since the second to last use weighing as much as a tile of distance.
+     */
+    private static final float MS_PER_TILE = 5000f;
+
+    /**
+     * The cost of each zoom level between a tile and the one in view, in tiles of distance.
+     */
+    private static final float CHILD_ZOOM_LEVEL_COST = 4f;
+    private static final float PARENT_ZOOM_LEVEL_COST = 1f;
+
+    /**
+     * Score of entries that aren't tiles or haven't been seen.
+     */
+    private static final float UNKNOWN_SCORE = 1000f;
+
+    private final MapTileViewport mViewport;
+    private final HashMap<String, Use> mUses = new HashMap<String, Use>();
+
+    /**
+     * @param viewport the viewport distances are measured from
+     */
+    public MapTileEvictionPolicy(final MapTileViewport viewport) {
+        mViewport = viewport;
+    }
+
+    @Override
+    public synchronized void onAccess(final String url) {
+        final long now = SystemClock.uptimeMillis();
+        Use use = mUses.get(url);
+        if (use == null) {
+            use = Use.parse(url);
+            mUses.put(url, use);
+            use.start = now;
+        } else if (now - use.last > CORRELATED_USE_PERIOD_MS) {
+            use.previousStart = use.start;
+            use.start = now;
+        }
+        use.last = now;
+    }
+
+    @Override
+    public synchronized void onRemoved(final String url) {
+        mUses.remove(url);
+    }
+
+    @Override
+    public synchronized float getEvictionScore(final String url) {
+        final Use use = mUses.get(url);
+        if (use == null || use.z < 0) {
+            return UNKNOWN_SCORE;
+        }
+        final long now = SystemClock.uptimeMillis();
+        final long age = use.previousStart > 0 ? now - use.previousStart
+                : now - use.start + SINGLE_USE_AGE_MS;
+        float score = age / MS_PER_TILE;
+
+        final int zoom = mViewport.getZoom();
+        if (zoom >= 0) {
+            final int dz = use.z - zoom;
+            // From the edge of tiles above the zoom level in view, they may cover the viewport
+            final float halfExtent = dz < 0 ? (1 << Math.min(-dz, 30)) / 2f : 0.5f;
+            score += Math.max(0, mViewport.getDistance(use.z, use.x, use.y) - halfExtent);
+            score += dz > 0 ? dz * CHILD_ZOOM_LEVEL_COST : -dz * PARENT_ZOOM_LEVEL_COST;
+        }
+        return score;
+    }
+
+    private static final class Use {
+        int z = -1;
+        int x;
+        int y;
+        long start;
+        long previousStart;
+        long last;
+
+        /**
+         * Read the tile coordinates at the end of a cache key, see {@link MapTile#getCacheKey()}.
+         */
+        static Use parse(final String url) {
+            final Use use = new Use();
+            final int yStart = url.lastIndexOf('/');
+            final int xStart = yStart > 0 ? url.lastIndexOf('/', yStart - 1) : -1;
+            final int zStart = xStart > 0 ? url.lastIndexOf('/', xStart - 1) : -1;
+            if (zStart >= 0) {
+                try {
+                    use.z = Integer.parseInt(url.substring(zStart + 1, xStart));
+                    use.x = Integer.parseInt(url.substring(xStart + 1, yStart));
+                    use.y = Integer.parseInt(url.substring(yStart + 1));
+                } catch (final NumberFormatException e) {
+                    use.z = -1;
+                }
+            }
+            return use;
+        }
+    }
+}
@@ -0,0 +1,399 @@
+package com.mapbox.mapboxsdk.tileprovider;
+
+import android.graphics.BitmapFactory;
+import android.os.SystemClock;
+import android.util.Log;
+import com.mapbox.mapboxsdk.tileprovider.modules.ConfigurablePriorityThreadFactory;
+import com.mapbox.mapboxsdk.tileprovider.tilesource.ITileLayer;
+import com.mapbox.mapboxsdk.tileprovider.tilesource.TileLayer;
+import com.mapbox.mapboxsdk.util.GeometryMath;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The tiles a layer was showing when its map view was detached, so that the next launch can
+ * draw them from memory. The memory cache starts empty with every process: without this the
+ * first frame goes through the disk, or the network, for every tile in view.
+ * <p/>
+ * {@link #save()} writes a small index of the last viewport, a zoom level and the tile
+ * coordinates from the centre out, in the app's cache directory. {@link #preload()} reads the
+ * tiles listed back from the disk cache into the memory cache on a background thread, within a
+ * time budget, as soon as the tile source is set. The tile providers leave the tiles being
+ * preloaded alone, and the first frame drawn once the preload is done reports how much loading
+ * it was spared, see {@link #getSavedFirstFrameTime()}.
+ * <p/>
+ * Only useful with the disk cache enabled, the index isn't written otherwise.
+ */
+public class MapTileHotSet {
+    private static final String TAG = "MapTileHotSet";
+
+    public static final long DEFAULT_PRELOAD_BUDGET_MS = 250;
+
+    /**
+     * Tiles beyond this many are not saved, a screen rarely shows more.
+     */
+    public static final int MAXIMUM_TILES = 64;
+
+    private static final String HOT_SET_SUBDIR = "mapbox_hot_tiles";
+    private static final int VERSION = 1;
+
+    private final MapTileLayerBase mProvider;
+
+    private volatile boolean mEnabled = true;
+    private volatile long mPreloadBudgetMs = DEFAULT_PRELOAD_BUDGET_MS;
+
+    // Tiles read back by the preload, until the first frame after it is drawn
+    private MapTileIndex<MapTile> mPreloaded = null;
+    // Tiles listed in the index the preload hasn't got to yet
+    private final MapTileIndex<MapTile> mInFlight = new MapTileIndex<MapTile>(MAXIMUM_TILES);
+    private volatile boolean mPreloading = false;
+    private volatile boolean mFirstFrameReported = true;
+
+    private final AtomicLong mPreloadedCount = new AtomicLong(0);
+    private final AtomicLong mPreloadTimeMs = new AtomicLong(0);
+    private final AtomicLong mTileLoadTimeMs = new AtomicLong(0);
+    private final AtomicLong mTileLoadCount = new AtomicLong(0);
+    private final AtomicLong mSavedFirstFrameTimeMs = new AtomicLong(0);
+
+    public MapTileHotSet(final MapTileLayerBase provider) {
+        mProvider = provider;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public void setEnabled(final boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * @param budgetMs how long the preload may read tiles for, in milliseconds, after which the
+     * remaining tiles are left to the tile providers
+     */
+    public void setPreloadBudget(final long budgetMs) {
+        if (budgetMs < 0) {
+            throw new IllegalArgumentException("Invalid preload budget: " + budgetMs);
+        }
+        mPreloadBudgetMs = budgetMs;
+    }
+
+    public long getPreloadBudget() {
+        return mPreloadBudgetMs;
+    }
+
+    /**
+     * Write the tiles of the viewport last drawn, replacing those saved before, on a background
+     * thread. The tiles closest to the centre of the viewport are kept when there are more than
+     * {@link #MAXIMUM_TILES}.
+     *
+     * @return whether an index is being written
+     */
+    public boolean save() {
+        final MapTileViewport viewport = mProvider.getViewport();
+        final String cacheKey = mProvider.getCacheKey();
+        final int zoom = viewport.getZoom();
+        if (!mEnabled || zoom < 0 || mProvider.hasNoSource()
+                || !mProvider.mTileCache.isDiskCacheEnabled()) {
+            return false;
+        }
+        final int left = viewport.getLeft();
+        final int top = Math.max(viewport.getTop(), 0);
+        final int right = Math.min(viewport.getRight(), left + (1 << zoom) - 1);
+        final int bottom = Math.min(viewport.getBottom(), (1 << zoom) - 1);
+        if (right < left || bottom < top) {
+            return false;
+        }
+
+        final File file = getFile(cacheKey);
+        final Thread thread = new ConfigurablePriorityThreadFactory(Thread.MIN_PRIORITY,
+                TAG).newThread(new Runnable() {
+            @Override
+            public void run() {
+                save(file, cacheKey, zoom, getTilesFromCentre(left, top, right, bottom));
+            }
+        });
+        thread.start();
+        return true;
+    }
+
+    /**
+     * @return the x and y of the tiles of the viewport, closest to its centre first, at most
+     * {@link #MAXIMUM_TILES} of them
+     */
+    private static int[][] getTilesFromCentre(final int left, final int top, final int right,
+                                              final int bottom) {
+        final int width = right - left + 1;
+        final int total = width * (bottom - top + 1);
+        // Twice the distance to the centre, to stay in integers
+        final int centreX = left + right;
+        final int centreY = top + bottom;
+        final long[] order = new long[total];
+        for (int i = 0; i < total; i++) {
+            final int dx = 2 * (left + i % width) - centreX;
+            final int dy = 2 * (top + i / width) - centreY;
+            order[i] = ((long) (dx * dx + dy * dy) << 32) | i;
+        }
+        Arrays.sort(order);
+        final int count = Math.min(total, MAXIMUM_TILES);
+        final int[][] tiles = new int[count][2];
+        for (int i = 0; i < count; i++) {
+            final int index = (int) order[i];
+            tiles[i][0] = left + index % width;
+            tiles[i][1] = top + index / width;
+        }
+        return tiles;
+    }
+
+    private void save(final File file, final String cacheKey, final int zoom,
+                      final int[][] tiles) {
+        final File temporary = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            if (!file.getParentFile().exists() && !file.getParentFile().mkdirs()) {
+                throw new FileNotFoundException("can't create " + file.getParent());
+            }
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+            out.writeInt(VERSION);
+            out.writeUTF(cacheKey);
+            out.writeByte(zoom);
+            out.writeShort(tiles.length);
+            for (final int[] tile : tiles) {
+                out.writeInt(GeometryMath.mod(tile[0], 1 << zoom));
+                out.writeInt(tile[1]);
+            }
+            out.close();
+            out = null;
+            if (!temporary.renameTo(file)) {
+                throw new IOException("can't rename " + temporary + " to " + file);
+            }
+            Log.d(TAG, "Saved " + tiles.length + " tiles of " + cacheKey + " at zoom level "
+                    + zoom);
+        } catch (final IOException e) {
+            Log.w(TAG, "Error saving the hot tiles of " + cacheKey, e);
+            temporary.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (final IOException ignored) {
+                    // already failed
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the tiles last saved for this layer back from the disk cache into the memory cache,
+     * on a background thread. Does nothing if nothing was saved or if a preload is running.
+     * Called when the tile source or the disk cache is set up, ahead of the first frame.
+     */
+    public void preload() {
+        if (!mEnabled || mPreloading || mProvider.hasNoSource()
+                || !mProvider.mTileCache.isDiskCacheEnabled()) {
+            return;
+        }
+        final String cacheKey = mProvider.getCacheKey();
+        final File file = getFile(cacheKey);
+        if (!file.exists()) {
+            return;
+        }
+        mPreloading = true;
+        final Thread thread = new ConfigurablePriorityThreadFactory(Thread.NORM_PRIORITY,
+                TAG).newThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    preload(file, cacheKey);
+                } finally {
+                    mPreloading = false;
+                }
+            }
+        });
+        thread.start();
+    }
+
+    /**
+     * @param tile a tile about to be requested from the tile providers
+     * @return whether the preload is about to read the tile, in which case it shouldn't be
+     * requested: the map is redrawn once the preload is done
+     */
+    public boolean isPreloading(final MapTile tile) {
+        if (!mPreloading) {
+            return false;
+        }
+        synchronized (this) {
+            return mInFlight.containsKey(tile);
+        }
+    }
+
+    private void preload(final File file, final String cacheKey) {
+        final MapTileIndex<MapTile> preloaded = new MapTileIndex<MapTile>(MAXIMUM_TILES);
+        final long start = SystemClock.uptimeMillis();
+        final long budget = mPreloadBudgetMs;
+        final ITileLayer source = mProvider.getTileSource();
+        final BitmapFactory.Options decodeOpts =
+                source instanceof TileLayer ? ((TileLayer) source).getDecodeOptions() : null;
+        DataInputStream in = null;
+        int read = 0;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != VERSION || !cacheKey.equals(in.readUTF())) {
+                Log.w(TAG, "Ignoring the hot tiles saved in " + file);
+                return;
+            }
+            final int zoom = in.readByte();
+            final int count = in.readShort();
+            final MapTile[] tiles = new MapTile[count];
+            final int layerId = MapTile.getLayerId(cacheKey);
+            for (int i = 0; i < count; i++) {
+                tiles[i] = new MapTile(cacheKey, layerId, zoom, in.readInt(), in.readInt());
+            }
+            synchronized (this) {
+                for (final MapTile tile : tiles) {
+                    mInFlight.put(tile, tile);
+                }
+            }
+            for (; read < count && SystemClock.uptimeMillis() - start < budget; read++) {
+                final MapTile tile = tiles[read];
+                if (!mProvider.mTileCache.containsTileInMemory(tile)) {
+                    final long tileStart = SystemClock.uptimeMillis();
+                    if (mProvider.mTileCache.getMapTileFromDisk(tile, decodeOpts) != null) {
+                        mTileLoadTimeMs.addAndGet(SystemClock.uptimeMillis() - tileStart);
+                        mTileLoadCount.incrementAndGet();
+                        preloaded.put(tile, tile);
+                    }
+                }
+                synchronized (this) {
+                    mInFlight.remove(tile);
+                }
+            }
+        } catch (final IOException e) {
+            Log.w(TAG, "Error reading the hot tiles of " + cacheKey, e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (final IOException ignored) {
+                    // nothing was written
+                }
+            }
+        }
+
+        final long elapsed = SystemClock.uptimeMillis() - start;
+        final int loaded = preloaded.size();
+        final boolean listed;
+        synchronized (this) {
+            // Tiles past the budget are left to the tile providers
+            listed = !mInFlight.isEmpty() || read > 0;
+            mInFlight.clear();
+            if (loaded > 0) {
+                // Measured on the next frame
+                mPreloaded = preloaded;
+                mFirstFrameReported = false;
+            }
+        }
+        mPreloadedCount.addAndGet(loaded);
+        mPreloadTimeMs.addAndGet(elapsed);
+        Log.i(TAG, "Preloaded " + loaded + " of " + read + " tiles of " + cacheKey + " in "
+                + elapsed + "ms");
+        if (listed) {
+            // Frames drawn meanwhile didn't request these tiles
+            mProvider.onTilesPreloaded();
+        }
+    }
+
+    /**
+     * Called with the tiles of every frame drawn. The first frame after a preload completed
+     * counts the tiles it found in memory thanks to it, each of which would otherwise have been
+     * read from the disk. Tile coordinates may run past the edges of the world, as in the draw loop.
+     */
+    public void onDraw(final int zoom, final int left, final int top, final int right,
+                       final int bottom) {
+        if (mFirstFrameReported) {
+            return;
+        }
+        final MapTileIndex<MapTile> preloaded;
+        synchronized (this) {
+            if (mFirstFrameReported) {
+                return;
+            }
+            mFirstFrameReported = true;
+            preloaded = mPreloaded;
+            mPreloaded = null;
+        }
+        final int layerId = MapTile.getLayerId(mProvider.getCacheKey());
+        final int worldTiles = 1 << zoom;
+        int hits = 0;
+        int loaded;
+        synchronized (this) {
+            loaded = preloaded.size();
+            for (int y = Math.max(top, 0); y <= Math.min(bottom, worldTiles - 1); y++) {
+                for (int x = left; x <= right; x++) {
+                    final MapTile tile = preloaded.get(
+                            MapTile.packKey(layerId, zoom, GeometryMath.mod(x, worldTiles), y));
+                    if (tile != null && mProvider.mTileCache.containsTileInMemory(tile)) {
+                        hits++;
+                    }
+                }
+            }
+        }
+        // As long as a tile took to read and decode during the preload, on average
+        final long saved = hits * mTileLoadTimeMs.get() / Math.max(1, mTileLoadCount.get());
+        mSavedFirstFrameTimeMs.addAndGet(saved);
+        Log.i(TAG, "First frame found " + hits + " of " + loaded
+                + " preloaded tiles in memory, saving about " + saved + "ms of loading");
+    }
+
+    /**
+     * @return the number of tiles read back into memory by preloads
+     */
+    public long getPreloadedCount() {
+        return mPreloadedCount.get();
+    }
+
+    /**
+     * @return the time spent preloading, in milliseconds
+     */
+    public long getPreloadTime() {
+        return mPreloadTimeMs.get();
+    }
+
+    /**
+     * @return an estimate of the loading time the first frames after preloads were spared, in
+     * milliseconds
+     */
+    public long getSavedFirstFrameTime() {
+        return mSavedFirstFrameTimeMs.get();
+    }
+
+    public void resetStats() {
+        mPreloadedCount.set(0);
+        mPreloadTimeMs.set(0);
+        mTileLoadTimeMs.set(0);
+        mTileLoadCount.set(0);
+        mSavedFirstFrameTimeMs.set(0);
+    }
+
+    private File getFile(final String cacheKey) {
+        // Cache keys hold several source names, and slashes
+        return new File(new File(mProvider.context.getCacheDir(), HOT_SET_SUBDIR),
+                Integer.toHexString(cacheKey.hashCode()));
+    }
+
+    @Override
+    public String toString() {
+        return "MapTileHotSet {preloaded=" + getPreloadedCount() + ", preloadTime="
+                + getPreloadTime() + "ms, savedFirstFrameTime=" + getSavedFirstFrameTime()
+                + "ms}";
+    }
+}
@@ -0,0 +1,181 @@
+package com.mapbox.mapboxsdk.tileprovider;
+
+import java.util.Arrays;
+
+/**
+ * A map from tiles, identified by their packed key (see {@link MapTile#getKey()}), to values.
+ * Keys are stored as primitives in an open addressing table with linear probing, so looking a
+ * tile up neither allocates nor hashes or compares strings, unlike a {@code HashMap} keyed by
+ * {@link MapTile} or by cache key.
+ * <p/>
+ * Not thread safe, callers synchronize as they did around the maps this replaces.
+ *
+ * @param <V> the type of the values
+ */
+public class MapTileIndex<V> {
+
+    private static final long FREE = -1L;
+    private static final float MAXIMUM_LOAD = 0.6f;
+
+    private long[] mKeys;
+    private Object[] mValues;
+    private int mMask;
+    private int mSize;
+    private int mResizeAt;
+
+    public MapTileIndex() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize the number of tiles expected, so that the table doesn't need to grow
+     */
+    public MapTileIndex(final int expectedSize) {
+        if (expectedSize < 0) {
+            throw new IllegalArgumentException("Invalid tile index size: " + expectedSize);
+        }
+        int capacity = 8;
+        while (capacity * MAXIMUM_LOAD < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(final int capacity) {
+        mKeys = new long[capacity];
+        Arrays.fill(mKeys, FREE);
+        mValues = new Object[capacity];
+        mMask = capacity - 1;
+        mResizeAt = (int) (capacity * MAXIMUM_LOAD);
+    }
+
+    private int slot(final long key) {
+        // Fibonacci hashing spreads the packed coordinates over the whole table
+        final long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mMask;
+    }
+
+    private int find(final long key) {
+        int i = slot(key);
+        long k;
+        while ((k = mKeys[i]) != FREE) {
+            if (k == key) {
+                return i;
+            }
+            i = (i + 1) & mMask;
+        }
+        return -1;
+    }
+
+    public V get(final MapTile tile) {
+        return get(tile.getKey());
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(final long key) {
+        final int i = find(key);
+        return i >= 0 ? (V) mValues[i] : null;
+    }
+
+    public boolean containsKey(final MapTile tile) {
+        return find(tile.getKey()) >= 0;
+    }
+
+    public boolean containsKey(final long key) {
+        return find(key) >= 0;
+    }
+
+    public V put(final MapTile tile, final V value) {
+        return put(tile.getKey(), value);
+    }
+
+    /**
+     * @param key a packed tile key, see {@link MapTile#packKey(int, int, int, int)}
+     * @param value the value, not null
+     * @return the value previously stored for the key, or null
+     */
+    @SuppressWarnings("unchecked")
+    public V put(final long key, final V value) {
+        if (key < 0 || value == null) {
+            throw new IllegalArgumentException("Invalid tile index entry: " + key + "=" + value);
+        }
+        int i = slot(key);
+        long k;
+        while ((k = mKeys[i]) != FREE) {
+            if (k == key) {
+                final V previous = (V) mValues[i];
+                mValues[i] = value;
+                return previous;
+            }
+            i = (i + 1) & mMask;
+        }
+        mKeys[i] = key;
+        mValues[i] = value;
+        if (++mSize > mResizeAt) {
+            resize(mKeys.length << 1);
+        }
+        return null;
+    }
+
+    public V remove(final MapTile tile) {
+        return remove(tile.getKey());
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(final long key) {
+        int i = find(key);
+        if (i < 0) {
+            return null;
+        }
+        final V previous = (V) mValues[i];
+        // Shift the entries after it back, so that no probe sequence is left with a hole
+        int next = (i + 1) & mMask;
+        long k;
+        while ((k = mKeys[next]) != FREE) {
+            final int home = slot(k);
+            // Move the entry if its home slot isn't between the hole and its slot
+            if (((next - home) & mMask) >= ((next - i) & mMask)) {
+                mKeys[i] = k;
+                mValues[i] = mValues[next];
+                i = next;
+            }
+            next = (next + 1) & mMask;
+        }
+        mKeys[i] = FREE;
+        mValues[i] = null;
+        mSize--;
+        return previous;
+    }
+
+    private void resize(final int capacity) {
+        final long[] keys = mKeys;
+        final Object[] values = mValues;
+        allocate(capacity);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != FREE) {
+                int j = slot(keys[i]);
+                while (mKeys[j] != FREE) {
+                    j = (j + 1) & mMask;
+                }
+                mKeys[j] = keys[i];
+                mValues[j] = values[i];
+            }
+        }
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public void clear() {
+        if (mSize > 0) {
+            Arrays.fill(mKeys, FREE);
+            Arrays.fill(mValues, null);
+            mSize = 0;
+        }
+    }
+}
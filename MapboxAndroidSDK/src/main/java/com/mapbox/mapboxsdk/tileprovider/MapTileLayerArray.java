@@ -2,15 +2,16 @@ package com.mapbox.mapboxsdk.tileprovider;
 
 import android.content.Context;
 import android.graphics.drawable.Drawable;
+import android.util.Log;
 import com.mapbox.mapboxsdk.geometry.BoundingBox;
 import com.mapbox.mapboxsdk.geometry.LatLng;
+import com.mapbox.mapboxsdk.tileprovider.modules.MapTileDownloader;
 import com.mapbox.mapboxsdk.tileprovider.modules.MapTileModuleLayerBase;
 import com.mapbox.mapboxsdk.tileprovider.modules.NetworkAvailabilityCheck;
 import com.mapbox.mapboxsdk.tileprovider.tilesource.ITileLayer;
 import com.mapbox.mapboxsdk.util.BitmapUtils;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 
@@ -32,11 +33,14 @@ import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
  */
 public class MapTileLayerArray extends MapTileLayerBase {
 
-    protected final HashMap<MapTile, MapTileRequestState> mWorking;
+    protected final MapTileIndex<MapTileRequestState> mWorking;
 
     protected final List<MapTileModuleLayerBase> mTileProviderList;
 
-    protected final List<MapTile> mUnaccessibleTiles;
+    protected final MapTileNegativeCache mFailedTiles = new MapTileNegativeCache();
+
+    // Whether tiles failed while offline, to be retried as soon as the network comes back
+    private volatile boolean mFailedOffline = false;
 
     protected final NetworkAvailabilityCheck mNetworkAvailabilityCheck;
 
@@ -61,8 +65,7 @@ public class MapTileLayerArray extends MapTileLayerBase {
                              final MapTileModuleLayerBase[] pTileProviderArray) {
         super(context, pTileSource);
 
-        mWorking = new HashMap<MapTile, MapTileRequestState>();
-        mUnaccessibleTiles = new ArrayList<MapTile>();
+        mWorking = new MapTileIndex<MapTileRequestState>();
 
         mNetworkAvailabilityCheck = new NetworkAvailabilityCheck(context);
 
@@ -88,6 +91,13 @@ public class MapTileLayerArray extends MapTileLayerBase {
         synchronized (mWorking) {
             mWorking.clear();
         }
+        mPrefetcher.reset();
+        mPyramidPrefetcher.reset();
+
+        // Other layers waiting on our downloads now have to load the tiles themselves
+        for (final MapTileRequestState promoted : MapTileRequestCoalescer.getMapTileRequestCoalescer().detach(this)) {
+            resumeRequest(promoted);
+        }
     }
 
     private boolean networkAvailable() {
@@ -95,20 +105,27 @@ public class MapTileLayerArray extends MapTileLayerBase {
     }
 
     /**
-     * Checks whether this tile is unavailable and the system is offline.
+     * Checks whether this tile failed to load recently and must not be requested yet.
      *
      * @param pTile the tile in question
      * @return whether the tile is unavailable
      */
     private boolean tileUnavailable(final MapTile pTile) {
-        if (mUnaccessibleTiles.size() > 0) {
-            if (networkAvailable() || !useDataConnection()) {
-                mUnaccessibleTiles.clear();
-            } else if (mUnaccessibleTiles.contains(pTile)) {
-                return true;
-            }
+        if (mFailedOffline && (networkAvailable() || !useDataConnection())) {
+            mFailedOffline = false;
+            mFailedTiles.clear();
+            return false;
         }
-        return false;
+        return mFailedTiles.isBackedOff(pTile);
+    }
+
+    /**
+     * Gets the tiles that failed to load recently, and when they will be retried.
+     *
+     * @return the failed tiles
+     */
+    public MapTileNegativeCache getFailedTiles() {
+        return mFailedTiles;
     }
 
     @Override
@@ -123,13 +140,32 @@ public class MapTileLayerArray extends MapTileLayerBase {
 
         if (tileDrawable != null && tileDrawable.isBitmapValid() && !BitmapUtils.isCacheDrawableExpired(tileDrawable)) {
             tileDrawable.setBeingUsed(true);
+            mPrefetcher.onTileDrawn(pTile);
+            if (allowRemote && mTileCache.isTileExpired(pTile)) {
+                // Drawn as it is while a fresh copy is downloaded
+                refreshMapTile(pTile);
+            }
 //            Log.d(TAG, "Found tile(" + pTile.getCacheKey() + ") in memory, so returning for drawing.");
             return tileDrawable;
         } else if (allowRemote) {
 //            Log.d(TAG, "Tile not found in memory so will load from remote.");
             boolean alreadyInProgress = false;
+            MapTileRequestState working;
             synchronized (mWorking) {
-                alreadyInProgress = mWorking.containsKey(pTile);
+                working = mWorking.get(pTile);
+                alreadyInProgress = working != null;
+            }
+            if (working != null) {
+                // A prefetch request for a tile now in view is no longer low priority
+                final IMapTilePrefetcher prefetcher = working.clearPrefetch();
+                if (prefetcher != null) {
+                    prefetcher.onPrefetchPromoted(pTile);
+                }
+            }
+
+            if (!alreadyInProgress && mHotSet.isPreloading(pTile)) {
+                // Read from the disk cache by the preload, which redraws the map when done
+                return tileDrawable;
             }
 
             if (!alreadyInProgress) {
@@ -139,7 +175,8 @@ public class MapTileLayerArray extends MapTileLayerBase {
 
                 synchronized (mTileProviderList) {
                     final MapTileModuleLayerBase[] providerArray = new MapTileModuleLayerBase[mTileProviderList.size()];
-                    state = new MapTileRequestState(pTile, mTileProviderList.toArray(providerArray), this);
+                    state = new MapTileRequestState(pTile, mTileProviderList.toArray(providerArray), this,
+                            mViewport);
                 }
 
                 synchronized (mWorking) {
@@ -150,12 +187,17 @@ public class MapTileLayerArray extends MapTileLayerBase {
                     }
                     mWorking.put(pTile, state);
                 }
-
-                final MapTileModuleLayerBase provider = findNextAppropriateProvider(state);
-                if (provider != null) {
-                    provider.loadMapTileAsync(state);
-                } else {
-                    mapTileRequestFailed(state);
+                mPrefetcher.onTileRequested(pTile);
+
+                // Another layer sharing our cache key may already be loading this very tile,
+                // in which case we'll be notified when it's done.
+                if (MapTileRequestCoalescer.getMapTileRequestCoalescer().register(state)) {
+                    final MapTileModuleLayerBase provider = findNextAppropriateProvider(state);
+                    if (provider != null) {
+                        provider.loadMapTileAsync(state);
+                    } else {
+                        mapTileRequestFailed(state);
+                    }
                 }
             }
             return tileDrawable;
@@ -169,13 +211,71 @@ public class MapTileLayerArray extends MapTileLayerBase {
         return null;
     }
 
+    /**
+     * Refresh a stale tile in the background, see
+     * {@link MapTileDownloader#refreshTileAsync(MapTile)}.
+     */
+    private void refreshMapTile(final MapTile pTile) {
+        synchronized (mTileProviderList) {
+            for (int i = 0; i < mTileProviderList.size(); i++) {
+                final MapTileModuleLayerBase provider = mTileProviderList.get(i);
+                if (provider instanceof MapTileDownloader
+                        && ((MapTileDownloader) provider).refreshTileAsync(pTile)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    protected boolean prefetchMapTile(final MapTile pTile, final IMapTilePrefetcher pPrefetcher,
+                                      final int pGeneration) {
+        if (tileUnavailable(pTile)) {
+            return false;
+        }
+        final CacheableBitmapDrawable tileDrawable = mTileCache.getMapTileFromMemory(pTile);
+        if (tileDrawable != null && tileDrawable.isBitmapValid() && !BitmapUtils.isCacheDrawableExpired(tileDrawable)) {
+            return false;
+        }
+
+        final MapTileRequestState state;
+        synchronized (mTileProviderList) {
+            final MapTileModuleLayerBase[] providerArray = new MapTileModuleLayerBase[mTileProviderList.size()];
+            state = new MapTileRequestState(pTile, mTileProviderList.toArray(providerArray), this,
+                    mViewport, pPrefetcher, pGeneration);
+        }
+        synchronized (mWorking) {
+            if (mWorking.containsKey(pTile)) {
+                return false;
+            }
+            mWorking.put(pTile, state);
+        }
+
+        // Prefetch requests aren't shared with other layers through the coalescer, so that a
+        // low priority request never holds back a tile another layer needs now.
+        final MapTileModuleLayerBase provider = findNextAppropriateProvider(state);
+        if (provider == null) {
+            synchronized (mWorking) {
+                mWorking.remove(pTile);
+            }
+            return false;
+        }
+        provider.loadMapTileAsync(state);
+        return true;
+    }
+
     @Override
     public void mapTileRequestCompleted(final MapTileRequestState aState,
                                         final Drawable aDrawable) {
         synchronized (mWorking) {
             mWorking.remove(aState.getMapTile());
         }
+        mFailedTiles.onSuccess(aState.getMapTile());
         super.mapTileRequestCompleted(aState, aDrawable);
+
+        for (final MapTileRequestState waiter : MapTileRequestCoalescer.getMapTileRequestCoalescer().complete(aState)) {
+            waiter.getCallback().mapTileRequestCompleted(waiter, aDrawable);
+        }
     }
 
     @Override
@@ -184,13 +284,46 @@ public class MapTileLayerArray extends MapTileLayerBase {
         if (nextProvider != null) {
             nextProvider.loadMapTileAsync(aState);
         } else {
-            synchronized (mWorking) {
-                mWorking.remove(aState.getMapTile());
-            }
-            if (!networkAvailable()) {
-                mUnaccessibleTiles.add(aState.getMapTile());
-            }
-            super.mapTileRequestFailed(aState);
+            failRequest(aState);
+        }
+    }
+
+    /**
+     * Fail a request that has no provider left to try.
+     */
+    private void failRequest(final MapTileRequestState aState) {
+        synchronized (mWorking) {
+            mWorking.remove(aState.getMapTile());
+        }
+        // Not requested again until its backoff is over
+        final long delay = mFailedTiles.onFailure(aState.getMapTile());
+        if (!networkAvailable()) {
+            mFailedOffline = true;
+        }
+        if (DEBUG_TILE_PROVIDERS) {
+            Log.d(TAG, "Tile " + aState.getMapTile() + " failed, retrying in " + delay + "ms");
+        }
+        super.mapTileRequestFailed(aState);
+
+        // Layers that were waiting on us may have other providers to try. One of them takes
+        // over, the others keep waiting on it.
+        final MapTileRequestState promoted = MapTileRequestCoalescer.getMapTileRequestCoalescer().fail(aState);
+        if (promoted != null) {
+            resumeRequest(promoted);
+        }
+    }
+
+    @Override
+    public void mapTileRequestCancelled(final MapTileRequestState aState) {
+        synchronized (mWorking) {
+            mWorking.remove(aState.getMapTile());
+        }
+        super.mapTileRequestCancelled(aState);
+
+        // The tile may still be in view for a layer that was waiting on us
+        final MapTileRequestState promoted = MapTileRequestCoalescer.getMapTileRequestCoalescer().cancel(aState);
+        if (promoted != null) {
+            resumeRequest(promoted);
         }
     }
 
@@ -209,6 +342,32 @@ public class MapTileLayerArray extends MapTileLayerBase {
             synchronized (mWorking) {
                 mWorking.remove(aState.getMapTile());
             }
+            for (final MapTileRequestState waiter : MapTileRequestCoalescer.getMapTileRequestCoalescer().complete(aState)) {
+                waiter.getCallback().mapTileRequestCompleted(waiter, aDrawable);
+            }
+        }
+    }
+
+    /**
+     * Hand a request that was attached to another layer's download back to the provider chain
+     * of the layer that made it, unless that layer is still backing off from the tile.
+     */
+    private static void resumeRequest(final MapTileRequestState aState) {
+        final IMapTileProviderCallback callback = aState.getCallback();
+        if (callback instanceof MapTileLayerArray) {
+            final MapTileLayerArray owner = (MapTileLayerArray) callback;
+            if (owner.tileUnavailable(aState.getMapTile())) {
+                owner.failRequest(aState);
+                return;
+            }
+            final MapTileModuleLayerBase provider = owner.findNextAppropriateProvider(aState);
+            if (provider != null) {
+                provider.loadMapTileAsync(aState);
+            } else {
+                owner.mapTileRequestFailed(aState);
+            }
+        } else {
+            callback.mapTileRequestFailed(aState);
         }
     }
 
@@ -274,7 +433,7 @@ public class MapTileLayerArray extends MapTileLayerBase {
     @Override
     public void setTileSource(final ITileLayer aTileSource) {
         super.setTileSource(aTileSource);
-        mUnaccessibleTiles.clear();
+        mFailedTiles.clear();
         synchronized (mTileProviderList) {
             mTileProviderList.clear();
         }
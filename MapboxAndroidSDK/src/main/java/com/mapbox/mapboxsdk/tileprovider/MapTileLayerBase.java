@@ -27,7 +27,7 @@ import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
  * @author Marc Kurtz
  * @author Nicolas Gramlich
  */
-public abstract class MapTileLayerBase implements IMapTileProviderCallback, TileLayerConstants {
+public abstract class MapTileLayerBase implements IMapTileCancellationCallback, TileLayerConstants {
     protected Context context;
     protected final MapTileCache mTileCache;
     private Handler mTileRequestCompleteHandler;
@@ -35,6 +35,15 @@ public abstract class MapTileLayerBase implements IMapTileProviderCallback, Tile
 
     private ITileLayer mTileSource;
     protected String mCacheKey = "";
+    protected final MapTileViewport mViewport = new MapTileViewport();
+    protected final MapTilePrefetcher mPrefetcher = new MapTilePrefetcher(this);
+    protected final MapTilePyramidPrefetcher mPyramidPrefetcher = new MapTilePyramidPrefetcher(this);
+    protected final MapTileHotSet mHotSet = new MapTileHotSet(this);
+
+    // The partition of the memory cache joined, null when not drawing
+    private String mPartitionKey = null;
+    private float mPartitionWeight = MapTileCacheManager.DEFAULT_WEIGHT;
+    private MapTileEvictionPolicy mEvictionPolicy = null;
 
     /**
      * Attempts to get a Drawable that represents a {@link MapTile}. If the tile is not immediately
@@ -136,6 +145,68 @@ public abstract class MapTileLayerBase implements IMapTileProviderCallback, Tile
         return mCacheKey;
     }
 
+    /**
+     * Gets the viewport this provider is drawing, used to prioritize tile requests.
+     *
+     * @return the viewport
+     */
+    public MapTileViewport getViewport() {
+        return mViewport;
+    }
+
+    /**
+     * Gets the prefetcher loading tiles ahead of the viewport while the map moves.
+     *
+     * @return the prefetcher
+     */
+    public MapTilePrefetcher getPrefetcher() {
+        return mPrefetcher;
+    }
+
+    /**
+     * Gets the prefetcher keeping the zoom levels above and below the one in view ready.
+     *
+     * @return the prefetcher
+     */
+    public MapTilePyramidPrefetcher getPyramidPrefetcher() {
+        return mPyramidPrefetcher;
+    }
+
+    /**
+     * Gets the tiles saved when the map view was last detached, to be loaded into memory before
+     * the first frame of the next launch.
+     *
+     * @return the hot set
+     */
+    public MapTileHotSet getHotSet() {
+        return mHotSet;
+    }
+
+    /**
+     * Keep the parents of the tiles in view in memory, and load the children of the tiles at
+     * the centre while the map is idle, so that zooming doesn't start from a blank map. The
+     * memory used is set with {@link MapTileCache#setPyramidCacheSize(int)}.
+     *
+     * @param enabled whether to prefetch the zoom levels around the one in view
+     */
+    public void setPyramidPrefetchEnabled(final boolean enabled) {
+        mPyramidPrefetcher.setEnabled(enabled);
+    }
+
+    /**
+     * Start loading a tile that isn't in view yet, at a low priority. Providers that don't
+     * support prefetching ignore the request.
+     *
+     * @param pTile the tile
+     * @param pPrefetcher the prefetcher making the request
+     * @param pGeneration the prefetcher generation the request belongs to
+     * @return whether a request was started
+     */
+    protected boolean prefetchMapTile(final MapTile pTile, final IMapTilePrefetcher pPrefetcher,
+            final int pGeneration) {
+        return false;
+    }
+
     /**
      * Creates a {@link MapTileCache} to be used to cache tiles in memory.
      */
@@ -165,6 +236,13 @@ public abstract class MapTileLayerBase implements IMapTileProviderCallback, Tile
     @Override
     public void mapTileRequestCompleted(final MapTileRequestState pState,
             final Drawable pDrawable) {
+        final IMapTilePrefetcher prefetcher = pState.clearPrefetch();
+        if (prefetcher != null) {
+            // The tile isn't in view, there is nothing to redraw
+            prefetcher.onPrefetchCompleted(pState.getMapTile());
+            return;
+        }
+
         // tell our caller we've finished and it should update its view
         if (mTileRequestCompleteHandler != null) {
             Message msg = new Message();
@@ -188,6 +266,12 @@ public abstract class MapTileLayerBase implements IMapTileProviderCallback, Tile
      */
     @Override
     public void mapTileRequestFailed(final MapTileRequestState pState) {
+        final IMapTilePrefetcher prefetcher = pState.clearPrefetch();
+        if (prefetcher != null) {
+            prefetcher.onPrefetchFailed(pState.getMapTile());
+            return;
+        }
+
         if (mTileRequestCompleteHandler != null) {
             mTileRequestCompleteHandler.sendEmptyMessage(MapTile.MAPTILE_FAIL_ID);
         }
@@ -197,6 +281,24 @@ public abstract class MapTileLayerBase implements IMapTileProviderCallback, Tile
         }
     }
 
+    /**
+     * Called by implementation class methods indicating that they have dropped the request for
+     * a map tile, for instance because it scrolled out of view. Nothing needs to be redrawn.
+     *
+     * @param pState the map tile request state object
+     */
+    @Override
+    public void mapTileRequestCancelled(final MapTileRequestState pState) {
+        final IMapTilePrefetcher prefetcher = pState.clearPrefetch();
+        if (prefetcher != null) {
+            prefetcher.onPrefetchCancelled(pState.getMapTile());
+        }
+
+        if (DEBUG_TILE_PROVIDERS) {
+            Log.d(TAG, "MapTileLayerBase.mapTileRequestCancelled(): " + pState.getMapTile());
+        }
+    }
+
     /**
      * Called by implementation class methods indicating that they have produced an expired result
      * that can be used but better results may be delivered later. The tile is added to the cache,
@@ -260,6 +362,16 @@ public abstract class MapTileLayerBase implements IMapTileProviderCallback, Tile
         BitmapUtils.setCacheDrawableExpired(drawable);
     }
 
+    /**
+     * Called once the tiles of the hot set have been loaded into memory, to redraw the map
+     * with them.
+     */
+    void onTilesPreloaded() {
+        if (mTileRequestCompleteHandler != null) {
+            mTileRequestCompleteHandler.sendEmptyMessage(MapTile.MAPTILE_SUCCESS_ID);
+        }
+    }
+
     public void setTileRequestCompleteHandler(final Handler handler) {
         mTileRequestCompleteHandler = handler;
     }
@@ -269,6 +381,7 @@ public abstract class MapTileLayerBase implements IMapTileProviderCallback, Tile
     }
 
     public void memoryCacheNeedsMoreMemory(int numberOfTiles) {
+        // Even under memory pressure, the tiles on screen must fit
         mTileCache.getCache().resizeMemoryForTiles(numberOfTiles);
     }
 
@@ -280,6 +393,83 @@ public abstract class MapTileLayerBase implements IMapTileProviderCallback, Tile
         mTileCache.setDiskCacheEnabled(enabled);
     }
 
+    public void setPackedDiskStoreEnabled(final boolean enabled) {
+        mTileCache.setPackedDiskStoreEnabled(enabled);
+    }
+
+    public void setEncodedCacheSize(final int bytes) {
+        mTileCache.setEncodedCacheSize(bytes);
+    }
+
+    /**
+     * Evict tiles from the memory cache by their distance from this layer's viewport, their
+     * zoom level and how often they are used, see {@link MapTileEvictionPolicy}, instead of
+     * the least recently used first. The memory cache is shared by every layer, the last one
+     * enabling this sets the viewport used, unless several map views share it out: each then
+     * evicts the tiles of its own partition by its own viewport, see {@link MapTileCacheManager}.
+     *
+     * @param enabled whether to use the viewport aware eviction policy
+     */
+    public void setViewportEvictionEnabled(final boolean enabled) {
+        final MapTileEvictionPolicy policy = enabled ? new MapTileEvictionPolicy(mViewport) : null;
+        synchronized (this) {
+            mEvictionPolicy = policy;
+            if (mPartitionKey != null) {
+                MapTileCacheManager.getMapTileCacheManager().setPolicy(mPartitionKey, policy);
+            }
+        }
+        mTileCache.setEvictionPolicy(policy);
+    }
+
+    /**
+     * Start drawing from this layer's own partition of the memory cache, see
+     * {@link MapTileCacheManager}, or move to the partition of a new tile source.
+     */
+    public synchronized void joinCachePartition() {
+        if (mCacheKey.equals(mPartitionKey)) {
+            return;
+        }
+        leaveCachePartition();
+        if (mCacheKey.length() > 0) {
+            MapTileCacheManager.getMapTileCacheManager().join(mCacheKey, mPartitionWeight,
+                    mEvictionPolicy);
+            mPartitionKey = mCacheKey;
+        }
+    }
+
+    /**
+     * Stop drawing from the memory cache, once the map view is detached. Its tiles are evicted
+     * before those of the map views still drawn.
+     */
+    public synchronized void leaveCachePartition() {
+        if (mPartitionKey != null) {
+            MapTileCacheManager.getMapTileCacheManager().leave(mPartitionKey, mPartitionWeight);
+            mPartitionKey = null;
+        }
+    }
+
+    /**
+     * Set the share of the memory cache this layer is guaranteed when several map views draw
+     * from it, relative to theirs.
+     *
+     * @param weight the weight, {@link MapTileCacheManager#DEFAULT_WEIGHT} by default
+     */
+    public synchronized void setCachePartitionWeight(final float weight) {
+        if (!(weight > 0)) {
+            throw new IllegalArgumentException("Invalid partition weight: " + weight);
+        }
+        final boolean joined = mPartitionKey != null;
+        leaveCachePartition();
+        mPartitionWeight = weight;
+        if (joined) {
+            joinCachePartition();
+        }
+    }
+
+    public synchronized float getCachePartitionWeight() {
+        return mPartitionWeight;
+    }
+
     /**
      * Whether to use the network connection if it's available.
      */
@@ -315,6 +505,12 @@ public abstract class MapTileLayerBase implements IMapTileProviderCallback, Tile
         return (mTileCache != null) ? mTileCache.getBitmapFromRemoved(width, height) : null;
     }
 
+    public Bitmap getBitmapFromRemoved(final int width, final int height,
+                                       final Bitmap.Config config) {
+        return (mTileCache != null) ? mTileCache.getBitmapFromRemoved(width, height, config)
+                : null;
+    }
+
     /**
      * If a given MapTile is present in this cache, remove it from memory.
      * @param aTile
@@ -0,0 +1,143 @@
+package com.mapbox.mapboxsdk.tileprovider;
+
+import android.os.SystemClock;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the tiles that no provider could load, so that the draw loop doesn't request them
+ * again on every frame. A failed tile is retried after a delay that doubles with each failure,
+ * with random jitter so that the tiles of a whole failed viewport don't all come back at once.
+ * Lookups are constant time, the draw loop checks every tile it draws.
+ */
+public class MapTileNegativeCache {
+    public static final long DEFAULT_INITIAL_BACKOFF_MS = 2000;
+    public static final long DEFAULT_MAXIMUM_BACKOFF_MS = 5 * 60 * 1000;
+
+    // Beyond that, the tiles failed longest ago are forgotten
+    private static final int MAXIMUM_ENTRIES = 1024;
+
+    private long mInitialBackoffMs = DEFAULT_INITIAL_BACKOFF_MS;
+    private long mMaximumBackoffMs = DEFAULT_MAXIMUM_BACKOFF_MS;
+
+    private final LinkedHashMap<MapTile, Failure> mFailures =
+            new LinkedHashMap<MapTile, Failure>() {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<MapTile, Failure> eldest) {
+                    return size() > MAXIMUM_ENTRIES;
+                }
+            };
+    private final Random mRandom = new Random();
+
+    private final AtomicLong mFailureCount = new AtomicLong(0);
+    private final AtomicLong mSkippedCount = new AtomicLong(0);
+
+    /**
+     * Set the delay before a failed tile is retried.
+     *
+     * @param initialBackoffMs the delay after the first failure
+     * @param maximumBackoffMs the longest delay, however many times the tile failed
+     */
+    public synchronized void setBackoff(final long initialBackoffMs, final long maximumBackoffMs) {
+        if (initialBackoffMs <= 0 || maximumBackoffMs < initialBackoffMs) {
+            throw new IllegalArgumentException("Invalid backoff: " + initialBackoffMs + "ms to "
+                    + maximumBackoffMs + "ms");
+        }
+        mInitialBackoffMs = initialBackoffMs;
+        mMaximumBackoffMs = maximumBackoffMs;
+    }
+
+    /**
+     * @param tile the tile
+     * @return whether the tile failed recently and must not be requested yet
+     */
+    public synchronized boolean isBackedOff(final MapTile tile) {
+        if (mFailures.isEmpty()) {
+            return false;
+        }
+        final Failure failure = mFailures.get(tile);
+        if (failure == null || SystemClock.elapsedRealtime() >= failure.retryTime) {
+            return false;
+        }
+        mSkippedCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * No provider could load the tile.
+     *
+     * @param tile the tile
+     * @return the delay before it may be requested again, in milliseconds
+     */
+    public synchronized long onFailure(final MapTile tile) {
+        mFailureCount.incrementAndGet();
+        Failure failure = mFailures.remove(tile);
+        if (failure == null) {
+            failure = new Failure();
+        }
+        failure.count++;
+        final long backoff = Math.min(mMaximumBackoffMs,
+                mInitialBackoffMs << Math.min(failure.count - 1, 30));
+        // Somewhere between half and all of the backoff
+        final long delay = backoff / 2 + (long) (mRandom.nextDouble() * (backoff / 2));
+        failure.retryTime = SystemClock.elapsedRealtime() + delay;
+        // Re-inserted, so that the eldest entry is the tile failed longest ago
+        mFailures.put(tile, failure);
+        return delay;
+    }
+
+    /**
+     * The tile was loaded.
+     *
+     * @param tile the tile
+     */
+    public synchronized void onSuccess(final MapTile tile) {
+        if (!mFailures.isEmpty()) {
+            mFailures.remove(tile);
+        }
+    }
+
+    /**
+     * Forget all failures, for instance when the network comes back.
+     */
+    public synchronized void clear() {
+        mFailures.clear();
+    }
+
+    public synchronized int size() {
+        return mFailures.size();
+    }
+
+    /**
+     * @return the number of times a tile failed to load
+     */
+    public long getFailureCount() {
+        return mFailureCount.get();
+    }
+
+    /**
+     * @return the number of requests avoided because their tile had failed recently
+     */
+    public long getSkippedCount() {
+        return mSkippedCount.get();
+    }
+
+    public void resetStats() {
+        mFailureCount.set(0);
+        mSkippedCount.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "MapTileNegativeCache{size=" + size()
+                + ", failures=" + getFailureCount()
+                + ", skipped=" + getSkippedCount() + "}";
+    }
+
+    private static final class Failure {
+        int count;
+        long retryTime;
+    }
+}
@@ -0,0 +1,500 @@
+package com.mapbox.mapboxsdk.tileprovider;
+
+import android.os.SystemClock;
+import com.mapbox.mapboxsdk.util.GeometryMath;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads the tiles the map is about to show while it is moving. The draw loop reports where the
+ * map is and, when known, where it is heading: the end of a fling or the target of a zoom
+ * animation. Otherwise the destination is extrapolated from the velocity of the viewport. Tiles
+ * of the projected viewport are requested at a priority below every tile in view, within a
+ * bandwidth budget, and the ones still queued are dropped as soon as the map changes direction.
+ * <p/>
+ * Metrics:
+ * <ul>
+ * <li>hits: prefetched tiles that were later drawn straight from memory,</li>
+ * <li>late: prefetches still in flight when the tile came into view,</li>
+ * <li>misses: tiles that had to be requested on demand while the map was moving,</li>
+ * <li>wasted: prefetched tiles that were never drawn.</li>
+ * </ul>
+ */
+public class MapTilePrefetcher implements IMapTilePrefetcher {
+    public static final float DEFAULT_TILES_PER_SECOND = 12f;
+    public static final int DEFAULT_MAXIMUM_OUTSTANDING = 16;
+    public static final long DEFAULT_LOOKAHEAD_MS = 600;
+
+    /**
+     * Priority of prefetch requests, added to their distance from the projected centre. Tiles
+     * in view always rank lower, see {@link MapTileViewport#getPriority(MapTile)}.
+     */
+    public static final float PRIORITY_BASE = 1000f;
+
+    // Frames further apart than this don't give a meaningful velocity
+    private static final long MAXIMUM_FRAME_INTERVAL_MS = 250;
+    private static final double VELOCITY_SMOOTHING = 0.5;
+    // Prefetched tiles remembered to tell hits from wasted prefetches
+    private static final int MAXIMUM_TRACKED_TILES = 256;
+
+    private final MapTileLayerBase mProvider;
+
+    private volatile boolean mEnabled = true;
+    private float mTilesPerSecond = DEFAULT_TILES_PER_SECOND;
+    private int mMaximumOutstanding = DEFAULT_MAXIMUM_OUTSTANDING;
+    private long mLookaheadMs = DEFAULT_LOOKAHEAD_MS;
+
+    // Motion of the viewport, only used from the drawing thread
+    private long mLastFrameTime = 0;
+    private float mLastZoom = -1;
+    private double mLastCenterX;
+    private double mLastCenterY;
+    private double mVelocityX;
+    private double mVelocityY;
+    private float mTokens = 0;
+    // Tiles worth prefetching, reused from frame to frame: coordinates, and distance to the
+    // destination and index packed together so that sorting them doesn't allocate
+    private int[] mCandidateX = new int[64];
+    private int[] mCandidateY = new int[64];
+    private long[] mCandidateOrder = new long[64];
+
+    // Projected viewport, also read by the loader threads
+    private boolean mMoving = false;
+    private boolean mHasDirection = false;
+    private int mGeneration = 0;
+    private int mTargetZoom;
+    private double mTargetX;
+    private double mTargetY;
+    private double mDirectionX;
+    private double mDirectionY;
+
+    private final AtomicInteger mOutstanding = new AtomicInteger(0);
+    // The keys of mPrefetched, by packed key, so that candidates are checked without a MapTile
+    private final MapTileIndex<Boolean> mPrefetchedKeys =
+            new MapTileIndex<Boolean>(MAXIMUM_TRACKED_TILES + 1);
+    private final LinkedHashMap<MapTile, Boolean> mPrefetched =
+            new LinkedHashMap<MapTile, Boolean>() {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<MapTile, Boolean> eldest) {
+                    if (size() > MAXIMUM_TRACKED_TILES) {
+                        mPrefetchedKeys.remove(eldest.getKey());
+                        mWastedCount.incrementAndGet();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+
+    private final AtomicLong mRequestedCount = new AtomicLong(0);
+    private final AtomicLong mCompletedCount = new AtomicLong(0);
+    private final AtomicLong mCancelledCount = new AtomicLong(0);
+    private final AtomicLong mFailedCount = new AtomicLong(0);
+    private final AtomicLong mHitCount = new AtomicLong(0);
+    private final AtomicLong mLateCount = new AtomicLong(0);
+    private final AtomicLong mMissCount = new AtomicLong(0);
+    private final AtomicLong mWastedCount = new AtomicLong(0);
+
+    public MapTilePrefetcher(final MapTileLayerBase provider) {
+        mProvider = provider;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public void setEnabled(final boolean enabled) {
+        mEnabled = enabled;
+        if (!enabled) {
+            cancelAll();
+        }
+    }
+
+    /**
+     * Set the bandwidth the prefetcher may use.
+     *
+     * @param tilesPerSecond the sustained number of tiles requested per second, which is also
+     * the largest burst
+     * @param maximumOutstanding the maximum number of prefetch requests in flight
+     */
+    public synchronized void setBudget(final float tilesPerSecond, final int maximumOutstanding) {
+        if (tilesPerSecond <= 0 || maximumOutstanding < 1) {
+            throw new IllegalArgumentException("Invalid prefetch budget: " + tilesPerSecond
+                    + " tiles/s, " + maximumOutstanding + " outstanding");
+        }
+        mTilesPerSecond = tilesPerSecond;
+        mMaximumOutstanding = maximumOutstanding;
+    }
+
+    /**
+     * Set how far ahead the viewport is projected when panning without a known destination.
+     *
+     * @param lookaheadMs the time, in milliseconds
+     */
+    public synchronized void setLookahead(final long lookaheadMs) {
+        mLookaheadMs = lookaheadMs;
+    }
+
+    /**
+     * Report the viewport drawn in this frame, for a map moving without a known destination.
+     * Coordinates are fractions of the world size, from the top left corner.
+     *
+     * @param zoom the zoom level being drawn
+     * @param centerX the horizontal centre of the viewport
+     * @param centerY the vertical centre of the viewport
+     * @param spanX the width of the viewport
+     * @param spanY the height of the viewport
+     */
+    public void update(final float zoom, final double centerX, final double centerY,
+                       final double spanX, final double spanY) {
+        update(zoom, centerX, centerY, spanX, spanY, false, 0, 0, 0);
+    }
+
+    /**
+     * Report the viewport drawn in this frame, for a map animating towards a destination.
+     *
+     * @param zoom the zoom level being drawn
+     * @param centerX the horizontal centre of the viewport
+     * @param centerY the vertical centre of the viewport
+     * @param spanX the width of the viewport
+     * @param spanY the height of the viewport
+     * @param targetZoom the zoom level the map is heading to
+     * @param targetX the horizontal centre the map is heading to
+     * @param targetY the vertical centre the map is heading to
+     */
+    public void update(final float zoom, final double centerX, final double centerY,
+                       final double spanX, final double spanY, final float targetZoom,
+                       final double targetX, final double targetY) {
+        update(zoom, centerX, centerY, spanX, spanY, true, targetZoom, targetX, targetY);
+    }
+
+    private void update(final float zoom, final double centerX, final double centerY,
+                        final double spanX, final double spanY, final boolean hasTarget,
+                        float targetZoom, double targetX, double targetY) {
+        if (!mEnabled || mProvider.hasNoSource()) {
+            return;
+        }
+        final long now = SystemClock.uptimeMillis();
+        final long elapsed = now - mLastFrameTime;
+        if (zoom == mLastZoom && elapsed > 0 && elapsed <= MAXIMUM_FRAME_INTERVAL_MS) {
+            mVelocityX = mVelocityX * VELOCITY_SMOOTHING
+                    + wrap(centerX - mLastCenterX) / elapsed * (1 - VELOCITY_SMOOTHING);
+            mVelocityY = mVelocityY * VELOCITY_SMOOTHING
+                    + (centerY - mLastCenterY) / elapsed * (1 - VELOCITY_SMOOTHING);
+        } else if (elapsed != 0) {
+            mVelocityX = 0;
+            mVelocityY = 0;
+        }
+        mLastFrameTime = now;
+        mLastZoom = zoom;
+        mLastCenterX = centerX;
+        mLastCenterY = centerY;
+
+        final long lookahead;
+        final float tilesPerSecond;
+        final int maximumOutstanding;
+        synchronized (this) {
+            lookahead = mLookaheadMs;
+            tilesPerSecond = mTilesPerSecond;
+            maximumOutstanding = mMaximumOutstanding;
+        }
+        mTokens = Math.min(tilesPerSecond, mTokens + Math.min(elapsed, 1000) * tilesPerSecond / 1000f);
+
+        if (!hasTarget) {
+            // Not worth it for movements of less than half a tile
+            final double distance = Math.hypot(mVelocityX, mVelocityY) * lookahead;
+            if (distance < 0.5 / (1 << (int) Math.floor(zoom))) {
+                synchronized (this) {
+                    mMoving = false;
+                }
+                return;
+            }
+            targetZoom = zoom;
+            targetX = centerX + mVelocityX * lookahead;
+            targetY = centerY + mVelocityY * lookahead;
+        }
+
+        final int tileZoom = (int) Math.floor(Math.max(mProvider.getMinimumZoomLevel(),
+                Math.min(mProvider.getMaximumZoomLevel(), targetZoom)));
+        final double directionX = wrap(targetX - centerX);
+        final double directionY = targetY - centerY;
+        final int generation;
+        synchronized (this) {
+            if (mHasDirection && (tileZoom != mTargetZoom
+                    || directionX * mDirectionX + directionY * mDirectionY < 0)) {
+                // Heading somewhere else: drop what was queued for the old destination
+                mGeneration++;
+            }
+            mMoving = true;
+            mHasDirection = true;
+            mTargetZoom = tileZoom;
+            mTargetX = targetX;
+            mTargetY = targetY;
+            mDirectionX = directionX;
+            mDirectionY = directionY;
+            generation = mGeneration;
+        }
+
+        if (mTokens < 1 || mOutstanding.get() >= maximumOutstanding) {
+            return;
+        }
+
+        // The viewport at the destination, in tiles of the destination zoom level
+        final int worldTiles = 1 << tileZoom;
+        final double scale = Math.pow(2, zoom - targetZoom);
+        final int left = (int) Math.floor((targetX - spanX * scale / 2) * worldTiles);
+        final int right = (int) Math.floor((targetX + spanX * scale / 2) * worldTiles);
+        final int top = Math.max(0, (int) Math.floor((targetY - spanY * scale / 2) * worldTiles));
+        final int bottom = Math.min(worldTiles - 1,
+                (int) Math.floor((targetY + spanY * scale / 2) * worldTiles));
+        // Tiles already in view are requested by the draw loop itself
+        final boolean sameZoom = tileZoom == (int) Math.floor(zoom);
+        final int viewLeft = (int) Math.floor((centerX - spanX / 2) * worldTiles);
+        final int viewRight = (int) Math.floor((centerX + spanX / 2) * worldTiles);
+        final int viewTop = (int) Math.floor((centerY - spanY / 2) * worldTiles);
+        final int viewBottom = (int) Math.floor((centerY + spanY / 2) * worldTiles);
+
+        final String cacheKey = mProvider.getCacheKey();
+        final int layerId = MapTile.getLayerId(cacheKey);
+        int count = 0;
+        synchronized (mPrefetched) {
+            for (int y = top; y <= bottom; y++) {
+                for (int x = left; x <= right; x++) {
+                    if (sameZoom && x >= viewLeft && x <= viewRight && y >= viewTop && y <= viewBottom) {
+                        continue;
+                    }
+                    final int tileX = GeometryMath.mod(x, worldTiles);
+                    if (mPrefetchedKeys.containsKey(MapTile.packKey(layerId, tileZoom, tileX, y))) {
+                        continue;
+                    }
+                    if (count == mCandidateOrder.length) {
+                        growCandidates();
+                    }
+                    final double distance = distance(tileZoom, tileX, y, targetX, targetY);
+                    mCandidateX[count] = tileX;
+                    mCandidateY[count] = y;
+                    // Distances are positive, so their float bits sort like the distances
+                    mCandidateOrder[count] =
+                            ((long) Float.floatToIntBits((float) distance) << 32) | count;
+                    count++;
+                }
+            }
+        }
+        Arrays.sort(mCandidateOrder, 0, count);
+
+        for (int i = 0; i < count; i++) {
+            if (mTokens < 1 || mOutstanding.get() >= maximumOutstanding) {
+                break;
+            }
+            final int index = (int) mCandidateOrder[i];
+            // Only tiles actually requested are allocated
+            final MapTile tile = new MapTile(cacheKey, layerId, tileZoom, mCandidateX[index],
+                    mCandidateY[index]);
+            // Counted before the request is made, as it may be cancelled right away
+            mOutstanding.incrementAndGet();
+            if (mProvider.prefetchMapTile(tile, this, generation)) {
+                mTokens--;
+                mRequestedCount.incrementAndGet();
+            } else {
+                release();
+            }
+        }
+    }
+
+    private void growCandidates() {
+        final int size = mCandidateOrder.length * 2;
+        mCandidateX = Arrays.copyOf(mCandidateX, size);
+        mCandidateY = Arrays.copyOf(mCandidateY, size);
+        mCandidateOrder = Arrays.copyOf(mCandidateOrder, size);
+    }
+
+    /**
+     * Drop every prefetch request still queued.
+     */
+    public synchronized void cancelAll() {
+        mGeneration++;
+        mMoving = false;
+        mHasDirection = false;
+    }
+
+    /**
+     * Forget all requests, for instance when the provider is detached.
+     */
+    public void reset() {
+        cancelAll();
+        mOutstanding.set(0);
+        synchronized (mPrefetched) {
+            mPrefetched.clear();
+            mPrefetchedKeys.clear();
+        }
+    }
+
+    synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    public synchronized boolean isMoving() {
+        return mMoving;
+    }
+
+    /**
+     * @return the priority, or {@link MapTileViewport#PRIORITY_NONE} if the map has changed
+     * direction since
+     */
+    @Override
+    public synchronized float getPriority(final MapTile tile, final int generation) {
+        if (generation != mGeneration) {
+            return MapTileViewport.PRIORITY_NONE;
+        }
+        return PRIORITY_BASE + (float) (distanceToTarget(tile) * (1 << tile.getZ()));
+    }
+
+    private synchronized double distanceToTarget(final MapTile tile) {
+        return distance(tile.getZ(), tile.getX(), tile.getY(), mTargetX, mTargetY);
+    }
+
+    private static double distance(final int z, final int x, final int y, final double targetX,
+                                   final double targetY) {
+        final int worldTiles = 1 << z;
+        final double dx = wrap((x + 0.5) / worldTiles - targetX);
+        final double dy = (y + 0.5) / worldTiles - targetY;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    private void release() {
+        if (mOutstanding.decrementAndGet() < 0) {
+            mOutstanding.set(0);
+        }
+    }
+
+    @Override
+    public void onPrefetchCompleted(final MapTile tile) {
+        release();
+        mCompletedCount.incrementAndGet();
+        synchronized (mPrefetched) {
+            mPrefetched.put(tile, Boolean.TRUE);
+            mPrefetchedKeys.put(tile, Boolean.TRUE);
+        }
+    }
+
+    @Override
+    public void onPrefetchFailed(final MapTile tile) {
+        release();
+        mFailedCount.incrementAndGet();
+    }
+
+    @Override
+    public void onPrefetchCancelled(final MapTile tile) {
+        release();
+        mCancelledCount.incrementAndGet();
+    }
+
+    /**
+     * A prefetch request was still in flight when its tile came into view.
+     */
+    @Override
+    public void onPrefetchPromoted(final MapTile tile) {
+        release();
+        mLateCount.incrementAndGet();
+    }
+
+    /**
+     * A tile was drawn from memory.
+     */
+    void onTileDrawn(final MapTile tile) {
+        synchronized (mPrefetched) {
+            if (!mPrefetched.isEmpty() && mPrefetchedKeys.remove(tile) != null) {
+                mPrefetched.remove(tile);
+                mHitCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * A tile in view had to be requested.
+     */
+    void onTileRequested(final MapTile tile) {
+        if (isMoving()) {
+            mMissCount.incrementAndGet();
+        }
+    }
+
+    public long getRequestedCount() {
+        return mRequestedCount.get();
+    }
+
+    public long getCompletedCount() {
+        return mCompletedCount.get();
+    }
+
+    public long getCancelledCount() {
+        return mCancelledCount.get();
+    }
+
+    public long getFailedCount() {
+        return mFailedCount.get();
+    }
+
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    public long getLateCount() {
+        return mLateCount.get();
+    }
+
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    public long getWastedCount() {
+        return mWastedCount.get();
+    }
+
+    /**
+     * @return the share of tiles needed while moving that had been prefetched in time
+     */
+    public float getHitRatio() {
+        final long hits = getHitCount();
+        final long total = hits + getLateCount() + getMissCount();
+        return total > 0 ? (float) hits / total : 0;
+    }
+
+    public void resetStats() {
+        mRequestedCount.set(0);
+        mCompletedCount.set(0);
+        mCancelledCount.set(0);
+        mFailedCount.set(0);
+        mHitCount.set(0);
+        mLateCount.set(0);
+        mMissCount.set(0);
+        mWastedCount.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "MapTilePrefetcher{requested=" + getRequestedCount()
+                + ", completed=" + getCompletedCount()
+                + ", cancelled=" + getCancelledCount()
+                + ", failed=" + getFailedCount()
+                + ", hits=" + getHitCount()
+                + ", late=" + getLateCount()
+                + ", misses=" + getMissCount()
+                + ", wasted=" + getWastedCount() + "}";
+    }
+
+    /**
+     * Bring a horizontal offset, in fractions of the world, into [-0.5, 0.5].
+     */
+    private static double wrap(double delta) {
+        delta = delta % 1;
+        if (delta > 0.5) {
+            delta -= 1;
+        } else if (delta < -0.5) {
+            delta += 1;
+        }
+        return delta;
+    }
+}
@@ -0,0 +1,365 @@
+package com.mapbox.mapboxsdk.tileprovider;
+
+import com.mapbox.mapboxsdk.util.GeometryMath;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the zoom levels around the one in view ready, so that zooming in or out draws real
+ * tiles straight away instead of the loading grid. The parents, one zoom level up, of every
+ * tile in view are kept resident in memory, and the children, one zoom level down, of the tiles
+ * at the centre of the view are loaded while the map is idle. Both are requested at a priority
+ * below every tile in view and every tile prefetched along the map's path, and are pinned in
+ * the memory set aside by {@link MapTileCache#setPyramidCacheSize(int)} once loaded.
+ * <p/>
+ * Disabled by default, see {@link MapTileLayerBase#setPyramidPrefetchEnabled(boolean)}.
+ */
+public class MapTilePyramidPrefetcher implements IMapTilePrefetcher {
+    public static final int DEFAULT_MAXIMUM_OUTSTANDING = 8;
+
+    /**
+     * Priority of pyramid requests, added to their distance from the centre of the view.
+     * Tiles prefetched along the map's path, see {@link MapTilePrefetcher#PRIORITY_BASE}, rank
+     * lower.
+     */
+    public static final float PRIORITY_BASE = 2000f;
+
+    // Children are only a guess at where the user zooms in, parents come first
+    private static final float CHILD_COST = 100f;
+    // Width and height, in tiles of the zoom level in view, of the centre area whose children
+    // are loaded
+    private static final int CHILD_AREA = 2;
+    private static final int MAXIMUM_TRACKED_TILES = 512;
+
+    private final MapTileLayerBase mProvider;
+
+    private volatile boolean mEnabled = false;
+    private int mMaximumOutstanding = DEFAULT_MAXIMUM_OUTSTANDING;
+
+    // The view the requests are made for
+    private int mGeneration = 0;
+    private int mZoom = -1;
+    private int mLeft;
+    private int mTop;
+    private int mRight;
+    private int mBottom;
+    private boolean mIdle = false;
+    private boolean mComplete = false;
+    private volatile boolean mDirty = false;
+
+    // Tiles pinned or requested at the current zoom level, by packed key so that the tiles
+    // already handled are skipped without allocating
+    private final MapTileIndex<Boolean> mHandled = new MapTileIndex<Boolean>(MAXIMUM_TRACKED_TILES);
+
+    private final AtomicInteger mOutstanding = new AtomicInteger(0);
+
+    private final AtomicLong mRequestedCount = new AtomicLong(0);
+    private final AtomicLong mCompletedCount = new AtomicLong(0);
+    private final AtomicLong mCancelledCount = new AtomicLong(0);
+    private final AtomicLong mFailedCount = new AtomicLong(0);
+    private final AtomicLong mPinnedCount = new AtomicLong(0);
+
+    public MapTilePyramidPrefetcher(final MapTileLayerBase provider) {
+        mProvider = provider;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public void setEnabled(final boolean enabled) {
+        mEnabled = enabled;
+        if (!enabled) {
+            reset();
+        }
+    }
+
+    /**
+     * @param maximumOutstanding the maximum number of pyramid requests in flight
+     */
+    public synchronized void setMaximumOutstanding(final int maximumOutstanding) {
+        if (maximumOutstanding < 1) {
+            throw new IllegalArgumentException("Invalid number of outstanding requests: "
+                    + maximumOutstanding);
+        }
+        mMaximumOutstanding = maximumOutstanding;
+    }
+
+    /**
+     * Report the tiles drawn in this frame. Tile coordinates may run past the edges of the
+     * world, as they do in the draw loop.
+     *
+     * @param zoom the zoom level of the tiles drawn
+     * @param left the leftmost tile column
+     * @param top the topmost tile row
+     * @param right the rightmost tile column
+     * @param bottom the bottommost tile row
+     * @param idle whether the map is neither animating nor scrolling
+     */
+    public void update(final int zoom, final int left, final int top, final int right,
+                       final int bottom, final boolean idle) {
+        if (!mEnabled || mProvider.hasNoSource()) {
+            return;
+        }
+        final int generation;
+        final int maximumOutstanding;
+        synchronized (this) {
+            if (zoom != mZoom) {
+                // Whatever is still queued was meant for another zoom level
+                mGeneration++;
+                mZoom = zoom;
+                synchronized (mHandled) {
+                    mHandled.clear();
+                }
+            } else if (left == mLeft && top == mTop && right == mRight && bottom == mBottom
+                    && idle == mIdle && mComplete && !mDirty) {
+                return;
+            }
+            mLeft = left;
+            mTop = top;
+            mRight = right;
+            mBottom = bottom;
+            mIdle = idle;
+            mComplete = false;
+            generation = mGeneration;
+            maximumOutstanding = mMaximumOutstanding;
+        }
+        mDirty = false;
+
+        boolean complete = true;
+        if (zoom - 1 >= mProvider.getMinimumZoomLevel()) {
+            complete = handleTiles(zoom - 1, floorHalf(left), floorHalf(top), floorHalf(right),
+                    floorHalf(bottom), generation, maximumOutstanding);
+        }
+        if (idle && zoom + 1 <= mProvider.getMaximumZoomLevel()) {
+            final int centerX = (left + right + 1) / 2;
+            final int centerY = (top + bottom + 1) / 2;
+            final int childLeft = (centerX - CHILD_AREA / 2) * 2;
+            final int childTop = (centerY - CHILD_AREA / 2) * 2;
+            complete &= handleTiles(zoom + 1, childLeft, childTop,
+                    childLeft + CHILD_AREA * 2 - 1, childTop + CHILD_AREA * 2 - 1, generation,
+                    maximumOutstanding);
+        }
+        synchronized (mHandled) {
+            if (mHandled.size() > MAXIMUM_TRACKED_TILES) {
+                // Long pans: forget tiles long out of view, they may need pinning again
+                mHandled.clear();
+                complete = false;
+            }
+        }
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mComplete = complete;
+            }
+        }
+    }
+
+    /**
+     * Pin or request the tiles of a range.
+     *
+     * @return whether every tile of the range has been dealt with
+     */
+    private boolean handleTiles(final int zoom, final int left, final int top, final int right,
+                                final int bottom, final int generation,
+                                final int maximumOutstanding) {
+        final int worldTiles = 1 << zoom;
+        final String cacheKey = mProvider.getCacheKey();
+        final int layerId = MapTile.getLayerId(cacheKey);
+        for (int y = Math.max(0, top); y <= Math.min(worldTiles - 1, bottom); y++) {
+            for (int x = left; x <= right; x++) {
+                final int tileX = GeometryMath.mod(x, worldTiles);
+                if (isHandled(MapTile.packKey(layerId, zoom, tileX, y))) {
+                    continue;
+                }
+                final MapTile tile = new MapTile(cacheKey, layerId, zoom, tileX, y);
+                if (mProvider.mTileCache.pinTile(tile)) {
+                    mPinnedCount.incrementAndGet();
+                    setHandled(tile, true);
+                    continue;
+                }
+                if (mOutstanding.get() >= maximumOutstanding) {
+                    return false;
+                }
+                // Counted before the request is made, as it may be cancelled right away
+                mOutstanding.incrementAndGet();
+                setHandled(tile, true);
+                if (mProvider.prefetchMapTile(tile, this, generation)) {
+                    mRequestedCount.incrementAndGet();
+                } else {
+                    // Already being loaded, or not available at all
+                    release();
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Forget all requests, for instance when the provider is detached.
+     */
+    public void reset() {
+        synchronized (this) {
+            mGeneration++;
+            mZoom = -1;
+            mComplete = false;
+        }
+        synchronized (mHandled) {
+            mHandled.clear();
+        }
+        mOutstanding.set(0);
+    }
+
+    /**
+     * @return the priority, or {@link MapTileViewport#PRIORITY_NONE} if the tile is no longer
+     * above or below the view
+     */
+    @Override
+    public synchronized float getPriority(final MapTile tile, final int generation) {
+        if (generation != mGeneration) {
+            return MapTileViewport.PRIORITY_NONE;
+        }
+        final int z = tile.getZ();
+        final int worldTiles = 1 << mZoom;
+        final double centerX = (mLeft + mRight + 1) / 2.0;
+        final double centerY = (mTop + mBottom + 1) / 2.0;
+        float cost = 0;
+        if (z == mZoom - 1) {
+            if (!contains(tile, floorHalf(mLeft), floorHalf(mTop), floorHalf(mRight),
+                    floorHalf(mBottom))) {
+                return MapTileViewport.PRIORITY_NONE;
+            }
+        } else if (z == mZoom + 1 && mIdle) {
+            final int childLeft = ((mLeft + mRight + 1) / 2 - CHILD_AREA / 2) * 2;
+            final int childTop = ((mTop + mBottom + 1) / 2 - CHILD_AREA / 2) * 2;
+            if (!contains(tile, childLeft, childTop, childLeft + CHILD_AREA * 2 - 1,
+                    childTop + CHILD_AREA * 2 - 1)) {
+                return MapTileViewport.PRIORITY_NONE;
+            }
+            cost = CHILD_COST;
+        } else {
+            return MapTileViewport.PRIORITY_NONE;
+        }
+        // Distance from the centre of the view, in tiles of the zoom level in view
+        final double scale = Math.pow(2, mZoom - z);
+        double dx = ((tile.getX() + 0.5) * scale - centerX) % worldTiles;
+        if (dx > worldTiles / 2.0) {
+            dx -= worldTiles;
+        } else if (dx < -worldTiles / 2.0) {
+            dx += worldTiles;
+        }
+        final double dy = (tile.getY() + 0.5) * scale - centerY;
+        return PRIORITY_BASE + (float) Math.sqrt(dx * dx + dy * dy) + cost;
+    }
+
+    /**
+     * @return whether a tile lies within a range of its zoom level, which may run past the
+     * edges of the world
+     */
+    private static boolean contains(final MapTile tile, final int left, final int top,
+                                    final int right, final int bottom) {
+        final int worldTiles = 1 << tile.getZ();
+        if (tile.getY() < top || tile.getY() > bottom) {
+            return false;
+        }
+        return right - left + 1 >= worldTiles
+                || GeometryMath.mod(tile.getX() - left, worldTiles) <= right - left;
+    }
+
+    private boolean isHandled(final long key) {
+        synchronized (mHandled) {
+            return mHandled.containsKey(key);
+        }
+    }
+
+    private void setHandled(final MapTile tile, final boolean handled) {
+        synchronized (mHandled) {
+            if (handled) {
+                mHandled.put(tile, Boolean.TRUE);
+            } else {
+                mHandled.remove(tile);
+            }
+        }
+    }
+
+    private void release() {
+        if (mOutstanding.decrementAndGet() < 0) {
+            mOutstanding.set(0);
+        }
+    }
+
+    @Override
+    public void onPrefetchCompleted(final MapTile tile) {
+        release();
+        mCompletedCount.incrementAndGet();
+        if (mProvider.mTileCache.pinTile(tile)) {
+            mPinnedCount.incrementAndGet();
+        }
+        mDirty = true;
+    }
+
+    @Override
+    public void onPrefetchFailed(final MapTile tile) {
+        release();
+        mFailedCount.incrementAndGet();
+        mDirty = true;
+    }
+
+    @Override
+    public void onPrefetchCancelled(final MapTile tile) {
+        release();
+        mCancelledCount.incrementAndGet();
+        // Requested again should it come back above or below the view
+        setHandled(tile, false);
+        mDirty = true;
+    }
+
+    @Override
+    public void onPrefetchPromoted(final MapTile tile) {
+        release();
+        mDirty = true;
+    }
+
+    public long getRequestedCount() {
+        return mRequestedCount.get();
+    }
+
+    public long getCompletedCount() {
+        return mCompletedCount.get();
+    }
+
+    public long getCancelledCount() {
+        return mCancelledCount.get();
+    }
+
+    public long getFailedCount() {
+        return mFailedCount.get();
+    }
+
+    /**
+     * @return the number of times a tile was pinned in memory
+     */
+    public long getPinnedCount() {
+        return mPinnedCount.get();
+    }
+
+    public void resetStats() {
+        mRequestedCount.set(0);
+        mCompletedCount.set(0);
+        mCancelledCount.set(0);
+        mFailedCount.set(0);
+        mPinnedCount.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "MapTilePyramidPrefetcher{requested=" + getRequestedCount()
+                + ", completed=" + getCompletedCount()
+                + ", cancelled=" + getCancelledCount()
+                + ", failed=" + getFailedCount()
+                + ", pinned=" + getPinnedCount() + "}";
+    }
+
+    private static int floorHalf(final int value) {
+        return value >> 1;
+    }
+}
@@ -0,0 +1,185 @@
+package com.mapbox.mapboxsdk.tileprovider;
+
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A process-wide registry of tile requests that are in flight. Tile layers sharing a cache key,
+ * whether in the same {@link com.mapbox.mapboxsdk.views.MapView} or in different ones, share a
+ * single {@link MapTileCache}, so only one of them needs to fetch and decode a given tile: the
+ * first request becomes the primary one and every later request for the same tile waits for
+ * its result instead of starting another download.
+ */
+public class MapTileRequestCoalescer {
+    private static final String TAG = "MapTileRequestCoalescer";
+
+    private static MapTileRequestCoalescer mapTileRequestCoalescer = null;
+
+    private final HashMap<String, InFlightRequest> mInFlight = new HashMap<String, InFlightRequest>();
+
+    private final AtomicLong mStartedRequestCount = new AtomicLong(0);
+    private final AtomicLong mCoalescedRequestCount = new AtomicLong(0);
+
+    private MapTileRequestCoalescer() {
+        super();
+    }
+
+    public static synchronized MapTileRequestCoalescer getMapTileRequestCoalescer() {
+        if (mapTileRequestCoalescer == null) {
+            mapTileRequestCoalescer = new MapTileRequestCoalescer();
+        }
+        return mapTileRequestCoalescer;
+    }
+
+    /**
+     * Register a new request.
+     *
+     * @param aState the request
+     * @return true if the caller should go ahead and load the tile, false if the request was
+     * attached to one already in flight and will be notified through its callback
+     */
+    public synchronized boolean register(final MapTileRequestState aState) {
+        final String key = aState.getMapTile().getCacheKey();
+        final InFlightRequest request = mInFlight.get(key);
+        if (request == null) {
+            mInFlight.put(key, new InFlightRequest(aState));
+            mStartedRequestCount.incrementAndGet();
+            return true;
+        }
+        if (request.primary != aState && !request.waiters.contains(aState)) {
+            request.waiters.add(aState);
+            mCoalescedRequestCount.incrementAndGet();
+        }
+        return false;
+    }
+
+    /**
+     * The given request has finished, successfully or not. If it was the primary request for
+     * its tile, the requests waiting on it are returned so that they can be notified.
+     *
+     * @param aState the request
+     * @return the waiting requests, possibly empty
+     */
+    public synchronized List<MapTileRequestState> complete(final MapTileRequestState aState) {
+        final String key = aState.getMapTile().getCacheKey();
+        final InFlightRequest request = mInFlight.get(key);
+        if (request == null) {
+            return Collections.emptyList();
+        }
+        if (request.primary != aState) {
+            request.waiters.remove(aState);
+            return Collections.emptyList();
+        }
+        mInFlight.remove(key);
+        return request.waiters;
+    }
+
+    /**
+     * The given request was dropped before completing. If other requests were waiting on it,
+     * the first of them becomes the primary request and must now be loaded by its owner.
+     *
+     * @param aState the dropped request
+     * @return the promoted request, or null if nobody else needs the tile
+     */
+    public synchronized MapTileRequestState cancel(final MapTileRequestState aState) {
+        final String key = aState.getMapTile().getCacheKey();
+        final InFlightRequest request = mInFlight.get(key);
+        if (request == null) {
+            return null;
+        }
+        if (request.primary != aState) {
+            request.waiters.remove(aState);
+            return null;
+        }
+        if (request.waiters.isEmpty()) {
+            mInFlight.remove(key);
+            return null;
+        }
+        request.primary = request.waiters.remove(0);
+        return request.primary;
+    }
+
+    /**
+     * The given request failed. If other requests were waiting on it, the first of them becomes
+     * the primary request, to be retried by its owner, and the others now wait on that one, so
+     * that a failed tile is retried once rather than by every waiting layer at the same time.
+     *
+     * @param aState the failed request
+     * @return the promoted request, or null if nobody else needs the tile
+     */
+    public synchronized MapTileRequestState fail(final MapTileRequestState aState) {
+        return cancel(aState);
+    }
+
+    /**
+     * Drop every request made by a given callback, typically a tile provider being detached.
+     *
+     * @param aCallback the callback whose requests are dropped
+     * @return the requests promoted in their place, which must now be loaded by their owners
+     */
+    public synchronized List<MapTileRequestState> detach(final IMapTileProviderCallback aCallback) {
+        final List<MapTileRequestState> promoted = new ArrayList<MapTileRequestState>();
+        final Iterator<InFlightRequest> it = mInFlight.values().iterator();
+        while (it.hasNext()) {
+            final InFlightRequest request = it.next();
+            final Iterator<MapTileRequestState> waiters = request.waiters.iterator();
+            while (waiters.hasNext()) {
+                if (waiters.next().getCallback() == aCallback) {
+                    waiters.remove();
+                }
+            }
+            if (request.primary.getCallback() == aCallback) {
+                if (request.waiters.isEmpty()) {
+                    it.remove();
+                } else {
+                    request.primary = request.waiters.remove(0);
+                    promoted.add(request.primary);
+                }
+            }
+        }
+        if (promoted.size() > 0) {
+            Log.d(TAG, "Detached provider handed " + promoted.size() + " requests over");
+        }
+        return promoted;
+    }
+
+    /**
+     * @return the number of requests currently in flight
+     */
+    public synchronized int getInFlightRequestCount() {
+        return mInFlight.size();
+    }
+
+    /**
+     * @return the number of requests that actually loaded a tile
+     */
+    public long getStartedRequestCount() {
+        return mStartedRequestCount.get();
+    }
+
+    /**
+     * @return the number of requests that were served by another request already in flight
+     */
+    public long getCoalescedRequestCount() {
+        return mCoalescedRequestCount.get();
+    }
+
+    public void resetStats() {
+        mStartedRequestCount.set(0);
+        mCoalescedRequestCount.set(0);
+    }
+
+    private static final class InFlightRequest {
+        MapTileRequestState primary;
+        final List<MapTileRequestState> waiters = new ArrayList<MapTileRequestState>(1);
+
+        InFlightRequest(final MapTileRequestState aPrimary) {
+            primary = aPrimary;
+        }
+    }
+}
@@ -14,6 +14,9 @@ public class MapTileRequestState {
     private final Queue<MapTileModuleLayerBase> mProviderQueue;
     private final MapTile mMapTile;
     private final IMapTileProviderCallback mCallback;
+    private final MapTileViewport mViewport;
+    private IMapTilePrefetcher mPrefetcher;
+    private final int mPrefetchGeneration;
     private MapTileModuleLayerBase mCurrentProvider;
 
     /**
@@ -21,12 +24,32 @@ public class MapTileRequestState {
      */
     public MapTileRequestState(final MapTile mapTile, final MapTileModuleLayerBase[] providers,
             final IMapTileProviderCallback callback) {
+        this(mapTile, providers, callback, null);
+    }
+
+    /**
+     * Initialize a new state to keep track of a map tile requested for a given viewport
+     */
+    public MapTileRequestState(final MapTile mapTile, final MapTileModuleLayerBase[] providers,
+            final IMapTileProviderCallback callback, final MapTileViewport viewport) {
+        this(mapTile, providers, callback, viewport, null, 0);
+    }
+
+    /**
+     * Initialize a new state to keep track of a map tile prefetched ahead of the viewport
+     */
+    public MapTileRequestState(final MapTile mapTile, final MapTileModuleLayerBase[] providers,
+            final IMapTileProviderCallback callback, final MapTileViewport viewport,
+            final IMapTilePrefetcher prefetcher, final int prefetchGeneration) {
         mProviderQueue = new LinkedList<MapTileModuleLayerBase>();
         if (providers != null) {
             Collections.addAll(mProviderQueue, providers);
         }
         mMapTile = mapTile;
         mCallback = callback;
+        mViewport = viewport;
+        mPrefetcher = prefetcher;
+        mPrefetchGeneration = prefetchGeneration;
     }
 
     /**
@@ -47,6 +70,51 @@ public class MapTileRequestState {
         return mCallback;
     }
 
+    /**
+     * Get the viewport the tile was requested for, if any
+     *
+     * @return the viewport, or null
+     */
+    public MapTileViewport getViewport() {
+        return mViewport;
+    }
+
+    /**
+     * Get the loading priority of this request, lower values being more urgent.
+     *
+     * @return the priority, {@link MapTileViewport#PRIORITY_NONE} if the tile is out of view
+     */
+    public float getPriority() {
+        final IMapTilePrefetcher prefetcher = getPrefetcher();
+        if (prefetcher != null) {
+            return prefetcher.getPriority(mMapTile, mPrefetchGeneration);
+        }
+        return (mViewport != null) ? mViewport.getPriority(mMapTile) : 0;
+    }
+
+    /**
+     * @return whether this request was made ahead of the viewport and nobody needs it yet
+     */
+    public boolean isPrefetch() {
+        return getPrefetcher() != null;
+    }
+
+    private synchronized IMapTilePrefetcher getPrefetcher() {
+        return mPrefetcher;
+    }
+
+    /**
+     * Turn a prefetch request into a regular one, because its tile is now needed or the request
+     * is over.
+     *
+     * @return the prefetcher that made the request, or null if it wasn't a prefetch request
+     */
+    public synchronized IMapTilePrefetcher clearPrefetch() {
+        final IMapTilePrefetcher prefetcher = mPrefetcher;
+        mPrefetcher = null;
+        return prefetcher;
+    }
+
     public MapTileModuleLayerBase getNextProvider() {
         mCurrentProvider = mProviderQueue.poll();
         return mCurrentProvider;
@@ -0,0 +1,164 @@
+package com.mapbox.mapboxsdk.tileprovider;
+
+import android.text.TextUtils;
+import java.net.HttpURLConnection;
+
+/**
+ * The HTTP cache validators of a downloaded tile: its ETag, its Last-Modified date and the time
+ * at which it stops being fresh. They are kept next to the cached tile so that a stale tile can
+ * be revalidated with a conditional request instead of being downloaded and decoded again.
+ */
+public class MapTileValidators {
+
+    /**
+     * Freshness given to tiles whose response carries no Cache-Control max-age nor Expires
+     * header, as a fraction of the time elapsed since they were last modified.
+     */
+    private static final float HEURISTIC_FRESHNESS_RATIO = 0.1f;
+    private static final long MAXIMUM_HEURISTIC_FRESHNESS_MS = 24 * 60 * 60 * 1000;
+
+    private static final String SEPARATOR = "\n";
+
+    private final String mETag;
+    private final String mLastModified;
+    private final long mExpires;
+
+    public MapTileValidators(final String eTag, final String lastModified, final long expires) {
+        mETag = TextUtils.isEmpty(eTag) ? null : eTag;
+        mLastModified = TextUtils.isEmpty(lastModified) ? null : lastModified;
+        mExpires = expires;
+    }
+
+    /**
+     * Read the validators of a response.
+     *
+     * @param connection a connection whose response headers have been received
+     * @return the validators
+     */
+    public static MapTileValidators fromConnection(final HttpURLConnection connection) {
+        return new MapTileValidators(connection.getHeaderField("ETag"),
+                connection.getHeaderField("Last-Modified"), computeExpires(connection));
+    }
+
+    /**
+     * Build the validators to keep after the server answered a conditional request with
+     * 304 Not Modified. The response may carry an updated lifetime and validators; anything
+     * it omits is kept from the previous response.
+     *
+     * @param connection the 304 response
+     * @return the refreshed validators
+     */
+    public MapTileValidators refresh(final HttpURLConnection connection) {
+        final String eTag = connection.getHeaderField("ETag");
+        final String lastModified = connection.getHeaderField("Last-Modified");
+        return new MapTileValidators(eTag != null ? eTag : mETag,
+                lastModified != null ? lastModified : mLastModified, computeExpires(connection));
+    }
+
+    /**
+     * Add the conditional headers to a request.
+     *
+     * @param connection a connection that has not been connected yet
+     */
+    public void applyTo(final HttpURLConnection connection) {
+        if (mETag != null) {
+            connection.setRequestProperty("If-None-Match", mETag);
+        }
+        if (mLastModified != null) {
+            connection.setRequestProperty("If-Modified-Since", mLastModified);
+        }
+    }
+
+    /**
+     * @return whether a conditional request can be made for this tile
+     */
+    public boolean hasValidators() {
+        return mETag != null || mLastModified != null;
+    }
+
+    public boolean isExpired() {
+        return System.currentTimeMillis() >= mExpires;
+    }
+
+    public String getETag() {
+        return mETag;
+    }
+
+    public String getLastModified() {
+        return mLastModified;
+    }
+
+    /**
+     * @return the time, in milliseconds since the epoch, at which the tile stops being fresh
+     */
+    public long getExpires() {
+        return mExpires;
+    }
+
+    /**
+     * @return a single string suitable for the disk cache, see {@link #parse(String)}
+     */
+    public String serialize() {
+        return mExpires + SEPARATOR + (mETag != null ? mETag : "") + SEPARATOR
+                + (mLastModified != null ? mLastModified : "");
+    }
+
+    /**
+     * Read validators written by {@link #serialize()}.
+     *
+     * @param value the serialized validators
+     * @return the validators, or null if the value can't be read
+     */
+    public static MapTileValidators parse(final String value) {
+        if (value == null) {
+            return null;
+        }
+        final String[] parts = value.split(SEPARATOR, -1);
+        if (parts.length != 3) {
+            return null;
+        }
+        try {
+            return new MapTileValidators(parts[1], parts[2], Long.parseLong(parts[0]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static long computeExpires(final HttpURLConnection connection) {
+        final long now = System.currentTimeMillis();
+        final String cacheControl = connection.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim();
+                if (directive.equalsIgnoreCase("no-cache") || directive.equalsIgnoreCase("no-store")) {
+                    return now;
+                }
+                if (directive.regionMatches(true, 0, "max-age=", 0, 8)) {
+                    try {
+                        return now + Long.parseLong(directive.substring(8).trim()) * 1000;
+                    } catch (NumberFormatException e) {
+                        break;
+                    }
+                }
+            }
+        }
+        final long expires = connection.getHeaderFieldDate("Expires", 0);
+        if (expires > 0) {
+            final long date = connection.getHeaderFieldDate("Date", now);
+            // Expires is relative to the server clock
+            return now + (expires - date);
+        }
+        final long lastModified = connection.getHeaderFieldDate("Last-Modified", 0);
+        if (lastModified > 0 && lastModified < now) {
+            return now + Math.min(MAXIMUM_HEURISTIC_FRESHNESS_MS,
+                    (long) ((now - lastModified) * HEURISTIC_FRESHNESS_RATIO));
+        }
+        return now;
+    }
+
+    @Override
+    public String toString() {
+        return "MapTileValidators{eTag=" + mETag + ", lastModified=" + mLastModified
+                + ", expires=" + mExpires + "}";
+    }
+}
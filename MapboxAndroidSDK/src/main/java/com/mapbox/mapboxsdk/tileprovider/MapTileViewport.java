@@ -0,0 +1,149 @@
+package com.mapbox.mapboxsdk.tileprovider;
+
+/**
+ * The range of tiles currently covered by a map view. Tile providers use it to rank pending
+ * requests: tiles near the centre of the viewport, at the zoom level being displayed, are
+ * loaded first, and tiles that have scrolled well off screen are dropped.
+ * <p/>
+ * Updated from the draw loop, read from the loader threads.
+ */
+public class MapTileViewport {
+
+    /**
+     * Tiles further than this many tiles outside the viewport are no longer worth loading.
+     */
+    public static final int DEFAULT_CANCEL_MARGIN = 2;
+
+    /**
+     * Priority cost added for every zoom level between a tile and the displayed zoom level,
+     * expressed in tiles of distance from the centre.
+     */
+    private static final float ZOOM_LEVEL_COST = 4f;
+
+    /**
+     * Priority returned for requests that should be cancelled.
+     */
+    public static final float PRIORITY_NONE = Float.MAX_VALUE;
+
+    private int mZoom = -1;
+    private int mLeft;
+    private int mTop;
+    private int mRight;
+    private int mBottom;
+    private int mCancelMargin = DEFAULT_CANCEL_MARGIN;
+
+    /**
+     * Set the visible tile range. Coordinates are those of the draw loop, so they may lie
+     * outside of the [0, 2^zoom) range when the map wraps around.
+     *
+     * @param zoom the rounded zoom level being drawn
+     * @param left the leftmost tile column
+     * @param top the topmost tile row
+     * @param right the rightmost tile column
+     * @param bottom the bottommost tile row
+     */
+    public synchronized void set(final int zoom, final int left, final int top, final int right,
+                                 final int bottom) {
+        mZoom = zoom;
+        mLeft = left;
+        mTop = top;
+        mRight = right;
+        mBottom = bottom;
+    }
+
+    /**
+     * @return whether the viewport has been set at least once
+     */
+    public synchronized boolean isSet() {
+        return mZoom >= 0;
+    }
+
+    public synchronized int getZoom() {
+        return mZoom;
+    }
+
+    public synchronized int getLeft() {
+        return mLeft;
+    }
+
+    public synchronized int getTop() {
+        return mTop;
+    }
+
+    public synchronized int getRight() {
+        return mRight;
+    }
+
+    public synchronized int getBottom() {
+        return mBottom;
+    }
+
+    public synchronized void setCancelMargin(final int margin) {
+        mCancelMargin = margin;
+    }
+
+    /**
+     * Compute the loading priority of a tile. Lower values are more urgent: the value is the
+     * distance in tiles from the centre of the viewport, plus a cost for each zoom level
+     * between the tile and the displayed zoom level.
+     *
+     * @param tile the tile
+     * @return the priority, or {@link #PRIORITY_NONE} if the tile is out of view and should
+     * not be loaded at all
+     */
+    public synchronized float getPriority(final MapTile tile) {
+        if (mZoom < 0) {
+            return 0;
+        }
+        final int dz = tile.getZ() - mZoom;
+        // Express the tile centre in tile units of the displayed zoom level
+        final double scale = Math.pow(2, -dz);
+        final double tileX = (tile.getX() + 0.5) * scale;
+        final double tileY = (tile.getY() + 0.5) * scale;
+        final double halfExtent = scale / 2;
+
+        final int worldTiles = 1 << mZoom;
+        final double dx = wrap(tileX - (mLeft + mRight + 1) / 2.0, worldTiles);
+        final double dy = tileY - (mTop + mBottom + 1) / 2.0;
+
+        final double halfWidth = (mRight - mLeft + 1) / 2.0 + mCancelMargin;
+        final double halfHeight = (mBottom - mTop + 1) / 2.0 + mCancelMargin;
+        if (Math.abs(dx) - halfExtent > halfWidth || Math.abs(dy) - halfExtent > halfHeight) {
+            return PRIORITY_NONE;
+        }
+        return (float) Math.sqrt(dx * dx + dy * dy) + Math.abs(dz) * ZOOM_LEVEL_COST;
+    }
+
+    /**
+     * Compute how far a tile is from the centre of the viewport, whether it is in view or not.
+     *
+     * @param z the zoom level of the tile
+     * @param x the column of the tile
+     * @param y the row of the tile
+     * @return the distance between the centres of the tile and of the viewport, in tiles of the
+     * displayed zoom level, or 0 if the viewport hasn't been set
+     */
+    public synchronized float getDistance(final int z, final int x, final int y) {
+        if (mZoom < 0) {
+            return 0;
+        }
+        final double scale = Math.pow(2, mZoom - z);
+        final double dx = wrap((x + 0.5) * scale - (mLeft + mRight + 1) / 2.0, 1 << mZoom);
+        final double dy = (y + 0.5) * scale - (mTop + mBottom + 1) / 2.0;
+        return (float) Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /**
+     * Bring a horizontal offset into [-worldTiles / 2, worldTiles / 2] since the map wraps
+     * around the antimeridian.
+     */
+    private static double wrap(double delta, final int worldTiles) {
+        delta = delta % worldTiles;
+        if (delta > worldTiles / 2.0) {
+            delta -= worldTiles;
+        } else if (delta < -worldTiles / 2.0) {
+            delta += worldTiles;
+        }
+        return delta;
+    }
+}
@@ -0,0 +1,336 @@
+package com.mapbox.mapboxsdk.tileprovider;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import com.mapbox.mapboxsdk.clustering.algo.PreCachingAlgorithmDecorator;
+import com.mapbox.mapboxsdk.overlay.Icon;
+import java.util.concurrent.atomic.AtomicLong;
+import uk.co.senab.bitmapcache.BitmapLruCache;
+
+/**
+ * Shrinks the caches of the SDK when the system runs low on memory, and restores them once the
+ * pressure drops. The {@link ComponentCallbacks2#onTrimMemory(int)} levels are graded, each grade
+ * freeing more than the one below:
+ * <ol>
+ * <li>{@link #GRADE_MODERATE}: the tile memory cache budget is cut down to three quarters,</li>
+ * <li>{@link #GRADE_LOW}: to half, and the bitmaps kept for reuse are released,</li>
+ * <li>{@link #GRADE_CRITICAL}: to a quarter, tiles waiting to be written to disk are dropped and
+ * the icon cache is cut down to a quarter,</li>
+ * <li>{@link #GRADE_COMPLETE}: to an eighth, only the tiles on screen are kept and the cluster
+ * caches are dropped.</li>
+ * </ol>
+ * The tile memory cache budget is never cut below the size of the tiles on screen, see {@link
+ * BitmapLruCache#getMemorySizeForTiles()}, or they would be evicted and decoded again on every
+ * frame. There is no callback once memory is available again: when no trim has been requested
+ * for {@link #getRestoreDelay()} milliseconds, the budgets are restored one grade at a time.
+ * <p/>
+ * Registered with the application by the first {@link com.mapbox.mapboxsdk.views.MapView}
+ * attached, on Ice Cream Sandwich and later. Apps may also forward their own
+ * {@code onTrimMemory} and {@code onLowMemory} callbacks.
+ */
+public class MemoryGovernor {
+    private static final String TAG = "MemoryGovernor";
+
+    public static final int GRADE_NONE = 0;
+    public static final int GRADE_MODERATE = 1;
+    public static final int GRADE_LOW = 2;
+    public static final int GRADE_CRITICAL = 3;
+    public static final int GRADE_COMPLETE = 4;
+
+    public static final long DEFAULT_RESTORE_DELAY_MS = 30 * 1000;
+
+    // Share of its budget the tile memory cache keeps, by grade
+    private static final float[] TILE_CACHE_SHARES = {1f, 0.75f, 0.5f, 0.25f, 0.125f};
+    private static final float ICON_CACHE_SHARE = 0.25f;
+    private static final int CLUSTER_CACHE_SIZE = 1;
+
+    private static MemoryGovernor memoryGovernor = null;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mRestoreRunnable = new Runnable() {
+        @Override
+        public void run() {
+            restore();
+        }
+    };
+
+    private volatile int mGrade = GRADE_NONE;
+    private long mRestoreDelayMs = DEFAULT_RESTORE_DELAY_MS;
+    private boolean mRegistered = false;
+
+    // Budgets from before the pressure, to restore. 0 while they are not shrunk
+    private int mTileCacheMaxSize;
+    private int mReusePoolMaxSize;
+    private int mIconCacheMaxSize;
+    private int mClusterCacheSize;
+
+    private final AtomicLong mTrimCount = new AtomicLong(0);
+    private final AtomicLong mRestoreCount = new AtomicLong(0);
+    private final AtomicLong mFreedBytes = new AtomicLong(0);
+
+    private MemoryGovernor() {
+        super();
+    }
+
+    public static synchronized MemoryGovernor getMemoryGovernor() {
+        if (memoryGovernor == null) {
+            memoryGovernor = new MemoryGovernor();
+        }
+        return memoryGovernor;
+    }
+
+    /**
+     * Listen to the trim memory callbacks of the application, once. Does nothing before Ice
+     * Cream Sandwich, which only has {@link #onLowMemory()}.
+     *
+     * @param context any context of the application
+     */
+    public synchronized void register(final Context context) {
+        if (mRegistered || Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            return;
+        }
+        TrimMemoryCallbacks.register(context.getApplicationContext(), this);
+        mRegistered = true;
+    }
+
+    /**
+     * @param level the level given to {@link ComponentCallbacks2#onTrimMemory(int)}
+     */
+    public void onTrimMemory(final int level) {
+        apply(getGrade(level), "trim level " + level);
+    }
+
+    /**
+     * The system, or the app, is out of memory: keep as little as possible.
+     */
+    public void onLowMemory() {
+        apply(GRADE_COMPLETE, "low memory");
+    }
+
+    /**
+     * @return the current grade, {@link #GRADE_NONE} when there is no memory pressure
+     */
+    public int getGrade() {
+        return mGrade;
+    }
+
+    public boolean isUnderPressure() {
+        return mGrade > GRADE_NONE;
+    }
+
+    /**
+     * @param delayMs how long without a trim request before the budgets are restored by one
+     * grade, in milliseconds
+     */
+    public synchronized void setRestoreDelay(final long delayMs) {
+        if (delayMs <= 0) {
+            throw new IllegalArgumentException("Invalid restore delay: " + delayMs);
+        }
+        mRestoreDelayMs = delayMs;
+    }
+
+    public synchronized long getRestoreDelay() {
+        return mRestoreDelayMs;
+    }
+
+    private static int getGrade(final int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            return GRADE_COMPLETE;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            return GRADE_CRITICAL;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            return GRADE_LOW;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // Nothing is drawn while hidden, but memory isn't short yet
+            return GRADE_MODERATE;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            return GRADE_CRITICAL;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return GRADE_LOW;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            return GRADE_MODERATE;
+        }
+        return GRADE_NONE;
+    }
+
+    private synchronized void restore() {
+        if (mGrade > GRADE_NONE) {
+            apply(mGrade - 1, "no trim for " + mRestoreDelayMs + "ms");
+        }
+    }
+
+    private synchronized void apply(final int grade, final String reason) {
+        final int previous = mGrade;
+        mGrade = grade;
+        if (grade > previous) {
+            mTrimCount.incrementAndGet();
+        } else if (grade < previous) {
+            mRestoreCount.incrementAndGet();
+        }
+
+        final StringBuilder freed = new StringBuilder();
+        long freedBytes = 0;
+
+        final BitmapLruCache tiles = MapTileCache.sCachedTiles;
+        if (tiles != null && tiles.isMemoryCacheEnabled()) {
+            // Tiles evicted may only move to the reuse pool
+            int before = tiles.getMemoryCacheSize() + tiles.getPinnedCacheSize()
+                    + tiles.getReusePoolSize();
+            if (mTileCacheMaxSize == 0) {
+                mTileCacheMaxSize = tiles.getMemoryCacheMaxSize();
+            }
+            // Not below what the tiles on screen take
+            final int floor = Math.max(1, tiles.getMemorySizeForTiles());
+            tiles.setMemoryCacheMaxSize(
+                    Math.max(floor, (int) (mTileCacheMaxSize * TILE_CACHE_SHARES[grade])));
+            if (grade >= GRADE_COMPLETE) {
+                // Everything not on screen, with the pinned tiles and the reuse pool
+                tiles.trimMemory();
+            }
+            if (grade == GRADE_NONE) {
+                mTileCacheMaxSize = 0;
+            }
+            freedBytes += append(freed, "tiles", before - tiles.getMemoryCacheSize()
+                    - tiles.getPinnedCacheSize() - tiles.getReusePoolSize());
+
+            if (grade >= GRADE_LOW) {
+                if (mReusePoolMaxSize == 0) {
+                    mReusePoolMaxSize = tiles.getReusePoolMaxSize();
+                }
+                before = tiles.getReusePoolSize();
+                tiles.setReusePoolMaxSize(0);
+                freedBytes += append(freed, "reuse pool", before);
+            } else if (mReusePoolMaxSize > 0) {
+                tiles.setReusePoolMaxSize(mReusePoolMaxSize);
+                mReusePoolMaxSize = 0;
+            }
+
+            if (grade >= GRADE_CRITICAL) {
+                before = tiles.getDiskWriteQueueSize();
+                tiles.dropPendingDiskWrites();
+                freedBytes += append(freed, "disk writes", before);
+            }
+        }
+
+        final BitmapLruCache icons = Icon.getIconCache();
+        if (icons != null && icons.isMemoryCacheEnabled()) {
+            if (grade >= GRADE_CRITICAL) {
+                if (mIconCacheMaxSize == 0) {
+                    mIconCacheMaxSize = icons.getMemoryCacheMaxSize();
+                }
+                final int before = icons.getMemoryCacheSize() + icons.getReusePoolSize();
+                icons.setMemoryCacheMaxSize(
+                        Math.max(1, (int) (mIconCacheMaxSize * ICON_CACHE_SHARE)));
+                icons.trimMemory();
+                freedBytes += append(freed, "icons",
+                        before - icons.getMemoryCacheSize() - icons.getReusePoolSize());
+            } else if (mIconCacheMaxSize > 0) {
+                icons.setMemoryCacheMaxSize(mIconCacheMaxSize);
+                mIconCacheMaxSize = 0;
+            }
+        }
+
+        if (grade >= GRADE_COMPLETE) {
+            if (mClusterCacheSize == 0) {
+                mClusterCacheSize = PreCachingAlgorithmDecorator.getCacheSize();
+            }
+            PreCachingAlgorithmDecorator.setCacheSize(CLUSTER_CACHE_SIZE);
+            final int zoomLevels = PreCachingAlgorithmDecorator.evictAllCaches();
+            if (zoomLevels > 0) {
+                freed.append(freed.length() > 0 ? ", " : "").append(zoomLevels)
+                        .append(" zoom levels of clusters");
+            }
+        } else if (mClusterCacheSize > 0) {
+            PreCachingAlgorithmDecorator.setCacheSize(mClusterCacheSize);
+            mClusterCacheSize = 0;
+        }
+
+        mFreedBytes.addAndGet(freedBytes);
+        if (grade != previous || freed.length() > 0) {
+            Log.i(TAG, "Memory pressure grade " + previous + " -> " + grade + " (" + reason
+                    + "), freed " + (freed.length() > 0 ? freed : "nothing"));
+        }
+
+        mHandler.removeCallbacks(mRestoreRunnable);
+        if (grade > GRADE_NONE) {
+            mHandler.postDelayed(mRestoreRunnable, mRestoreDelayMs);
+        }
+    }
+
+    private static int append(final StringBuilder freed, final String what, final int bytes) {
+        if (bytes <= 0) {
+            return 0;
+        }
+        freed.append(freed.length() > 0 ? ", " : "").append(bytes / 1024).append("KB of ")
+                .append(what);
+        return bytes;
+    }
+
+    /**
+     * @return the number of times the caches were shrunk
+     */
+    public long getTrimCount() {
+        return mTrimCount.get();
+    }
+
+    /**
+     * @return the number of times the budgets were restored by a grade or more
+     */
+    public long getRestoreCount() {
+        return mRestoreCount.get();
+    }
+
+    /**
+     * @return the memory freed by shrinking the caches, in bytes
+     */
+    public long getFreedBytes() {
+        return mFreedBytes.get();
+    }
+
+    public void resetStats() {
+        mTrimCount.set(0);
+        mRestoreCount.set(0);
+        mFreedBytes.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "MemoryGovernor {grade=" + getGrade() + ", trims=" + getTrimCount()
+                + ", restores=" + getRestoreCount() + ", freed=" + getFreedBytes() / 1024
+                + "KB}";
+    }
+
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private static final class TrimMemoryCallbacks implements ComponentCallbacks2 {
+        private final MemoryGovernor mGovernor;
+
+        private TrimMemoryCallbacks(final MemoryGovernor governor) {
+            mGovernor = governor;
+        }
+
+        static void register(final Context context, final MemoryGovernor governor) {
+            context.registerComponentCallbacks(new TrimMemoryCallbacks(governor));
+        }
+
+        @Override
+        public void onTrimMemory(final int level) {
+            mGovernor.onTrimMemory(level);
+        }
+
+        @Override
+        public void onLowMemory() {
+            mGovernor.onLowMemory();
+        }
+
+        @Override
+        public void onConfigurationChanged(final Configuration newConfig) {
+            // Nothing to do
+        }
+    }
+}
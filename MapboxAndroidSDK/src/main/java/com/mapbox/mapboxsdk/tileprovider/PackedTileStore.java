@@ -0,0 +1,604 @@
+package com.mapbox.mapboxsdk.tileprovider;
+
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * A disk store for tiles packed into a few large segment files, instead of one file per tile.
+ * Tiles are appended to the newest segment, an index held in memory maps each key to where its
+ * tile is, and full segments are read through memory mappings. Startup reads the record
+ * headers of each segment in place of scanning a directory of tens of thousands of files.
+ * <p/>
+ * Once the tiles exceed the maximum size, the least recently used ones are dropped from the
+ * index. The space they and overwritten tiles took stays in their segment until it is
+ * compacted: when less than {@link #COMPACTION_THRESHOLD} of a segment is still in use, its
+ * remaining tiles are copied to the newest segment and the file is deleted.
+ * <p/>
+ * Each record is a header (magic, key length, value length, CRC32 of key and value), the key in
+ * UTF-8 and the value. Removed keys are written as records without a value. A record cut short
+ * by a crash is detected by its checksum and truncated the next time the store is opened.
+ */
+public class PackedTileStore {
+    private static final String TAG = "PackedTileStore";
+
+    public static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * The share of a segment that must still be in use for it to be kept as it is.
+     */
+    public static final float COMPACTION_THRESHOLD = 0.5f;
+
+    private static final int RECORD_MAGIC = 0x54494c45;
+    private static final int HEADER_SIZE = 16;
+    private static final int MAXIMUM_KEY_LENGTH = 4096;
+    private static final int TOMBSTONE = -1;
+    private static final String SEGMENT_PREFIX = "tiles-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mDirectory;
+    private final int mSegmentSize;
+    private long mMaxSize;
+
+    // In access order, the eldest entry is the least recently used
+    private final LinkedHashMap<String, Entry> mIndex =
+            new LinkedHashMap<String, Entry>(1024, 0.75f, true);
+    private final TreeMap<Integer, Segment> mSegments = new TreeMap<Integer, Segment>();
+    private Segment mActive;
+    private long mLiveBytes;
+
+    private final AtomicLong mHitCount = new AtomicLong(0);
+    private final AtomicLong mMissCount = new AtomicLong(0);
+    private final AtomicLong mWriteCount = new AtomicLong(0);
+    private final AtomicLong mEvictionCount = new AtomicLong(0);
+    private final AtomicLong mCompactionCount = new AtomicLong(0);
+    private final AtomicLong mReclaimedBytes = new AtomicLong(0);
+
+    public PackedTileStore(final File directory, final long maxSize) throws IOException {
+        this(directory, maxSize, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Open the store, reading the index of the tiles already in it.
+     *
+     * @param directory the directory holding the segment files
+     * @param maxSize the maximum size of the tiles kept, in bytes
+     * @param segmentSize the size from which a new segment is started, in bytes
+     * @throws IOException if the directory can't be created or a segment can't be opened
+     */
+    public PackedTileStore(final File directory, final long maxSize, final int segmentSize)
+            throws IOException {
+        if (maxSize <= 0 || segmentSize <= HEADER_SIZE) {
+            throw new IllegalArgumentException("Invalid store size: " + maxSize
+                    + " bytes in segments of " + segmentSize);
+        }
+        mDirectory = directory;
+        mMaxSize = maxSize;
+        mSegmentSize = segmentSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create tile store directory " + directory);
+        }
+        load();
+    }
+
+    private void load() throws IOException {
+        final File[] files = mDirectory.listFiles();
+        final List<Integer> ids = new ArrayList<Integer>();
+        if (files != null) {
+            for (final File file : files) {
+                final int id = parseSegmentId(file.getName());
+                if (id >= 0) {
+                    ids.add(id);
+                }
+            }
+        }
+        final Integer[] sorted = ids.toArray(new Integer[ids.size()]);
+        Arrays.sort(sorted);
+        for (int i = 0; i < sorted.length; i++) {
+            final Segment segment = new Segment(sorted[i], segmentFile(sorted[i]));
+            mSegments.put(segment.id, segment);
+            // Only the last segment can have been cut short, the others are complete
+            scan(segment, i == sorted.length - 1);
+        }
+        if (mSegments.isEmpty()) {
+            mActive = newSegment(0);
+        } else {
+            mActive = mSegments.lastEntry().getValue();
+            mActive.unmap();
+        }
+        trimToSize();
+        Log.i(TAG, "Opened " + mDirectory + ": " + mIndex.size() + " tiles, " + mLiveBytes
+                + " bytes in " + mSegments.size() + " segments");
+    }
+
+    private void scan(final Segment segment, final boolean verify) throws IOException {
+        final MappedByteBuffer map = segment.map();
+        long offset = 0;
+        while (offset + HEADER_SIZE <= segment.length) {
+            map.position((int) offset);
+            final int magic = map.getInt();
+            final int keyLength = map.getInt();
+            final int valueLength = map.getInt();
+            final int crc = map.getInt();
+            if (magic != RECORD_MAGIC || keyLength <= 0 || keyLength > MAXIMUM_KEY_LENGTH
+                    || valueLength < TOMBSTONE
+                    || offset + HEADER_SIZE + keyLength + Math.max(valueLength, 0)
+                    > segment.length) {
+                break;
+            }
+            final byte[] keyBytes = new byte[keyLength];
+            map.get(keyBytes);
+            if (verify) {
+                final CRC32 checksum = new CRC32();
+                checksum.update(keyBytes);
+                if (valueLength > 0) {
+                    final byte[] value = new byte[valueLength];
+                    map.get(value);
+                    checksum.update(value);
+                }
+                if ((int) checksum.getValue() != crc) {
+                    break;
+                }
+            }
+            final String key = new String(keyBytes, UTF_8);
+            final int recordSize = HEADER_SIZE + keyLength + Math.max(valueLength, 0);
+            if (valueLength == TOMBSTONE) {
+                removeEntry(key);
+            } else {
+                setEntry(key, new Entry(segment, offset + HEADER_SIZE + keyLength, valueLength,
+                        recordSize));
+            }
+            offset += recordSize;
+        }
+        if (offset < segment.length) {
+            Log.w(TAG, "Truncating " + segment.file + " from " + segment.length + " to " + offset
+                    + " bytes");
+            segment.unmap();
+            segment.channel.truncate(offset);
+            segment.length = offset;
+        }
+    }
+
+    /**
+     * @param key the key of the tile
+     * @return the tile, or null if it isn't in the store
+     */
+    public synchronized byte[] get(final String key) {
+        final Entry entry = mIndex.get(key);
+        if (entry == null) {
+            mMissCount.incrementAndGet();
+            return null;
+        }
+        try {
+            final byte[] value = read(entry);
+            mHitCount.incrementAndGet();
+            return value;
+        } catch (final IOException e) {
+            Log.e(TAG, "Error reading " + key + " from " + entry.segment.file, e);
+            removeEntry(key);
+            mMissCount.incrementAndGet();
+            return null;
+        }
+    }
+
+    public synchronized boolean contains(final String key) {
+        return mIndex.containsKey(key);
+    }
+
+    /**
+     * Store a tile, replacing the one with the same key if any.
+     *
+     * @param key the key of the tile
+     * @param value the tile
+     * @return whether the tile was written
+     */
+    public synchronized boolean put(final String key, final byte[] value) {
+        if (mActive == null) {
+            return false;
+        }
+        try {
+            setEntry(key, append(key, value));
+            mWriteCount.incrementAndGet();
+            trimToSize();
+            compact();
+            return true;
+        } catch (final IOException e) {
+            Log.e(TAG, "Error writing " + key + " to " + mDirectory, e);
+            return false;
+        }
+    }
+
+    /**
+     * @param key the key of the tile
+     * @return whether there was a tile to remove
+     */
+    public synchronized boolean remove(final String key) {
+        if (!mIndex.containsKey(key) || mActive == null) {
+            return false;
+        }
+        removeEntry(key);
+        try {
+            // So that the tile doesn't come back when the store is opened again
+            append(key, null);
+        } catch (final IOException e) {
+            Log.e(TAG, "Error removing " + key + " from " + mDirectory, e);
+        }
+        return true;
+    }
+
+    /**
+     * Remove every tile and delete the segment files.
+     */
+    public synchronized void clear() {
+        for (final Segment segment : mSegments.values()) {
+            segment.close();
+            if (!segment.file.delete()) {
+                Log.w(TAG, "Can't delete " + segment.file);
+            }
+        }
+        mSegments.clear();
+        mIndex.clear();
+        mLiveBytes = 0;
+        try {
+            mActive = newSegment(0);
+        } catch (final IOException e) {
+            Log.e(TAG, "Error resetting " + mDirectory, e);
+            mActive = null;
+        }
+    }
+
+    public synchronized void close() {
+        for (final Segment segment : mSegments.values()) {
+            segment.close();
+        }
+        mSegments.clear();
+        mIndex.clear();
+        mLiveBytes = 0;
+        mActive = null;
+    }
+
+    public synchronized void setMaxSize(final long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Invalid store size: " + maxSize);
+        }
+        mMaxSize = maxSize;
+        trimToSize();
+    }
+
+    public synchronized long getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * @return the size of the tiles in the store, in bytes
+     */
+    public synchronized long size() {
+        return mLiveBytes;
+    }
+
+    /**
+     * @return the size of the segment files, including the space compaction hasn't reclaimed yet
+     */
+    public synchronized long getFileSize() {
+        long size = 0;
+        for (final Segment segment : mSegments.values()) {
+            size += segment.length;
+        }
+        return size;
+    }
+
+    public synchronized int getEntryCount() {
+        return mIndex.size();
+    }
+
+    public synchronized int getSegmentCount() {
+        return mSegments.size();
+    }
+
+    private Entry append(final String key, final byte[] value) throws IOException {
+        final byte[] keyBytes = key.getBytes(UTF_8);
+        if (keyBytes.length == 0 || keyBytes.length > MAXIMUM_KEY_LENGTH) {
+            throw new IllegalArgumentException("Invalid tile key: " + key);
+        }
+        final int valueLength = value != null ? value.length : TOMBSTONE;
+        final int recordSize = HEADER_SIZE + keyBytes.length + (value != null ? value.length : 0);
+        if (mActive.length > 0 && mActive.length + recordSize > mSegmentSize) {
+            // Full, from now on it is only read
+            mActive.channel.force(false);
+            mActive = newSegment(mActive.id + 1);
+        }
+
+        final CRC32 checksum = new CRC32();
+        checksum.update(keyBytes);
+        if (value != null) {
+            checksum.update(value);
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(recordSize);
+        buffer.putInt(RECORD_MAGIC).putInt(keyBytes.length).putInt(valueLength)
+                .putInt((int) checksum.getValue()).put(keyBytes);
+        if (value != null) {
+            buffer.put(value);
+        }
+        buffer.flip();
+
+        final long offset = mActive.length;
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            position += mActive.channel.write(buffer, position);
+        }
+        mActive.length = position;
+        return value != null
+                ? new Entry(mActive, offset + HEADER_SIZE + keyBytes.length, valueLength, recordSize)
+                : null;
+    }
+
+    private byte[] read(final Entry entry) throws IOException {
+        final byte[] value = new byte[entry.length];
+        if (entry.segment == mActive) {
+            // Still growing, read from the file
+            final ByteBuffer buffer = ByteBuffer.wrap(value);
+            long position = entry.offset;
+            while (buffer.hasRemaining()) {
+                final int count = entry.segment.channel.read(buffer, position);
+                if (count < 0) {
+                    throw new IOException("Unexpected end of " + entry.segment.file);
+                }
+                position += count;
+            }
+        } else {
+            final ByteBuffer map = entry.segment.map().duplicate();
+            map.position((int) entry.offset);
+            map.get(value);
+        }
+        return value;
+    }
+
+    private void setEntry(final String key, final Entry entry) {
+        removeEntry(key);
+        mIndex.put(key, entry);
+        entry.segment.liveBytes += entry.recordSize;
+        mLiveBytes += entry.recordSize;
+    }
+
+    private void removeEntry(final String key) {
+        final Entry old = mIndex.remove(key);
+        if (old != null) {
+            old.segment.liveBytes -= old.recordSize;
+            mLiveBytes -= old.recordSize;
+        }
+    }
+
+    /**
+     * Drop the least recently used tiles until the store fits its maximum size. They are only
+     * removed from the index, their segments are compacted later.
+     */
+    private void trimToSize() {
+        final Iterator<Map.Entry<String, Entry>> it = mIndex.entrySet().iterator();
+        while (mLiveBytes > mMaxSize && it.hasNext()) {
+            final Entry eldest = it.next().getValue();
+            it.remove();
+            eldest.segment.liveBytes -= eldest.recordSize;
+            mLiveBytes -= eldest.recordSize;
+            mEvictionCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Compact the full segment with the least space in use, if it is under the threshold. One
+     * segment at most per call, so that a single write never takes long.
+     */
+    private void compact() throws IOException {
+        Segment worst = null;
+        float worstRatio = COMPACTION_THRESHOLD;
+        for (final Segment segment : mSegments.values()) {
+            if (segment == mActive || segment.length == 0) {
+                continue;
+            }
+            final float ratio = (float) segment.liveBytes / segment.length;
+            if (ratio < worstRatio) {
+                worst = segment;
+                worstRatio = ratio;
+            }
+        }
+        if (worst == null) {
+            return;
+        }
+
+        final long garbage = worst.length - worst.liveBytes;
+        // Found by offset rather than looked up in the index, which would count as a use and
+        // upset the LRU order
+        final HashMap<Long, Entry> entries = new HashMap<Long, Entry>();
+        for (final Entry entry : mIndex.values()) {
+            if (entry.segment == worst) {
+                entries.put(entry.offset, entry);
+            }
+        }
+        // Removals are kept as long as an older segment may hold what they removed
+        final boolean keepTombstones = worst.id != mSegments.firstKey();
+        final MappedByteBuffer map = worst.map();
+        long offset = 0;
+        while (offset + HEADER_SIZE <= worst.length) {
+            map.position((int) offset);
+            map.getInt();
+            final int keyLength = map.getInt();
+            final int valueLength = map.getInt();
+            map.getInt();
+            final long valueOffset = offset + HEADER_SIZE + keyLength;
+            if (valueLength == TOMBSTONE) {
+                final byte[] keyBytes = new byte[keyLength];
+                map.get(keyBytes);
+                final String key = new String(keyBytes, UTF_8);
+                if (keepTombstones && !mIndex.containsKey(key)) {
+                    append(key, null);
+                }
+            } else {
+                final Entry entry = entries.get(valueOffset);
+                if (entry != null) {
+                    final byte[] keyBytes = new byte[keyLength];
+                    map.get(keyBytes);
+                    final String key = new String(keyBytes, UTF_8);
+                    final byte[] value = new byte[valueLength];
+                    map.get(value);
+                    final Entry moved = append(key, value);
+                    entry.segment.liveBytes -= entry.recordSize;
+                    entry.segment = moved.segment;
+                    entry.offset = moved.offset;
+                    entry.segment.liveBytes += entry.recordSize;
+                }
+            }
+            offset = valueOffset + Math.max(valueLength, 0);
+        }
+
+        mSegments.remove(worst.id);
+        worst.close();
+        if (!worst.file.delete()) {
+            Log.w(TAG, "Can't delete " + worst.file);
+        }
+        mCompactionCount.incrementAndGet();
+        mReclaimedBytes.addAndGet(garbage);
+    }
+
+    private Segment newSegment(final int id) throws IOException {
+        final Segment segment = new Segment(id, segmentFile(id));
+        mSegments.put(id, segment);
+        return segment;
+    }
+
+    private File segmentFile(final int id) {
+        return new File(mDirectory, String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    private static int parseSegmentId(final String name) {
+        if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                    name.length() - SEGMENT_SUFFIX.length()));
+        } catch (final NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    public long getWriteCount() {
+        return mWriteCount.get();
+    }
+
+    public long getEvictionCount() {
+        return mEvictionCount.get();
+    }
+
+    public long getCompactionCount() {
+        return mCompactionCount.get();
+    }
+
+    /**
+     * @return the disk space given back by compactions, in bytes
+     */
+    public long getReclaimedBytes() {
+        return mReclaimedBytes.get();
+    }
+
+    public void resetStats() {
+        mHitCount.set(0);
+        mMissCount.set(0);
+        mWriteCount.set(0);
+        mEvictionCount.set(0);
+        mCompactionCount.set(0);
+        mReclaimedBytes.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "PackedTileStore{entries=" + getEntryCount()
+                + ", size=" + size()
+                + ", fileSize=" + getFileSize()
+                + ", segments=" + getSegmentCount()
+                + ", hits=" + getHitCount()
+                + ", misses=" + getMissCount()
+                + ", writes=" + getWriteCount()
+                + ", evictions=" + getEvictionCount()
+                + ", compactions=" + getCompactionCount() + "}";
+    }
+
+    private static final class Segment {
+        final int id;
+        final File file;
+        final RandomAccessFile raf;
+        final FileChannel channel;
+        long length;
+        long liveBytes;
+        MappedByteBuffer map;
+
+        Segment(final int aId, final File aFile) throws IOException {
+            id = aId;
+            file = aFile;
+            raf = new RandomAccessFile(aFile, "rw");
+            channel = raf.getChannel();
+            length = channel.size();
+        }
+
+        /**
+         * Map the segment, once it is no longer written to.
+         */
+        MappedByteBuffer map() throws IOException {
+            if (map == null) {
+                map = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            }
+            return map;
+        }
+
+        void unmap() {
+            // Released by the garbage collector, there is no public API to unmap
+            map = null;
+        }
+
+        void close() {
+            unmap();
+            try {
+                raf.close();
+            } catch (final IOException e) {
+                Log.w(TAG, "Error closing " + file, e);
+            }
+        }
+    }
+
+    private static final class Entry {
+        Segment segment;
+        long offset;
+        final int length;
+        final int recordSize;
+
+        Entry(final Segment aSegment, final long aOffset, final int aLength,
+              final int aRecordSize) {
+            segment = aSegment;
+            offset = aOffset;
+            length = aLength;
+            recordSize = aRecordSize;
+        }
+    }
+}
@@ -40,5 +40,25 @@ public interface TileLayerConstants {
      */
     public static final int NUMBER_OF_TILE_DOWNLOAD_THREADS = 8;
 
+    /**
+     * bounds of the number of concurrent tile downloads, adapted to the network by
+     * {@link com.mapbox.mapboxsdk.tileprovider.modules.AdaptiveConcurrencyController}
+     */
+    public static final int MINIMUM_TILE_DOWNLOAD_THREADS = 2;
+    public static final int MAXIMUM_TILE_DOWNLOAD_THREADS = 16;
+
     public static final int TILE_DOWNLOAD_MAXIMUM_QUEUE_SIZE = 40;
+
+    /**
+     * number of downloaded tiles waiting to be decoded, and waiting to be written to the disk
+     * cache, beyond which the threads feeding them wait
+     */
+    public static final int TILE_DECODE_MAXIMUM_QUEUE_SIZE = 16;
+    public static final int TILE_DISK_WRITE_MAXIMUM_QUEUE_SIZE = 32;
+
+    /**
+     * number of stale tiles waiting to be refreshed in the background, beyond which refreshes
+     * are dropped until the tiles are drawn again
+     */
+    public static final int TILE_REFRESH_MAXIMUM_QUEUE_SIZE = 32;
 }
@@ -0,0 +1,337 @@
+package com.mapbox.mapboxsdk.tileprovider.modules;
+
+import android.os.SystemClock;
+import android.util.Log;
+import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
+import java.net.HttpURLConnection;
+import java.util.LinkedHashSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides how many tile downloads run at once, process-wide since every downloader shares the
+ * same network link and connection pool. The limit follows additive increase, multiplicative
+ * decrease: it grows by one request per round trip while the latency of tile requests stays
+ * close to the lowest latency seen, and shrinks by {@link #DECREASE_FACTOR} when requests start
+ * queueing up (latency over {@link #LATENCY_TOLERANCE} times the lowest), time out or are
+ * answered with 429 or a 5xx. A slow mobile link thus settles on a few requests while a fast
+ * CDN can be asked for many tiles at once.
+ * <p/>
+ * Tile loaders call {@link #tryAcquire(Runnable)} before each request and {@link #release()}
+ * after it. HTTP requests report their outcome through {@link #onRequestFinished(int, long,
+ * long)}.
+ */
+public class AdaptiveConcurrencyController implements TileLayerConstants {
+    private static final String TAG = "AdaptiveConcurrency";
+
+    /**
+     * Latency, as a multiple of the lowest latency seen, from which requests are considered to
+     * be queueing up somewhere.
+     */
+    public static final float LATENCY_TOLERANCE = 2.0f;
+    public static final float DECREASE_FACTOR = 0.7f;
+
+    private static final float LATENCY_SMOOTHING = 0.2f;
+    // Lets the lowest latency drift up, should the route to the server change
+    private static final float BASE_LATENCY_DRIFT = 0.01f;
+    private static final long THROUGHPUT_INTERVAL_MS = 1000;
+    private static final float THROUGHPUT_SMOOTHING = 0.5f;
+
+    private static AdaptiveConcurrencyController adaptiveConcurrencyController = null;
+
+    private int mMinimumLimit = MINIMUM_TILE_DOWNLOAD_THREADS;
+    private int mMaximumLimit = MAXIMUM_TILE_DOWNLOAD_THREADS;
+    private double mLimit = NUMBER_OF_TILE_DOWNLOAD_THREADS / 2;
+    private int mInFlight = 0;
+
+    // Loaders waiting for a slot, started again as soon as one frees up
+    private final LinkedHashSet<Runnable> mWaiting = new LinkedHashSet<Runnable>();
+
+    private double mBaseLatencyMs = 0;
+    private double mSmoothedLatencyMs = 0;
+    private long mLastDecreaseTime = 0;
+
+    private long mIntervalStart = 0;
+    private long mIntervalBytes = 0;
+    private int mIntervalRequests = 0;
+    private double mBytesPerSecond = 0;
+    private double mRequestsPerSecond = 0;
+
+    private final AtomicLong mRequestCount = new AtomicLong(0);
+    private final AtomicLong mCongestionCount = new AtomicLong(0);
+    private final AtomicLong mIncreaseCount = new AtomicLong(0);
+    private final AtomicLong mDecreaseCount = new AtomicLong(0);
+
+    private AdaptiveConcurrencyController() {
+        super();
+    }
+
+    public static synchronized AdaptiveConcurrencyController getAdaptiveConcurrencyController() {
+        if (adaptiveConcurrencyController == null) {
+            adaptiveConcurrencyController = new AdaptiveConcurrencyController();
+        }
+        return adaptiveConcurrencyController;
+    }
+
+    /**
+     * Set the range within which the number of concurrent downloads is adapted. A downloader
+     * never runs more requests than its thread pool allows, {@link
+     * TileLayerConstants#MAXIMUM_TILE_DOWNLOAD_THREADS} for the {@link MapTileDownloader}.
+     *
+     * @param minimum the lowest number of concurrent downloads, at least 1
+     * @param maximum the highest number of concurrent downloads
+     */
+    public synchronized void setBounds(final int minimum, final int maximum) {
+        if (minimum < 1 || maximum < minimum) {
+            throw new IllegalArgumentException("Invalid concurrency bounds: " + minimum + ".."
+                    + maximum);
+        }
+        mMinimumLimit = minimum;
+        mMaximumLimit = maximum;
+        mLimit = Math.max(minimum, Math.min(maximum, mLimit));
+        wakeUp();
+    }
+
+    public synchronized int getMinimumLimit() {
+        return mMinimumLimit;
+    }
+
+    public synchronized int getMaximumLimit() {
+        return mMaximumLimit;
+    }
+
+    /**
+     * @return the number of downloads currently allowed to run at once
+     */
+    public synchronized int getLimit() {
+        return (int) mLimit;
+    }
+
+    /**
+     * @return the number of downloads currently running
+     */
+    public synchronized int getInFlightCount() {
+        return mInFlight;
+    }
+
+    /**
+     * Take a download slot.
+     *
+     * @param onAvailable run once a slot frees up, if none is available now
+     * @return whether a slot was taken, in which case {@link #release()} must be called once the
+     * download is over
+     */
+    public boolean tryAcquire(final Runnable onAvailable) {
+        synchronized (this) {
+            if (mInFlight < (int) mLimit) {
+                mInFlight++;
+                return true;
+            }
+            if (onAvailable != null) {
+                mWaiting.add(onAvailable);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Give back a slot taken with {@link #tryAcquire(Runnable)}.
+     */
+    public void release() {
+        final Runnable waiting;
+        synchronized (this) {
+            if (mInFlight > 0) {
+                mInFlight--;
+            }
+            waiting = pollWaiting();
+        }
+        if (waiting != null) {
+            waiting.run();
+        }
+    }
+
+    /**
+     * Report the outcome of a tile request.
+     *
+     * @param responseCode the HTTP response code, or -1 if no response was received
+     * @param bytes the size of the response body, 0 if unknown
+     * @param latencyMs the time from sending the request to receiving the whole response
+     */
+    public void onRequestFinished(final int responseCode, final long bytes, final long latencyMs) {
+        mRequestCount.incrementAndGet();
+        final long now = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            updateThroughput(now, responseCode > 0 ? Math.max(0, bytes) : 0);
+            if (isCongestion(responseCode)) {
+                mCongestionCount.incrementAndGet();
+                decrease(now);
+                return;
+            }
+            if (responseCode < HttpURLConnection.HTTP_OK
+                    || responseCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                // Says nothing about the link, a tile missing on the server for instance
+                return;
+            }
+            if (mBaseLatencyMs <= 0 || latencyMs < mBaseLatencyMs) {
+                mBaseLatencyMs = latencyMs;
+            } else {
+                mBaseLatencyMs += (latencyMs - mBaseLatencyMs) * BASE_LATENCY_DRIFT;
+            }
+            mSmoothedLatencyMs = mSmoothedLatencyMs <= 0 ? latencyMs
+                    : mSmoothedLatencyMs + (latencyMs - mSmoothedLatencyMs) * LATENCY_SMOOTHING;
+
+            if (mSmoothedLatencyMs > mBaseLatencyMs * LATENCY_TOLERANCE) {
+                decrease(now);
+            } else if (mInFlight >= (int) mLimit - 1 && mLimit < mMaximumLimit) {
+                // Only grow a limit that is actually in use, one request per round trip
+                final int before = (int) mLimit;
+                mLimit = Math.min(mMaximumLimit, mLimit + 1 / mLimit);
+                if ((int) mLimit > before) {
+                    mIncreaseCount.incrementAndGet();
+                    wakeUp();
+                }
+            }
+        }
+    }
+
+    private static boolean isCongestion(final int responseCode) {
+        return responseCode < 0 || responseCode == 429
+                || responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+    }
+
+    /**
+     * Must be called while holding the lock.
+     */
+    private void decrease(final long now) {
+        // Requests sent before the last decrease don't reflect it yet
+        if (now - mLastDecreaseTime < Math.max(mSmoothedLatencyMs, mBaseLatencyMs)) {
+            return;
+        }
+        mLastDecreaseTime = now;
+        final int before = (int) mLimit;
+        mLimit = Math.max(mMinimumLimit, mLimit * DECREASE_FACTOR);
+        if ((int) mLimit < before) {
+            mDecreaseCount.incrementAndGet();
+            if (DEBUG_TILE_PROVIDERS) {
+                Log.d(TAG, "Concurrency down to " + (int) mLimit + ", latency "
+                        + (int) mSmoothedLatencyMs + "ms for " + (int) mBaseLatencyMs + "ms");
+            }
+        }
+        // The latency seen from here on is measured against the new limit
+        mSmoothedLatencyMs = mBaseLatencyMs;
+    }
+
+    /**
+     * Must be called while holding the lock.
+     */
+    private void updateThroughput(final long now, final long bytes) {
+        if (mIntervalStart == 0) {
+            mIntervalStart = now;
+        }
+        mIntervalBytes += bytes;
+        mIntervalRequests++;
+        final long elapsed = now - mIntervalStart;
+        if (elapsed >= THROUGHPUT_INTERVAL_MS) {
+            final double bytesPerSecond = mIntervalBytes * 1000.0 / elapsed;
+            final double requestsPerSecond = mIntervalRequests * 1000.0 / elapsed;
+            mBytesPerSecond = mBytesPerSecond <= 0 ? bytesPerSecond
+                    : mBytesPerSecond + (bytesPerSecond - mBytesPerSecond) * THROUGHPUT_SMOOTHING;
+            mRequestsPerSecond = mRequestsPerSecond <= 0 ? requestsPerSecond
+                    : mRequestsPerSecond
+                            + (requestsPerSecond - mRequestsPerSecond) * THROUGHPUT_SMOOTHING;
+            mIntervalStart = now;
+            mIntervalBytes = 0;
+            mIntervalRequests = 0;
+        }
+    }
+
+    /**
+     * Start waiting loaders, as many as there are free slots. Must be called while holding the
+     * lock.
+     */
+    private void wakeUp() {
+        int free = (int) mLimit - mInFlight;
+        while (free-- > 0) {
+            final Runnable waiting = pollWaiting();
+            if (waiting == null) {
+                break;
+            }
+            waiting.run();
+        }
+    }
+
+    private Runnable pollWaiting() {
+        if (mWaiting.isEmpty() || mInFlight >= (int) mLimit) {
+            return null;
+        }
+        final Runnable waiting = mWaiting.iterator().next();
+        mWaiting.remove(waiting);
+        return waiting;
+    }
+
+    /**
+     * @return the measured download throughput, in bytes per second
+     */
+    public synchronized double getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+
+    /**
+     * @return the measured number of tile requests completed per second
+     */
+    public synchronized double getRequestsPerSecond() {
+        return mRequestsPerSecond;
+    }
+
+    /**
+     * @return the recent latency of tile requests, in milliseconds
+     */
+    public synchronized double getLatency() {
+        return mSmoothedLatencyMs;
+    }
+
+    /**
+     * @return the lowest recent latency of tile requests, in milliseconds
+     */
+    public synchronized double getBaseLatency() {
+        return mBaseLatencyMs;
+    }
+
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * @return the number of requests that failed, timed out or were throttled by the server
+     */
+    public long getCongestionCount() {
+        return mCongestionCount.get();
+    }
+
+    public long getIncreaseCount() {
+        return mIncreaseCount.get();
+    }
+
+    public long getDecreaseCount() {
+        return mDecreaseCount.get();
+    }
+
+    public void resetStats() {
+        mRequestCount.set(0);
+        mCongestionCount.set(0);
+        mIncreaseCount.set(0);
+        mDecreaseCount.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "AdaptiveConcurrencyController{limit=" + getLimit()
+                + ", inFlight=" + getInFlightCount()
+                + ", latency=" + (int) getLatency() + "ms"
+                + ", baseLatency=" + (int) getBaseLatency() + "ms"
+                + ", bytesPerSecond=" + (long) getBytesPerSecond()
+                + ", requests=" + getRequestCount()
+                + ", congestion=" + getCongestionCount()
+                + ", increases=" + getIncreaseCount()
+                + ", decreases=" + getDecreaseCount() + "}";
+    }
+}
@@ -1,12 +1,16 @@
 package com.mapbox.mapboxsdk.tileprovider.modules;
 
 import android.graphics.drawable.Drawable;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 import com.mapbox.mapboxsdk.geometry.BoundingBox;
 import com.mapbox.mapboxsdk.geometry.LatLng;
 import com.mapbox.mapboxsdk.tileprovider.MapTile;
 import com.mapbox.mapboxsdk.tileprovider.MapTileCache;
+import com.mapbox.mapboxsdk.tileprovider.MapTileIndex;
 import com.mapbox.mapboxsdk.tileprovider.MapTileRequestState;
+import com.mapbox.mapboxsdk.tileprovider.MapTileValidators;
 import com.mapbox.mapboxsdk.tileprovider.tilesource.ITileLayer;
 import com.mapbox.mapboxsdk.tileprovider.tilesource.MBTilesLayer;
 import com.mapbox.mapboxsdk.tileprovider.tilesource.TileLayer;
@@ -14,6 +18,7 @@ import com.mapbox.mapboxsdk.util.AppUtils;
 import com.mapbox.mapboxsdk.views.MapView;
 import com.mapbox.mapboxsdk.views.util.TileLoadedListener;
 import com.mapbox.mapboxsdk.views.util.TilesLoadedListener;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 
@@ -26,6 +31,31 @@ public class MapTileDownloader extends MapTileModuleLayerBase {
     private final AtomicReference<TileLayer> mTileSource = new AtomicReference<>();
     private final AtomicReference<MapTileCache> mTileCache = new AtomicReference<>();
 
+    /**
+     * Decode and disk write stages of the download pipeline, shared by every downloader: tiles
+     * are downloaded by the loader threads of each downloader, decoded by as many threads as
+     * there are cores, and written to the disk cache by a single thread.
+     */
+    private static TilePipelineStage sDecodeStage = null;
+    private static TilePipelineStage sDiskWriteStage = null;
+
+    /**
+     * Refreshes of stale tiles, served from the cache while they are downloaded again on a
+     * single low priority thread, apart from the tiles being waited for.
+     */
+    private static TilePipelineStage sRefreshStage = null;
+
+    /**
+     * How long after a refresh of a tile started another one may be started.
+     */
+    private static final long REFRESH_RETRY_DELAY_MS = 60 * 1000;
+    private static final int MAXIMUM_TRACKED_REFRESHES = 1024;
+
+    // When the last refresh of each tile started
+    private final MapTileIndex<Long> mRefreshes = new MapTileIndex<Long>();
+    private final AtomicLong mRefreshRequestedCount = new AtomicLong(0);
+    private final AtomicLong mRefreshedCount = new AtomicLong(0);
+
     private final NetworkAvailabilityCheck mNetworkAvailabilityCheck;
     private MapView mMapView;
     private boolean mUseDataConnection;
@@ -33,7 +63,7 @@ public class MapTileDownloader extends MapTileModuleLayerBase {
 
     public MapTileDownloader(final ITileLayer pTileSource, final MapTileCache pTileCache,
                              final NetworkAvailabilityCheck pNetworkAvailabilityCheck, final MapView mapView) {
-        super(NUMBER_OF_TILE_DOWNLOAD_THREADS, TILE_DOWNLOAD_MAXIMUM_QUEUE_SIZE);
+        super(MAXIMUM_TILE_DOWNLOAD_THREADS, TILE_DOWNLOAD_MAXIMUM_QUEUE_SIZE);
         mMapView = mapView;
         mUseDataConnection = true;
         if (pTileSource instanceof MBTilesLayer) {
@@ -48,6 +78,31 @@ public class MapTileDownloader extends MapTileModuleLayerBase {
         setTileSource(pTileSource);
     }
 
+    public static synchronized TilePipelineStage getDecodeStage() {
+        if (sDecodeStage == null) {
+            sDecodeStage = new TilePipelineStage("tile-decode",
+                    Runtime.getRuntime().availableProcessors(), TILE_DECODE_MAXIMUM_QUEUE_SIZE,
+                    Process.THREAD_PRIORITY_BACKGROUND);
+        }
+        return sDecodeStage;
+    }
+
+    public static synchronized TilePipelineStage getDiskWriteStage() {
+        if (sDiskWriteStage == null) {
+            sDiskWriteStage = new TilePipelineStage("tile-disk-write", 1,
+                    TILE_DISK_WRITE_MAXIMUM_QUEUE_SIZE, Process.THREAD_PRIORITY_BACKGROUND);
+        }
+        return sDiskWriteStage;
+    }
+
+    public static synchronized TilePipelineStage getRefreshStage() {
+        if (sRefreshStage == null) {
+            sRefreshStage = new TilePipelineStage("tile-refresh", 1,
+                    TILE_REFRESH_MAXIMUM_QUEUE_SIZE, Process.THREAD_PRIORITY_LOWEST);
+        }
+        return sRefreshStage;
+    }
+
     public ITileLayer getTileSource() {
         return mTileSource.get();
     }
@@ -89,6 +144,14 @@ public class MapTileDownloader extends MapTileModuleLayerBase {
         return new TileLoader();
     }
 
+    /**
+     * Downloads run as many at once as the network handles well, within the thread pool.
+     */
+    @Override
+    protected AdaptiveConcurrencyController getConcurrencyController() {
+        return AdaptiveConcurrencyController.getAdaptiveConcurrencyController();
+    }
+
     @Override
     public float getMinimumZoomLevel() {
         TileLayer tileLayer = mTileSource.get();
@@ -146,22 +209,228 @@ public class MapTileDownloader extends MapTileModuleLayerBase {
         return (tileLayer != null) ? tileLayer.getCacheKey() : "";
     }
 
+    /**
+     * Decode a downloaded tile and put it in the memory cache. Its encoded image is queued for
+     * the disk cache, as it was received.
+     */
+    private Drawable decodeTile(final MapTile tile, final byte[] data) {
+        final MapTileCache cache = mTileCache.get();
+        final TileLayer tileLayer = mTileSource.get();
+        if (cache == null) {
+            return null;
+        }
+        final CacheableBitmapDrawable drawable = cache.putTileBytesInMemoryCache(tile, data,
+                tileLayer != null ? tileLayer.getDecodeOptions() : null);
+        if (drawable != null && cache.isDiskCacheEnabled()) {
+            final Runnable write = new Runnable() {
+                @Override
+                public void run() {
+                    cache.putTileBytesInDiskCache(tile, data);
+                }
+            };
+            if (!getDiskWriteStage().submit(write)) {
+                write.run();
+            }
+        }
+        return drawable;
+    }
+
+    /**
+     * Download a stale tile again in the background, revalidating it when possible, while its
+     * cached copy is drawn. The map is redrawn once the tile has been refreshed. Tiles refreshed
+     * recently, and refreshes that don't fit in the refresh queue, are skipped: they are
+     * requested again when the tile is next drawn.
+     * <p/>
+     * This is called from the draw loop, so the network and the tile servers are only checked
+     * by the refresh itself, at most once a minute for each tile.
+     *
+     * @param tile the tile
+     * @return whether a refresh was queued
+     */
+    public boolean refreshTileAsync(final MapTile tile) {
+        if (!mUseDataConnection || mTileSource.get() == null || mTileCache.get() == null) {
+            return false;
+        }
+        final long now = SystemClock.elapsedRealtime();
+        synchronized (mRefreshes) {
+            final Long started = mRefreshes.get(tile);
+            if (started != null && now - started < REFRESH_RETRY_DELAY_MS) {
+                return false;
+            }
+            if (mRefreshes.size() >= MAXIMUM_TRACKED_REFRESHES) {
+                mRefreshes.clear();
+            }
+            mRefreshes.put(tile, now);
+        }
+        final Runnable refresh = new Runnable() {
+            @Override
+            public void run() {
+                refreshTile(tile);
+            }
+        };
+        if (!getRefreshStage().trySubmit(refresh)) {
+            synchronized (mRefreshes) {
+                mRefreshes.remove(tile);
+            }
+            return false;
+        }
+        mRefreshRequestedCount.incrementAndGet();
+        return true;
+    }
+
+    private void refreshTile(final MapTile tile) {
+        final TileLayer tileLayer = mTileSource.get();
+        final MapTileCache cache = mTileCache.get();
+        if (tileLayer == null || cache == null || !isNetworkAvailable()
+                || !tileLayer.isTileReachable(tile)) {
+            // Tried again after REFRESH_RETRY_DELAY_MS
+            return;
+        }
+        final CacheableBitmapDrawable stale = cache.getMapTileFromMemory(tile);
+        final TileFetch fetch = tileLayer.fetchTile(this, tile, hdpi);
+        final Drawable refreshed = fetch.getBytes() != null
+                ? decodeTile(tile, fetch.getBytes()) : fetch.getDrawable();
+        if (refreshed == null) {
+            // Still stale, tried again after REFRESH_RETRY_DELAY_MS
+            return;
+        }
+        mRefreshedCount.incrementAndGet();
+        if (refreshed != stale) {
+            // Not merely revalidated, redraw with the new tile
+            mMapView.postInvalidate();
+        }
+    }
+
+    /**
+     * @return the number of stale tiles queued to be refreshed
+     */
+    public long getRefreshRequestedCount() {
+        return mRefreshRequestedCount.get();
+    }
+
+    /**
+     * @return the number of stale tiles revalidated or downloaded again
+     */
+    public long getRefreshedCount() {
+        return mRefreshedCount.get();
+    }
+
+    @Override
+    public void resetStats() {
+        super.resetStats();
+        mRefreshRequestedCount.set(0);
+        mRefreshedCount.set(0);
+    }
+
     protected class TileLoader extends MapTileModuleLayerBase.TileLoader {
 
-        @Override
-        public Drawable loadTile(final MapTileRequestState aState) throws CantContinueException {
+        private TileFetch fetchTile(final MapTileRequestState aState) {
             final MapTile tile = aState.getMapTile();
+            final MapTileCache cache = mTileCache.get();
+            TileLayer tileLayer = mTileSource.get();
 //            Log.d(TAG, "loadTile() with tile = '" + tile + "'");
-            if (mTileCache != null && mTileCache.get().containsTileInDiskCache(tile)) {
-//                Log.d(TAG, "tile found in Disk Cache, so returning it. tile = '" + tile + "'");
-                return mTileCache.get().getMapTileFromDisk(tile);
+            if (cache != null && cache.containsTileInDiskCache(tile)) {
+                final Drawable cached = cache.getMapTileFromDisk(tile,
+                        tileLayer != null ? tileLayer.getDecodeOptions() : null);
+                if (cached != null) {
+                    final MapTileValidators validators = cache.getTileValidators(tile);
+                    if (validators != null && validators.isExpired()) {
+                        // Stale while revalidate: drawn now, refreshed in the background
+                        refreshTileAsync(tile);
+                    }
+//                    Log.d(TAG, "tile found in Disk Cache, so returning it. tile = '" + tile + "'");
+                    return TileFetch.ofDrawable(cached);
+                }
             }
-            TileLayer tileLayer = mTileSource.get();
-            Drawable result =
-                    (tileLayer != null) ? tileLayer.getDrawableFromTile(MapTileDownloader.this,
-                            tile, hdpi) : null;
-//            Log.d(TAG, "tileLayer.getDrawable() returning result = '" + result + "'");
-            return result;
+            if (tileLayer != null && !tileLayer.isTileReachable(tile)) {
+                // Its servers are down, don't hold a loader thread for nothing
+                return TileFetch.ofDrawable(null);
+            }
+            final TileFetch result = (tileLayer != null)
+                    ? tileLayer.fetchTile(MapTileDownloader.this, tile, hdpi) : null;
+//            Log.d(TAG, "tileLayer.fetchTile() returning result = '" + result + "'");
+            return result != null ? result : TileFetch.ofDrawable(null);
+        }
+
+        @Override
+        public Drawable loadTile(final MapTileRequestState aState) throws CantContinueException {
+            final TileFetch fetch = fetchTile(aState);
+            final byte[] data = fetch.getBytes();
+            return data != null ? decodeTile(aState.getMapTile(), data) : fetch.getDrawable();
+        }
+
+        /**
+         * Downloads on this thread and hands the downloaded image over to the decode stage, so
+         * that the next download can start straight away. When the decode stage falls behind,
+         * this waits for room in its queue.
+         */
+        @Override
+        protected void processTile(final MapTileRequestState aState) {
+            final TileFetch fetch;
+            try {
+                fetch = fetchTile(aState);
+            } catch (final Throwable e) {
+                Log.e(TAG, "Error downloading tile: " + aState.getMapTile(), e);
+                deliverTile(aState, null);
+                return;
+            }
+            final byte[] data = fetch.getBytes();
+            if (data == null) {
+                deliverTile(aState, fetch.getDrawable());
+                return;
+            }
+            final Runnable decode = new Runnable() {
+                @Override
+                public void run() {
+                    deliverTile(aState, decodeTile(aState.getMapTile(), data));
+                }
+            };
+            if (!getDecodeStage().submit(decode)) {
+                decode.run();
+            }
+        }
+    }
+
+    /**
+     * What a tile layer fetched for a tile: either the tile itself, or its encoded image still
+     * to be decoded.
+     */
+    public static final class TileFetch {
+        private final Drawable mDrawable;
+        private final byte[] mBytes;
+
+        private TileFetch(final Drawable drawable, final byte[] bytes) {
+            mDrawable = drawable;
+            mBytes = bytes;
+        }
+
+        /**
+         * @param drawable the tile, or null if it could not be loaded
+         */
+        public static TileFetch ofDrawable(final Drawable drawable) {
+            return new TileFetch(drawable, null);
+        }
+
+        /**
+         * @param bytes the encoded image of the tile, or null if it could not be downloaded
+         */
+        public static TileFetch ofBytes(final byte[] bytes) {
+            return new TileFetch(null, bytes);
+        }
+
+        public Drawable getDrawable() {
+            return mDrawable;
+        }
+
+        public byte[] getBytes() {
+            return mBytes;
+        }
+
+        /**
+         * @return whether nothing was fetched
+         */
+        public boolean isEmpty() {
+            return mDrawable == null && mBytes == null;
         }
     }
 
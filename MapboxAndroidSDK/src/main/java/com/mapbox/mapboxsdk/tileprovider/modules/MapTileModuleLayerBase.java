@@ -2,20 +2,27 @@ package com.mapbox.mapboxsdk.tileprovider.modules;
 
 import android.graphics.drawable.Drawable;
 import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 import com.mapbox.mapboxsdk.geometry.BoundingBox;
 import com.mapbox.mapboxsdk.geometry.LatLng;
+import com.mapbox.mapboxsdk.tileprovider.IMapTileCancellationCallback;
+import com.mapbox.mapboxsdk.tileprovider.IMapTileProviderCallback;
 import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.MapTileIndex;
 import com.mapbox.mapboxsdk.tileprovider.MapTileRequestState;
+import com.mapbox.mapboxsdk.tileprovider.MapTileViewport;
 import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
 import com.mapbox.mapboxsdk.tileprovider.tilesource.ITileLayer;
 import com.mapbox.mapboxsdk.util.BitmapUtils;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 
 /**
@@ -49,6 +56,16 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
      */
     protected abstract Runnable getTileLoader();
 
+    /**
+     * Gets the controller limiting how many tiles this provider loads at once, below the size
+     * of its thread pool.
+     *
+     * @return the controller, or null to use the whole thread pool
+     */
+    protected AdaptiveConcurrencyController getConcurrencyController() {
+        return null;
+    }
+
     /**
      * Returns true if implementation uses a data connection, false otherwise. This value is used
      * to
@@ -112,16 +129,104 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
     public abstract String getCacheKey();
 
     private final ExecutorService mExecutor;
+    private final int mPendingQueueSize;
+
+    private final AtomicLong mLoadedCount = new AtomicLong(0);
+    private final AtomicLong mLoadTimeMs = new AtomicLong(0);
 
     protected final Object mQueueLockObject = new Object();
-    protected final HashMap<MapTile, MapTileRequestState> mWorking;
+    protected final MapTileIndex<MapTileRequestState> mWorking;
     protected final LinkedHashMap<MapTile, MapTileRequestState> mPending;
 
+    /**
+     * Removes and returns the most urgent pending request, the one closest to the centre of the
+     * viewport it was requested for. Requests for tiles that scrolled out of view are cancelled
+     * along the way. Ties go to the most recently requested tile.
+     * Must be called while holding {@link #mQueueLockObject}.
+     *
+     * @param cancelled receives the requests that were dropped, their callbacks must be notified
+     * once the lock is released
+     * @return the most urgent request, or null if none is left
+     */
+    protected MapTileRequestState popMostUrgentPending(final List<MapTileRequestState> cancelled) {
+        MapTileRequestState best = null;
+        float bestPriority = MapTileViewport.PRIORITY_NONE;
+        final Iterator<MapTileRequestState> it = mPending.values().iterator();
+        while (it.hasNext()) {
+            final MapTileRequestState state = it.next();
+            final float priority = state.getPriority();
+            if (priority == MapTileViewport.PRIORITY_NONE) {
+                it.remove();
+                cancelled.add(state);
+            } else if (priority <= bestPriority) {
+                best = state;
+                bestPriority = priority;
+            }
+        }
+        if (best != null) {
+            mPending.remove(best.getMapTile());
+        }
+        return best;
+    }
+
+    /**
+     * Removes and returns the most urgent pending request, notifying the callbacks of the
+     * requests dropped along the way.
+     *
+     * @return the most urgent request, or null if none is left
+     */
     public MapTileRequestState popFirstPending() {
-        for (MapTile tile : mPending.keySet()) {
-            return mPending.remove(tile);
+        final List<MapTileRequestState> cancelled = new ArrayList<MapTileRequestState>();
+        final MapTileRequestState state;
+        synchronized (mQueueLockObject) {
+            state = popMostUrgentPending(cancelled);
+        }
+        notifyCancelled(cancelled);
+        return state;
+    }
+
+    /**
+     * Removes and returns the least urgent pending request, used to make room when the queue
+     * is full. Must be called while holding {@link #mQueueLockObject}.
+     *
+     * @return the least urgent request, or null if none is pending
+     */
+    private MapTileRequestState popLastPending() {
+        MapTileRequestState worst = null;
+        float worstPriority = -1;
+        for (final MapTileRequestState state : mPending.values()) {
+            final float priority = state.getPriority();
+            // strictly greater, so that among equals the eldest request is dropped
+            if (priority > worstPriority) {
+                worst = state;
+                worstPriority = priority;
+            }
+        }
+        if (worst != null) {
+            mPending.remove(worst.getMapTile());
+        }
+        return worst;
+    }
+
+    /**
+     * Notify the callbacks of requests dropped from the queue. Never call this while holding
+     * {@link #mQueueLockObject}: callbacks may hand the request to another provider.
+     */
+    private void notifyCancelled(final List<MapTileRequestState> cancelled) {
+        for (final MapTileRequestState state : cancelled) {
+            if (DEBUG_TILE_PROVIDERS) {
+                Log.d(TAG, "MapTileModuleLayerBase cancelled request on provider: "
+                        + getName()
+                        + " for tile: "
+                        + state.getMapTile());
+            }
+            final IMapTileProviderCallback callback = state.getCallback();
+            if (callback instanceof IMapTileCancellationCallback) {
+                ((IMapTileCancellationCallback) callback).mapTileRequestCancelled(state);
+            } else {
+                callback.mapTileRequestFailed(state);
+            }
         }
-        return null;
     }
 
     /**
@@ -138,28 +243,16 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
         mExecutor = Executors.newFixedThreadPool(pThreadPoolSize,
                 new ConfigurablePriorityThreadFactory(Thread.NORM_PRIORITY, getThreadGroupName()));
 
-        mWorking = new HashMap<MapTile, MapTileRequestState>();
-        mPending =
-                new LinkedHashMap<MapTile, MapTileRequestState>(pPendingQueueSize + 2, 0.1f, true) {
-
-                    private static final long serialVersionUID = 6455337315681858866L;
-
-                    @Override
-                    protected boolean removeEldestEntry(
-                            final Map.Entry<MapTile, MapTileRequestState> pEldest) {
-                        while (size() > pPendingQueueSize) {
-                            MapTileRequestState state = popFirstPending();
-                            state.getCallback().mapTileRequestFailed(state);
-                        }
-                        return false;
-                    }
-                };
+        mPendingQueueSize = pPendingQueueSize;
+        mWorking = new MapTileIndex<MapTileRequestState>();
+        mPending = new LinkedHashMap<MapTile, MapTileRequestState>(pPendingQueueSize + 2);
     }
 
     /**
      * Loads a map tile asynchronously, adding it to the queue and calling getTileLoader.
      */
     public void loadMapTileAsync(final MapTileRequestState pState) {
+        final List<MapTileRequestState> cancelled = new ArrayList<MapTileRequestState>();
         synchronized (mQueueLockObject) {
 /*
                 Log.d(TAG, "MapTileModuleLayerBase.loadMaptileAsync() on provider: " + getName() + " for tile: " + pState.getMapTile());
@@ -169,26 +262,113 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
                     Log.d(TAG, "MapTileModuleLayerBase.loadMaptileAsync() adding tile to request queue for modular provider.");
                 }
 */
-            // this will put the tile in the queue, or move it to the front of
-            // the queue if it's already present
+            // this will put the tile in the queue, or make it the most recent
+            // request if it's already present
+            mPending.remove(pState.getMapTile());
             mPending.put(pState.getMapTile(), pState);
+
+            // make room by dropping the requests furthest from the viewport
+            while (mPending.size() > mPendingQueueSize) {
+                cancelled.add(popLastPending());
+            }
         }
+        notifyCancelled(cancelled);
+
+        startTileLoader();
+    }
 
+    private void startTileLoader() {
         try {
             mExecutor.execute(getTileLoader());
         } catch (final RejectedExecutionException e) {
             Log.w(TAG, "RejectedExecutionException", e);
+            // Shut down, no loader will take the pending requests anymore
+            notifyCancelled(drainPending());
         }
     }
 
     /**
-     * Clears both pending and working queues.
+     * Started by the concurrency controller once a slot frees up, for the requests that were
+     * left pending when the limit was reached.
+     */
+    private final Runnable mStartTileLoader = new Runnable() {
+        @Override
+        public void run() {
+            boolean pending;
+            synchronized (mQueueLockObject) {
+                pending = !mPending.isEmpty();
+            }
+            if (pending && !mExecutor.isShutdown()) {
+                startTileLoader();
+            }
+        }
+    };
+
+    /**
+     * Clears both pending and working queues. The pending requests are cancelled, requests
+     * being worked on are still delivered by their loader.
      */
     protected void clearQueue() {
+        final List<MapTileRequestState> cancelled;
         synchronized (mQueueLockObject) {
-            mPending.clear();
+            cancelled = drainPending();
             mWorking.clear();
         }
+        notifyCancelled(cancelled);
+    }
+
+    /**
+     * Removes every pending request. Their callbacks must be notified, once {@link
+     * #mQueueLockObject} is released: requests that end without one leave the layers waiting on
+     * the same tile hanging.
+     *
+     * @return the requests removed
+     */
+    private List<MapTileRequestState> drainPending() {
+        synchronized (mQueueLockObject) {
+            final List<MapTileRequestState> dropped =
+                    new ArrayList<MapTileRequestState>(mPending.values());
+            mPending.clear();
+            return dropped;
+        }
+    }
+
+    /**
+     * @return the number of requests waiting for a loader thread
+     */
+    public int getPendingCount() {
+        synchronized (mQueueLockObject) {
+            return mPending.size();
+        }
+    }
+
+    /**
+     * @return the number of requests being worked on
+     */
+    public int getWorkingCount() {
+        synchronized (mQueueLockObject) {
+            return mWorking.size();
+        }
+    }
+
+    /**
+     * @return the number of requests processed by the loader threads
+     */
+    public long getLoadedCount() {
+        return mLoadedCount.get();
+    }
+
+    /**
+     * @return how long the loader threads took to process a request on average, in milliseconds
+     */
+    public float getAverageLoadTime() {
+        final long loaded = mLoadedCount.get();
+        return loaded > 0 ? (float) mLoadTimeMs.get() / loaded : 0;
+    }
+
+    public void resetStats() {
+        mLoadedCount.set(0);
+        mLoadTimeMs.set(0);
     }
 
     /**
@@ -241,12 +421,11 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
         }
 
         protected MapTileRequestState nextTile() {
-
+            final List<MapTileRequestState> cancelled = new ArrayList<MapTileRequestState>();
+            final MapTileRequestState state;
             synchronized (mQueueLockObject) {
-                // get the most recently accessed tile
-                // - the last item in the iterator that's not already being
-                // processed
-                MapTileRequestState state = popFirstPending();
+                // get the tile closest to the centre of the current viewport
+                state = popMostUrgentPending(cancelled);
                 if (state != null) {
                     mWorking.put(state.getMapTile(), state);
                     if (DEBUG_TILE_PROVIDERS) {
@@ -256,8 +435,9 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
                                 + state.getMapTile());
                     }
                 }
-                return state;
             }
+            notifyCancelled(cancelled);
+            return state;
         }
 
         /**
@@ -284,6 +464,48 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
             pState.getCallback().mapTileRequestExpiredTile(pState, pDrawable);
         }
 
+        /**
+         * Process a request taken from the queue: load the tile and deliver it. Loaders that hand
+         * the tile over to other threads override this, and call {@link #deliverTile} once the
+         * tile is ready.
+         */
+        protected void processTile(final MapTileRequestState pState) {
+            Drawable result = null;
+            try {
+                result = loadTile(pState);
+            } catch (final CantContinueException e) {
+                Log.e(TAG, "Tile loader can't continue: " + pState.getMapTile(), e);
+                final List<MapTileRequestState> failed;
+                synchronized (mQueueLockObject) {
+                    failed = drainPending();
+                    mWorking.clear();
+                }
+                // On to the next provider, like this one
+                for (final MapTileRequestState state : failed) {
+                    state.getCallback().mapTileRequestFailed(state);
+                }
+            } catch (final Throwable e) {
+                Log.e(TAG, "Error downloading tile: " + pState.getMapTile(), e);
+            }
+            deliverTile(pState, result);
+        }
+
+        /**
+         * Hand a loaded tile to the request callback.
+         *
+         * @param pState the request
+         * @param pDrawable the tile, or null if it could not be loaded
+         */
+        protected void deliverTile(final MapTileRequestState pState, final Drawable pDrawable) {
+            if (pDrawable == null) {
+                tileLoadedFailed(pState);
+            } else if (BitmapUtils.isCacheDrawableExpired(pDrawable)) {
+                tileLoadedExpired(pState, (CacheableBitmapDrawable) pDrawable);
+            } else {
+                tileLoaded(pState, pDrawable);
+            }
+        }
+
         protected void tileLoadedFailed(final MapTileRequestState pState) {
             if (DEBUG_TILE_PROVIDERS) {
                 Log.i(TAG, "TileLoader.tileLoadedFailed() on provider: "
@@ -305,25 +527,29 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
 
             onTileLoaderInit();
 
+            final AdaptiveConcurrencyController controller = getConcurrencyController();
             MapTileRequestState state;
-            Drawable result = null;
-            while ((state = nextTile()) != null) {
-                try {
-                    result = null;
-                    result = loadTile(state);
-                } catch (final CantContinueException e) {
-                    Log.e(TAG, "Tile loader can't continue: " + state.getMapTile(), e);
-                    clearQueue();
-                } catch (final Throwable e) {
-                    Log.e(TAG, "Error downloading tile: " + state.getMapTile(), e);
+            while (true) {
+                if (controller != null && !controller.tryAcquire(mStartTileLoader)) {
+                    // Enough loaders are running, one will be started again once they slow down
+                    break;
                 }
-
-                if (result == null) {
-                    tileLoadedFailed(state);
-                } else if (BitmapUtils.isCacheDrawableExpired(result)) {
-                    tileLoadedExpired(state, (CacheableBitmapDrawable) result);
-                } else {
-                    tileLoaded(state, result);
+                state = nextTile();
+                if (state == null) {
+                    if (controller != null) {
+                        controller.release();
+                    }
+                    break;
+                }
+                final long startMs = SystemClock.elapsedRealtime();
+                try {
+                    processTile(state);
+                } finally {
+                    if (controller != null) {
+                        controller.release();
+                    }
+                    mLoadTimeMs.addAndGet(SystemClock.elapsedRealtime() - startMs);
+                    mLoadedCount.incrementAndGet();
                 }
             }
 
@@ -0,0 +1,213 @@
+package com.mapbox.mapboxsdk.tileprovider.modules;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A stage of the tile loading pipeline: a pool of threads doing one kind of work, fed through a
+ * bounded queue. When the queue is full, {@link #submit(Runnable)} blocks until a task is taken
+ * out of it, so that a stage falling behind slows the stage feeding it down instead of letting
+ * tiles pile up in memory.
+ * <p/>
+ * Each stage measures its queue depth, how long tasks wait in the queue and how long they take
+ * to run, so that the stage holding tiles back can be told apart.
+ */
+public class TilePipelineStage {
+    private static final String TAG = "TilePipelineStage";
+
+    private final String mName;
+    private final int mThreadPriority;
+    private final int mQueueCapacity;
+    private final ThreadPoolExecutor mExecutor;
+    // One permit per task queued or running
+    private final Semaphore mCapacity;
+
+    private final AtomicLong mSubmittedCount = new AtomicLong(0);
+    private final AtomicLong mCompletedCount = new AtomicLong(0);
+    private final AtomicLong mBlockedCount = new AtomicLong(0);
+    private final AtomicLong mRejectedCount = new AtomicLong(0);
+    private final AtomicLong mWaitTimeMs = new AtomicLong(0);
+    private final AtomicLong mRunTimeMs = new AtomicLong(0);
+
+    /**
+     * @param name the name of the stage and of its threads
+     * @param threads the number of threads of the stage
+     * @param queueCapacity the number of tasks that can wait for a thread before {@link
+     * #submit(Runnable)} blocks
+     * @param threadPriority the {@link Process} priority of the stage's threads
+     */
+    public TilePipelineStage(final String name, final int threads, final int queueCapacity,
+                             final int threadPriority) {
+        if (threads < 1 || queueCapacity < 0) {
+            throw new IllegalArgumentException("Invalid pipeline stage " + name + ": " + threads
+                    + " threads, queue of " + queueCapacity);
+        }
+        mName = name;
+        mThreadPriority = threadPriority;
+        mQueueCapacity = queueCapacity;
+        mCapacity = new Semaphore(threads + queueCapacity);
+        mExecutor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ConfigurablePriorityThreadFactory(Thread.NORM_PRIORITY, name));
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Queue a task, waiting for room in the queue if it is full.
+     *
+     * @param task the task
+     * @return false if the task could not be queued, because the stage was shut down or the
+     * calling thread was interrupted while waiting
+     */
+    public boolean submit(final Runnable task) {
+        if (!mCapacity.tryAcquire()) {
+            mBlockedCount.incrementAndGet();
+            try {
+                mCapacity.acquire();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return execute(task);
+    }
+
+    /**
+     * Queue a task if there is room in the queue, for work that is better dropped than waited
+     * for.
+     *
+     * @param task the task
+     * @return false if the task could not be queued, because the queue is full or the stage was
+     * shut down
+     */
+    public boolean trySubmit(final Runnable task) {
+        if (!mCapacity.tryAcquire()) {
+            mRejectedCount.incrementAndGet();
+            return false;
+        }
+        return execute(task);
+    }
+
+    private boolean execute(final Runnable task) {
+        final long queuedMs = SystemClock.elapsedRealtime();
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(mThreadPriority);
+                    final long startMs = SystemClock.elapsedRealtime();
+                    mWaitTimeMs.addAndGet(startMs - queuedMs);
+                    try {
+                        task.run();
+                    } catch (final Throwable e) {
+                        Log.e(TAG, "Error in pipeline stage " + mName, e);
+                    } finally {
+                        mRunTimeMs.addAndGet(SystemClock.elapsedRealtime() - startMs);
+                        mCompletedCount.incrementAndGet();
+                        mCapacity.release();
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            mCapacity.release();
+            return false;
+        }
+        mSubmittedCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Stop the threads of the stage, once the tasks already queued have run.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    /**
+     * @return the number of tasks waiting for a thread
+     */
+    public int getQueueDepth() {
+        return mExecutor.getQueue().size();
+    }
+
+    public int getQueueCapacity() {
+        return mQueueCapacity;
+    }
+
+    /**
+     * @return the number of tasks running
+     */
+    public int getActiveCount() {
+        return mExecutor.getActiveCount();
+    }
+
+    public long getSubmittedCount() {
+        return mSubmittedCount.get();
+    }
+
+    public long getCompletedCount() {
+        return mCompletedCount.get();
+    }
+
+    /**
+     * @return the number of times a task had to wait for room in the queue
+     */
+    public long getBlockedCount() {
+        return mBlockedCount.get();
+    }
+
+    /**
+     * @return the number of tasks not queued by {@link #trySubmit(Runnable)} because the queue
+     * was full
+     */
+    public long getRejectedCount() {
+        return mRejectedCount.get();
+    }
+
+    /**
+     * @return how long tasks waited for a thread on average, in milliseconds
+     */
+    public float getAverageWaitTime() {
+        final long completed = mCompletedCount.get();
+        return completed > 0 ? (float) mWaitTimeMs.get() / completed : 0;
+    }
+
+    /**
+     * @return how long tasks took to run on average, in milliseconds
+     */
+    public float getAverageRunTime() {
+        final long completed = mCompletedCount.get();
+        return completed > 0 ? (float) mRunTimeMs.get() / completed : 0;
+    }
+
+    public void resetStats() {
+        mSubmittedCount.set(0);
+        mCompletedCount.set(0);
+        mBlockedCount.set(0);
+        mRejectedCount.set(0);
+        mWaitTimeMs.set(0);
+        mRunTimeMs.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "TilePipelineStage{name=" + mName
+                + ", queued=" + getQueueDepth() + "/" + mQueueCapacity
+                + ", active=" + getActiveCount()
+                + ", completed=" + getCompletedCount()
+                + ", blocked=" + getBlockedCount()
+                + ", rejected=" + getRejectedCount()
+                + ", wait=" + getAverageWaitTime() + "ms"
+                + ", run=" + getAverageRunTime() + "ms}";
+    }
+}
@@ -0,0 +1,286 @@
+package com.mapbox.mapboxsdk.tileprovider.modules;
+
+import android.os.SystemClock;
+import android.util.Log;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the health of every tile server, process-wide. Each host has a circuit breaker: after
+ * {@link #DEFAULT_FAILURE_THRESHOLD} requests in a row fail to get an answer, time out or are
+ * answered with 429 or a 5xx, the breaker opens and requests to that host fail straight away,
+ * without using a connection, a worker thread or the radio. Once a backoff has passed, a single
+ * request is let through to probe the host: the breaker closes if it succeeds, otherwise it
+ * opens again for twice as long, with random jitter so that clients don't all come back at once.
+ * <p/>
+ * The latency of every host is measured too, so that layers served by several hosts send their
+ * requests to the healthy and fast ones, see {@link #chooseSubdomain(String, String[], int)}.
+ */
+public class TileServerHealth {
+    private static final String TAG = "TileServerHealth";
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_INITIAL_BACKOFF_MS = 5000;
+    public static final long DEFAULT_MAXIMUM_BACKOFF_MS = 5 * 60 * 1000;
+
+    /**
+     * How much slower than the fastest host a tile's preferred host may be before its requests
+     * go to the fastest one instead, see {@link #chooseSubdomain(String, String[], int)}.
+     */
+    public static final float LATENCY_SKEW = 2.0f;
+
+    private static final float LATENCY_SMOOTHING = 0.2f;
+
+    /**
+     * The state of a host's circuit breaker.
+     */
+    public static enum State {
+        /**
+         * Requests go through.
+         */
+        CLOSED,
+
+        /**
+         * The host is failing, requests are refused.
+         */
+        OPEN,
+
+        /**
+         * A single request is probing whether the host has recovered.
+         */
+        HALF_OPEN
+    }
+
+    private static TileServerHealth tileServerHealth = null;
+
+    private int mFailureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private long mInitialBackoffMs = DEFAULT_INITIAL_BACKOFF_MS;
+    private long mMaximumBackoffMs = DEFAULT_MAXIMUM_BACKOFF_MS;
+
+    private final HashMap<String, Host> mHosts = new HashMap<String, Host>();
+    private final Random mRandom = new Random();
+
+    private final AtomicLong mRejectedCount = new AtomicLong(0);
+    private final AtomicLong mTripCount = new AtomicLong(0);
+
+    private TileServerHealth() {
+        super();
+    }
+
+    public static synchronized TileServerHealth getTileServerHealth() {
+        if (tileServerHealth == null) {
+            tileServerHealth = new TileServerHealth();
+        }
+        return tileServerHealth;
+    }
+
+    /**
+     * Set when a host's breaker opens and for how long.
+     *
+     * @param failureThreshold the number of failures in a row that open the breaker
+     * @param initialBackoffMs how long the breaker stays open the first time
+     * @param maximumBackoffMs the longest it stays open, however many probes failed
+     */
+    public synchronized void setPolicy(final int failureThreshold, final long initialBackoffMs,
+                                       final long maximumBackoffMs) {
+        if (failureThreshold < 1 || initialBackoffMs <= 0 || maximumBackoffMs < initialBackoffMs) {
+            throw new IllegalArgumentException("Invalid circuit breaker policy: "
+                    + failureThreshold + " failures, " + initialBackoffMs + "ms to "
+                    + maximumBackoffMs + "ms");
+        }
+        mFailureThreshold = failureThreshold;
+        mInitialBackoffMs = initialBackoffMs;
+        mMaximumBackoffMs = maximumBackoffMs;
+    }
+
+    /**
+     * Ask whether a request may be sent to a host. Every allowed request must be followed by
+     * {@link #onRequestFinished(String, int)}.
+     *
+     * @param host the host name
+     * @return false if the host's breaker is open
+     */
+    public synchronized boolean allowRequest(final String host) {
+        final Host entry = mHosts.get(host);
+        if (entry == null || entry.state == State.CLOSED) {
+            return true;
+        }
+        if (entry.state == State.OPEN && SystemClock.elapsedRealtime() >= entry.retryTime) {
+            // Let one request through to find out whether the host is back
+            entry.state = State.HALF_OPEN;
+            return true;
+        }
+        mRejectedCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * @param host the host name
+     * @return whether requests to the host would currently be allowed, without taking the probe
+     * request of an open breaker
+     */
+    public synchronized boolean isAvailable(final String host) {
+        final Host entry = mHosts.get(host);
+        return entry == null || entry.state == State.CLOSED
+                || (entry.state == State.OPEN && SystemClock.elapsedRealtime() >= entry.retryTime);
+    }
+
+    /**
+     * Report the outcome of a request allowed by {@link #allowRequest(String)}.
+     *
+     * @param host the host name
+     * @param responseCode the HTTP response code, or -1 if no response was received
+     * @param latencyMs the time taken by the request
+     */
+    public synchronized void onRequestFinished(final String host, final int responseCode,
+                                               final long latencyMs) {
+        Host entry = mHosts.get(host);
+        if (entry == null) {
+            entry = new Host();
+            mHosts.put(host, entry);
+        }
+        if (!isFailure(responseCode)) {
+            if (entry.state != State.CLOSED) {
+                Log.i(TAG, "Tile server " + host + " is back");
+            }
+            entry.state = State.CLOSED;
+            entry.failures = 0;
+            entry.trips = 0;
+            entry.latencyMs = entry.latencyMs <= 0 ? latencyMs
+                    : entry.latencyMs + (latencyMs - entry.latencyMs) * LATENCY_SMOOTHING;
+            return;
+        }
+        entry.failures++;
+        // Requests still in flight when the breaker opened keep failing: counted, but only the
+        // probe or a closed breaker reaching the threshold trips it and backs off further
+        if (entry.state == State.HALF_OPEN
+                || (entry.state == State.CLOSED && entry.failures >= mFailureThreshold)) {
+            entry.trips++;
+            final long backoff = Math.min(mMaximumBackoffMs,
+                    mInitialBackoffMs << Math.min(entry.trips - 1, 30));
+            final long delay = backoff / 2 + (long) (mRandom.nextDouble() * (backoff / 2));
+            entry.state = State.OPEN;
+            entry.retryTime = SystemClock.elapsedRealtime() + delay;
+            mTripCount.incrementAndGet();
+            Log.w(TAG, "Tile server " + host + " is failing, pausing requests for " + delay + "ms");
+        }
+    }
+
+    private static boolean isFailure(final int responseCode) {
+        return responseCode < 0 || responseCode == 429
+                || responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+    }
+
+    /**
+     * Choose the subdomain a tile is requested from. Each tile has a preferred subdomain, so that
+     * it is always requested from the same host and HTTP caches along the way stay warm. The
+     * request only goes elsewhere when the preferred host is failing or more than {@link
+     * #LATENCY_SKEW} times slower than the fastest one, and then to the fastest available host.
+     *
+     * @param hostTemplate the host name, with {@code {s}} where the subdomain goes
+     * @param subdomains the subdomains
+     * @param preferred the index of the tile's preferred subdomain
+     * @return the index of the subdomain to use
+     */
+    public synchronized int chooseSubdomain(final String hostTemplate, final String[] subdomains,
+                                            final int preferred) {
+        if (mHosts.isEmpty() || subdomains.length < 2) {
+            return preferred;
+        }
+        int best = -1;
+        double bestLatency = Double.MAX_VALUE;
+        double preferredLatency = -1;
+        for (int i = 0; i < subdomains.length; i++) {
+            // Starting with the preferred one, so that ties go its way
+            final int index = (preferred + i) % subdomains.length;
+            final String host = hostTemplate.replace("{s}", subdomains[index]);
+            if (!isAvailable(host)) {
+                continue;
+            }
+            final Host entry = mHosts.get(host);
+            // Hosts not measured yet are given the benefit of the doubt
+            final double latency = entry != null ? entry.latencyMs : 0;
+            if (index == preferred) {
+                preferredLatency = latency;
+            }
+            if (latency < bestLatency) {
+                best = index;
+                bestLatency = latency;
+            }
+        }
+        if (best < 0) {
+            // Every host is failing
+            return preferred;
+        }
+        if (preferredLatency >= 0 && preferredLatency <= Math.max(bestLatency, 1) * LATENCY_SKEW) {
+            return preferred;
+        }
+        return best;
+    }
+
+    /**
+     * @param host the host name
+     * @return the recent latency of requests to the host in milliseconds, 0 if unknown
+     */
+    public synchronized double getLatency(final String host) {
+        final Host entry = mHosts.get(host);
+        return entry != null ? entry.latencyMs : 0;
+    }
+
+    /**
+     * @param host the host name
+     * @return the state of the host's circuit breaker
+     */
+    public synchronized State getState(final String host) {
+        final Host entry = mHosts.get(host);
+        return entry != null ? entry.state : State.CLOSED;
+    }
+
+    /**
+     * Close every breaker, for instance when the device switched networks.
+     */
+    public synchronized void reset() {
+        mHosts.clear();
+    }
+
+    /**
+     * @return the number of requests refused because their host's breaker was open
+     */
+    public long getRejectedCount() {
+        return mRejectedCount.get();
+    }
+
+    /**
+     * @return the number of times a breaker opened
+     */
+    public long getTripCount() {
+        return mTripCount.get();
+    }
+
+    public void resetStats() {
+        mRejectedCount.set(0);
+        mTripCount.set(0);
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder sb = new StringBuilder("TileServerHealth{rejected=")
+                .append(getRejectedCount()).append(", trips=").append(getTripCount());
+        for (final String host : mHosts.keySet()) {
+            final Host entry = mHosts.get(host);
+            sb.append(", ").append(host).append('=').append(entry.state)
+                    .append('/').append((int) entry.latencyMs).append("ms");
+        }
+        return sb.append('}').toString();
+    }
+
+    private static final class Host {
+        State state = State.CLOSED;
+        int failures;
+        int trips;
+        long retryTime;
+        double latencyMs;
+    }
+}
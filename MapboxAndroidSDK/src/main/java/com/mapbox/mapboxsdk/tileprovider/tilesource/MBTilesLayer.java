@@ -196,7 +196,7 @@ public class MBTilesLayer extends TileLayer implements MapViewConstants, MapboxC
             InputStream stream = mbTilesFileArchive.getInputStream(this, aTile);
             if (stream != null) {
                 CacheableBitmapDrawable result =
-                        downloader.getCache().putTileStream(aTile, stream, null);
+                        downloader.getCache().putTileStream(aTile, stream, getDecodeOptions());
                 if (result == null) {
                     Log.d(TAG, "error reading stream from mbtiles");
                 }
@@ -56,6 +56,7 @@ public class TileJsonTileLayer extends WebSourceTileLayer {
                     Log.e(TAG, "Couldn't set tile url", e);
                 }
             }
+            setTms("tms".equals(this.tileJSON.optString("scheme")));
             mMinimumZoomLevel = getJSONFloat(this.tileJSON, "minzoom");
             mMaximumZoomLevel = getJSONFloat(this.tileJSON, "maxzoom");
             mName = this.tileJSON.optString("name");
@@ -1,5 +1,7 @@
 package com.mapbox.mapboxsdk.tileprovider.tilesource;
 
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.drawable.Drawable;
 import com.mapbox.mapboxsdk.geometry.BoundingBox;
 import com.mapbox.mapboxsdk.geometry.LatLng;
@@ -22,6 +24,7 @@ public class TileLayer implements ITileLayer, TileLayerConstants, MapViewConstan
     protected BoundingBox mBoundingBox = WORLD_BOUNDING_BOX;
     protected LatLng mCenter = new LatLng(0, 0);
     private final int mTileSizePixels = DEFAULT_TILE_SIZE;
+    protected Bitmap.Config mBitmapConfig = Bitmap.Config.ARGB_8888;
 
     public TileLayer(final String pId, final String aUrl) {
         mUrl = aUrl;
@@ -76,11 +79,76 @@ public class TileLayer implements ITileLayer, TileLayerConstants, MapViewConstan
         return this;
     }
 
+    /**
+     * Sets the config the layer's tiles are decoded with. Base layers without transparency
+     * should use {@link Bitmap.Config#RGB_565}: their tiles then take half the memory, and the
+     * memory cache holds twice as many of them. Whether a tile is opaque is detected from its
+     * image, those with transparent pixels are still decoded as {@link Bitmap.Config#ARGB_8888}.
+     *
+     * @param aBitmapConfig {@link Bitmap.Config#ARGB_8888} (default) or
+     * {@link Bitmap.Config#RGB_565}
+     */
+    public TileLayer setBitmapConfig(final Bitmap.Config aBitmapConfig) {
+        if (aBitmapConfig != Bitmap.Config.ARGB_8888 && aBitmapConfig != Bitmap.Config.RGB_565) {
+            throw new IllegalArgumentException("Unsupported tile bitmap config: " + aBitmapConfig);
+        }
+        this.mBitmapConfig = aBitmapConfig;
+        return this;
+    }
+
+    /**
+     * Get the config tiles of this source are decoded with. Not part of {@link ITileLayer}: other
+     * layers are decoded with the default options, as {@link Bitmap.Config#ARGB_8888}.
+     *
+     * @return the bitmap config
+     */
+    public Bitmap.Config getBitmapConfig() {
+        return mBitmapConfig;
+    }
+
+    /**
+     * Creates the options the layer's tiles are decoded with. A new instance each time, the
+     * decoder modifies them.
+     *
+     * @return the decode options
+     */
+    public BitmapFactory.Options getDecodeOptions() {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = mBitmapConfig;
+        return options;
+    }
+
     public Drawable getDrawableFromTile(final MapTileDownloader downloader, final MapTile aTile,
             boolean hdpi) {
         return null;
     }
 
+    /**
+     * Fetch a tile for the downloader. Layers able to download the encoded image of a tile
+     * return it undecoded, it is then decoded and cached by the downloader's decode threads
+     * while this thread goes on with the next download. By default the whole tile is loaded
+     * with {@link #getDrawableFromTile(MapTileDownloader, MapTile, boolean)}.
+     *
+     * @param downloader the downloader
+     * @param aTile the tile
+     * @param hdpi whether to load the high resolution version of the tile
+     * @return the tile or its encoded image
+     */
+    public MapTileDownloader.TileFetch fetchTile(final MapTileDownloader downloader,
+            final MapTile aTile, boolean hdpi) {
+        return MapTileDownloader.TileFetch.ofDrawable(getDrawableFromTile(downloader, aTile, hdpi));
+    }
+
+    /**
+     * Whether the servers this tile would be downloaded from are currently up.
+     *
+     * @param aTile the tile
+     * @return false if downloading the tile is bound to fail
+     */
+    public boolean isTileReachable(final MapTile aTile) {
+        return true;
+    }
+
     @Override
     public void detach() {
 
@@ -4,18 +4,36 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Paint;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.mapbox.mapboxsdk.constants.MapboxConstants;
 import com.mapbox.mapboxsdk.tileprovider.MapTile;
 import com.mapbox.mapboxsdk.tileprovider.MapTileCache;
+import com.mapbox.mapboxsdk.tileprovider.MapTileValidators;
+import com.mapbox.mapboxsdk.tileprovider.modules.AdaptiveConcurrencyController;
+import com.mapbox.mapboxsdk.tileprovider.modules.ConfigurablePriorityThreadFactory;
 import com.mapbox.mapboxsdk.tileprovider.modules.MapTileDownloader;
+import com.mapbox.mapboxsdk.tileprovider.modules.TileServerHealth;
+import com.mapbox.mapboxsdk.util.BitmapUtils;
 import com.mapbox.mapboxsdk.util.NetworkUtils;
 import com.mapbox.mapboxsdk.views.util.TileLoadedListener;
 import com.mapbox.mapboxsdk.views.util.TilesLoadedListener;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 
@@ -25,9 +43,42 @@ import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 public class WebSourceTileLayer extends TileLayer implements MapboxConstants {
     private static final String TAG = "WebSourceTileLayer";
 
+    /**
+     * How long the components of a composite tile are waited for, from the moment they are
+     * requested, before the tile is shown without the missing ones.
+     */
+    private static final long COMPONENT_WAIT_MS = 2000;
+    // How often components are checked once the wait is over and none has arrived
+    private static final long COMPONENT_POLL_MS = 20;
+
+    /**
+     * Number of component fetches kept around for tiles that were shown incomplete.
+     */
+    private static final int MAXIMUM_RETAINED_COMPONENT_FETCHES = 64;
+
+    // Fetches the components of composite tiles in parallel. Shared by all layers.
+    private static ExecutorService sComponentExecutor = null;
+
+    /**
+     * Subdomains substituted for {@code {s}} in URL templates, unless set otherwise.
+     */
+    public static final String[] DEFAULT_SUBDOMAINS = { "a", "b", "c" };
+
     // Tracks the number of threads active in the getBitmapFromURL method.
     private AtomicInteger activeThreads = new AtomicInteger(0);
     protected boolean mEnableSSL = false;
+    protected String[] mSubdomains = DEFAULT_SUBDOMAINS;
+    protected boolean mTms = false;
+
+    // Component fetches by URL, kept while their tile is incomplete so that the next request
+    // for it picks up their results instead of starting over.
+    private final LinkedHashMap<String, Future<Bitmap>> mComponentFetches =
+            new LinkedHashMap<String, Future<Bitmap>>() {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, Future<Bitmap>> eldest) {
+                    return size() > MAXIMUM_RETAINED_COMPONENT_FETCHES;
+                }
+            };
 
     public WebSourceTileLayer(final String pId, final String url) {
         this(pId, url, false);
@@ -84,19 +135,279 @@ public class WebSourceTileLayer extends TileLayer implements MapboxConstants {
         return parseUrlForTile(mUrl, aTile, hdpi);
     }
 
+    /**
+     * Set the subdomains substituted for {@code {s}} in the URL template, to spread requests over
+     * several hosts.
+     *
+     * @param subdomains the subdomains, for instance "a", "b" and "c"
+     * @return this layer
+     */
+    public TileLayer setSubdomains(final String... subdomains) {
+        if (subdomains == null || subdomains.length == 0) {
+            throw new IllegalArgumentException("At least one subdomain is needed");
+        }
+        mSubdomains = subdomains.clone();
+        return this;
+    }
+
+    public String[] getSubdomains() {
+        return mSubdomains.clone();
+    }
+
+    /**
+     * Set whether the server numbers tile rows from the bottom, as in the TMS specification,
+     * rather than from the top. Templates may also use {@code {-y}} for the flipped row.
+     *
+     * @param tms whether {@code {y}} is a TMS row
+     * @return this layer
+     */
+    public TileLayer setTms(final boolean tms) {
+        mTms = tms;
+        return this;
+    }
+
+    public boolean isTms() {
+        return mTms;
+    }
+
+    /**
+     * Fill in a URL template for a tile. Supported placeholders are {@code {z}}, {@code {x}},
+     * {@code {y}}, {@code {-y}} (the row counted from the bottom), {@code {s}} (a subdomain, see
+     * {@link #setSubdomains(String...)}) and {@code {2x}}.
+     */
     protected String parseUrlForTile(String url, final MapTile aTile, boolean hdpi) {
+        final int flippedY = (1 << aTile.getZ()) - 1 - aTile.getY();
+        if (url.contains("{s}")) {
+            url = url.replace("{s}", mSubdomains[chooseSubdomain(url, aTile)]);
+        }
         return url.replace("{z}", String.valueOf(aTile.getZ()))
                 .replace("{x}", String.valueOf(aTile.getX()))
-                .replace("{y}", String.valueOf(aTile.getY()))
+                .replace("{-y}", String.valueOf(flippedY))
+                .replace("{y}", String.valueOf(mTms ? flippedY : aTile.getY()))
                 .replace("{2x}", hdpi ? "@2x" : "");
     }
 
+    /**
+     * A tile always prefers the same subdomain, so that it keeps hitting the same HTTP caches,
+     * unless {@link TileServerHealth} finds its host failing or much slower than the others.
+     */
+    private int chooseSubdomain(final String url, final MapTile aTile) {
+        final String[] subdomains = mSubdomains;
+        final int preferred = Math.abs(aTile.getX() + aTile.getY()) % subdomains.length;
+        return TileServerHealth.getTileServerHealth().chooseSubdomain(getHostTemplate(url),
+                subdomains, preferred);
+    }
+
+    /**
+     * @return the host part of a URL, placeholders included
+     */
+    private static String getHostTemplate(final String url) {
+        final int schemeEnd = url.indexOf("://");
+        final int start = schemeEnd < 0 ? 0 : schemeEnd + 3;
+        int end = url.indexOf('/', start);
+        if (end < 0) {
+            end = url.length();
+        }
+        final String authority = url.substring(start, end);
+        final int port = authority.lastIndexOf(':');
+        return port > authority.lastIndexOf('}') ? authority.substring(0, port) : authority;
+    }
+
+    /**
+     * Whether any of the servers a tile can be requested from is currently up, see {@link
+     * TileServerHealth}.
+     */
+    @Override
+    public boolean isTileReachable(final MapTile aTile) {
+        final String url = mUrl;
+        if (TextUtils.isEmpty(url) || url.contains("{quadkey}")) {
+            return true;
+        }
+        final TileServerHealth health = TileServerHealth.getTileServerHealth();
+        final String hostTemplate = getHostTemplate(url);
+        if (!hostTemplate.contains("{s}")) {
+            return health.isAvailable(hostTemplate);
+        }
+        for (final String subdomain : mSubdomains) {
+            if (health.isAvailable(hostTemplate.replace("{s}", subdomain))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private static final Paint compositePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
 
-    private Bitmap compositeBitmaps(final Bitmap source, Bitmap dest) {
-        Canvas canvas = new Canvas(dest);
-        canvas.drawBitmap(source, 0, 0, compositePaint);
-        return dest;
+    private static synchronized ExecutorService getComponentExecutor() {
+        if (sComponentExecutor == null) {
+            sComponentExecutor = Executors.newFixedThreadPool(NUMBER_OF_TILE_DOWNLOAD_THREADS,
+                    new ConfigurablePriorityThreadFactory(Thread.NORM_PRIORITY, "composite"));
+        }
+        return sComponentExecutor;
+    }
+
+    private Future<Bitmap> getComponentFetch(final MapTile aTile, final String url) {
+        synchronized (mComponentFetches) {
+            Future<Bitmap> fetch = mComponentFetches.get(url);
+            if (fetch == null) {
+                fetch = getComponentExecutor().submit(new Callable<Bitmap>() {
+                    @Override
+                    public Bitmap call() throws Exception {
+                        // Components are not cached on their own, only the composite tile is
+                        return getBitmapFromURL(aTile, url, null, false);
+                    }
+                });
+                mComponentFetches.put(url, fetch);
+            }
+            return fetch;
+        }
+    }
+
+    private void forgetComponentFetch(final String url, final Future<Bitmap> fetch) {
+        synchronized (mComponentFetches) {
+            if (mComponentFetches.get(url) == fetch) {
+                mComponentFetches.remove(url);
+            }
+        }
+    }
+
+    /**
+     * Fetch all the components of a composite tile concurrently and draw them, in order, into
+     * a single bitmap. Components still missing {@link #COMPONENT_WAIT_MS} after they were
+     * requested are left out and keep loading in the background, so that a slow source doesn't
+     * hold the others back. If none has arrived by then, the first one to arrive is used.
+     *
+     * @param aTile the tile
+     * @param urls the component URLs, bottom first
+     * @param aCache the cache, used to reuse a bitmap for the composite
+     * @return the composite, or null if no component could be loaded
+     */
+    private CompositeTile compositeTile(final MapTile aTile, final String[] urls,
+                                        final MapTileCache aCache) {
+        @SuppressWarnings("unchecked")
+        final Future<Bitmap>[] fetches = new Future[urls.length];
+        for (int i = 0; i < urls.length; i++) {
+            fetches[i] = getComponentFetch(aTile, urls[i]);
+        }
+
+        // Every component gets the same time from submission, so that a slow one, whichever
+        // it is, doesn't hold the others back. If none has arrived by then, the first to
+        // arrive is waited for.
+        final long deadline = System.currentTimeMillis() + COMPONENT_WAIT_MS;
+        final Bitmap[] components = new Bitmap[urls.length];
+        final boolean[] settled = new boolean[urls.length];
+        int pending = urls.length;
+        boolean loaded = false;
+        try {
+            while (pending > 0) {
+                for (int i = 0; i < urls.length; i++) {
+                    if (settled[i]) {
+                        continue;
+                    }
+                    final long wait = deadline - System.currentTimeMillis();
+                    try {
+                        if (wait > 0) {
+                            components[i] = fetches[i].get(wait, TimeUnit.MILLISECONDS);
+                        } else if (fetches[i].isDone()) {
+                            components[i] = fetches[i].get();
+                        } else {
+                            continue;
+                        }
+                    } catch (TimeoutException e) {
+                        continue;
+                    } catch (ExecutionException e) {
+                        Log.e(TAG, "Error downloading MapTile: " + urls[i] + ":" + e.getCause());
+                    }
+                    settled[i] = true;
+                    pending--;
+                    if (components[i] == null) {
+                        // Failed for good, retry on the next request for this tile
+                        forgetComponentFetch(urls[i], fetches[i]);
+                    } else {
+                        loaded = true;
+                    }
+                }
+                if (loaded || pending == 0) {
+                    break;
+                }
+                Thread.sleep(COMPONENT_POLL_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        final boolean partial = pending > 0;
+
+        Bitmap composite = null;
+        Canvas canvas = null;
+        for (final Bitmap component : components) {
+            if (component == null) {
+                continue;
+            }
+            if (composite == null) {
+                // Drawn first over the whole tile, the composite is opaque if this one is
+                final Bitmap.Config config =
+                        mBitmapConfig == Bitmap.Config.RGB_565 && !component.hasAlpha()
+                                ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+                composite = aCache.getBitmapFromRemoved(component.getWidth(),
+                        component.getHeight(), config);
+                if (composite == null) {
+                    composite = Bitmap.createBitmap(component.getWidth(), component.getHeight(),
+                            config);
+                }
+                canvas = new Canvas(composite);
+            }
+            canvas.drawBitmap(component, 0, 0, compositePaint);
+        }
+
+        if (!partial) {
+            for (int i = 0; i < urls.length; i++) {
+                forgetComponentFetch(urls[i], fetches[i]);
+            }
+        }
+        return composite != null ? new CompositeTile(composite, partial) : null;
+    }
+
+    private static final class CompositeTile {
+        final Bitmap bitmap;
+        final boolean partial;
+
+        CompositeTile(final Bitmap aBitmap, final boolean aPartial) {
+            bitmap = aBitmap;
+            partial = aPartial;
+        }
+    }
+
+    /**
+     * Tiles made of a single image, which no {@link TileLoadedListener} customizes, are
+     * downloaded here and decoded by the downloader's decode threads.
+     */
+    @Override
+    public MapTileDownloader.TileFetch fetchTile(final MapTileDownloader downloader,
+            final MapTile aTile, boolean hdpi) {
+        if (!downloader.isNetworkAvailable() || downloader.getTileLoadedListener() != null) {
+            return super.fetchTile(downloader, aTile, hdpi);
+        }
+        final String[] urls = getTileURLs(aTile, hdpi && !(this instanceof MapboxTileLayer));
+        if (urls == null || urls.length != 1) {
+            return super.fetchTile(downloader, aTile, hdpi);
+        }
+
+        final TilesLoadedListener listener = downloader.getTilesLoadedListener();
+        final MapTileCache cache = downloader.getCache();
+        if (listener != null) {
+            listener.onTilesLoadStarted();
+        }
+        MapTileDownloader.TileFetch result = revalidateTile(aTile, urls[0], cache);
+        if (result == null) {
+            result = MapTileDownloader.TileFetch.ofBytes(getBytesFromURL(aTile, urls[0], cache, true));
+        }
+        if (checkThreadControl()) {
+            if (listener != null) {
+                listener.onTilesLoaded();
+            }
+        }
+        return result;
     }
 
     @Override
@@ -113,21 +424,38 @@ public class WebSourceTileLayer extends TileLayer implements MapboxConstants {
             String[] urls = getTileURLs(aTile, tempHDPI);
             CacheableBitmapDrawable result = null;
             Bitmap resultBitmap = null;
+            boolean partial = false;
             MapTileCache cache = downloader.getCache();
 
             if (urls != null) {
                 if (listener != null) {
                     listener.onTilesLoadStarted();
                 }
-                for (final String url : urls) {
-                    Bitmap bitmap = getBitmapFromURL(aTile, url, cache);
-                    if (bitmap == null) {
-                        continue;
-                    }
-                    if (resultBitmap == null) {
-                        resultBitmap = bitmap;
+                if (urls.length == 1) {
+                    // Validators are only kept for tiles made of a single image
+                    final MapTileDownloader.TileFetch revalidated =
+                            revalidateTile(aTile, urls[0], cache);
+                    final byte[] data;
+                    if (revalidated != null) {
+                        result = (CacheableBitmapDrawable) revalidated.getDrawable();
+                        data = revalidated.getBytes();
                     } else {
-                        resultBitmap = compositeBitmaps(bitmap, resultBitmap);
+                        data = getBytesFromURL(aTile, urls[0], cache, true);
+                    }
+                    if (data != null) {
+                        if (downloader.getTileLoadedListener() == null) {
+                            // Decoded for the memory cache, the original bytes go to disk
+                            result = cache.putTileBytes(aTile, data, getDecodeOptions());
+                        } else {
+                            // Customized below, it is the customized bitmap that is cached
+                            resultBitmap = cache.decodeBitmap(data, getDecodeOptions());
+                        }
+                    }
+                } else if (urls.length > 1) {
+                    CompositeTile composite = compositeTile(aTile, urls, cache);
+                    if (composite != null) {
+                        resultBitmap = composite.bitmap;
+                        partial = composite.partial;
                     }
                 }
 
@@ -138,6 +466,12 @@ public class WebSourceTileLayer extends TileLayer implements MapboxConstants {
                 }
             }
 
+            if (result != null) {
+                // Either the cached tile is still current, it was already customized when first
+                // loaded, or the downloaded one was cached as it was received
+                return result;
+            }
+
             TileLoadedListener listener2 = downloader.getTileLoadedListener();
             if (listener2 != null) {
                 //create the CacheableBitmapDrawable object from the bitmap
@@ -157,15 +491,28 @@ public class WebSourceTileLayer extends TileLayer implements MapboxConstants {
                     result.setBounds(0, 0, resultWidth, resultHeight);
                     result.draw(canvas);
 
-                    cache.putTileBitmap(aTile, bitmapToCache);
+                    if (partial) {
+                        result = cache.createCacheableBitmapDrawable(bitmapToCache, aTile);
+                    } else {
+                        cache.putTileBitmap(aTile, bitmapToCache);
+                    }
                 }
             } else {
                 if (resultBitmap != null) {
-                    //get drawable by putting it into cache (memory and disk)
-                    result = cache.putTileBitmap(aTile, resultBitmap);
+                    if (partial) {
+                        result = cache.createCacheableBitmapDrawable(resultBitmap, aTile);
+                    } else {
+                        //get drawable by putting it into cache (memory and disk)
+                        result = cache.putTileBitmap(aTile, resultBitmap);
+                    }
                 }
             }
 
+            if (partial && result != null) {
+                // Shown as an expired tile, so it is requested again and completed with the
+                // components that were still loading
+                BitmapUtils.setCacheDrawableExpired(result);
+            }
             return result;
         }
         return null;
@@ -181,6 +528,45 @@ public class WebSourceTileLayer extends TileLayer implements MapboxConstants {
      * @return the tile if valid, otherwise null
      */
     public Bitmap getBitmapFromURL(MapTile mapTile, final String url, final MapTileCache aCache) {
+        return getBitmapFromURL(mapTile, url, aCache, false);
+    }
+
+    /**
+     * Requests and returns a bitmap object from a given URL, using aCache to decode it.
+     *
+     * @param mapTile MapTile
+     * @param url the map tile url. should refer to a valid bitmap resource.
+     * @param aCache a cache, an instance of MapTileCache, or null not to cache the tile
+     * @param storeValidators whether to store the HTTP validators of the response with the tile
+     * @return the tile if valid, otherwise null
+     */
+    protected Bitmap getBitmapFromURL(MapTile mapTile, final String url, final MapTileCache aCache,
+                                      final boolean storeValidators) {
+        final byte[] data = getBytesFromURL(mapTile, url, aCache, storeValidators);
+        if (data == null) {
+            return null;
+        }
+        // Without a cache, a component of a composite tile: decoded with its transparency
+        final Bitmap bitmap = aCache != null ? aCache.decodeBitmap(data, getDecodeOptions())
+                : BitmapFactory.decodeByteArray(data, 0, data.length);
+        if (bitmap != null && aCache != null) {
+            aCache.putTileInMemoryCache(mapTile, bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Requests the encoded image of a tile from a given URL, without decoding it, so that it can
+     * be written to the disk cache as it was received.
+     *
+     * @param mapTile MapTile
+     * @param url the map tile url. should refer to a valid bitmap resource.
+     * @param aCache a cache, an instance of MapTileCache, or null not to cache the validators
+     * @param storeValidators whether to store the HTTP validators of the response with the tile
+     * @return the response body if the request succeeded, otherwise null
+     */
+    protected byte[] getBytesFromURL(MapTile mapTile, final String url, final MapTileCache aCache,
+                                     final boolean storeValidators) {
         // We track the active threads here, every exit point should decrement this value.
         activeThreads.incrementAndGet();
 
@@ -189,18 +575,157 @@ public class WebSourceTileLayer extends TileLayer implements MapboxConstants {
             return null;
         }
 
+        final long startMs = SystemClock.elapsedRealtime();
+        String host = null;
+        int responseCode = -1;
+        long contentLength = 0;
+        InputStream in = null;
         try {
-            HttpURLConnection connection = NetworkUtils.getHttpURLConnection(new URL(url));
-            Bitmap bitmap = BitmapFactory.decodeStream(connection.getInputStream());
-            if (bitmap != null) {
-                aCache.putTileInMemoryCache(mapTile, bitmap);
+            final URL tileUrl = new URL(url);
+            if (!TileServerHealth.getTileServerHealth().allowRequest(tileUrl.getHost())) {
+                // The server is failing, don't wait for it
+                return null;
+            }
+            host = tileUrl.getHost();
+            HttpURLConnection connection = NetworkUtils.getHttpURLConnection(tileUrl);
+            responseCode = connection.getResponseCode();
+            in = connection.getInputStream();
+            final byte[] data = readFully(in, connection.getContentLength());
+            contentLength = data.length;
+            if (data.length == 0) {
+                return null;
             }
-            return bitmap;
+            if (aCache != null && storeValidators) {
+                aCache.putTileValidators(mapTile, MapTileValidators.fromConnection(connection));
+            }
+            return data;
         } catch (final Throwable e) {
             Log.e(TAG, "Error downloading MapTile: " + url + ":" + e);
         } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing left to read
+                }
+            }
             activeThreads.decrementAndGet();
+            reportRequest(host, responseCode, contentLength, startMs);
         }
         return null;
     }
+
+    private static byte[] readFully(final InputStream in, final int contentLength)
+            throws IOException {
+        final ByteArrayOutputStream out =
+                new ByteArrayOutputStream(contentLength > 0 ? contentLength : 16 * 1024);
+        final byte[] buffer = new byte[8 * 1024];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Revalidates a cached tile whose freshness has run out, with a conditional request. When
+     * the server answers 304 Not Modified the cached tile is returned and its expiry refreshed,
+     * without transferring or decoding the image again. When the tile changed, the server
+     * answers with the new one, which is returned with its validators stored.
+     *
+     * @param aTile the tile
+     * @param url the tile url
+     * @param aCache the cache holding the tile
+     * @return the cached tile if it is still current, the encoded new tile if it changed, an
+     * empty fetch if the request failed, or null if no conditional request could be sent and
+     * the tile must be downloaded
+     */
+    protected MapTileDownloader.TileFetch revalidateTile(final MapTile aTile, final String url,
+                                                         final MapTileCache aCache) {
+        final MapTileValidators validators = aCache.getTileValidators(aTile);
+        if (validators == null || !validators.isExpired() || !validators.hasValidators()) {
+            return null;
+        }
+        CacheableBitmapDrawable cached = aCache.getMapTileFromMemory(aTile);
+        if (cached != null && BitmapUtils.isCacheDrawableExpired(cached)) {
+            // A scaled placeholder, not the tile itself
+            cached = null;
+        }
+        if (cached == null && !aCache.containsTileInDiskCache(aTile)) {
+            return null;
+        }
+
+        activeThreads.incrementAndGet();
+        final long startMs = SystemClock.elapsedRealtime();
+        String host = null;
+        int responseCode = -1;
+        long contentLength = 0;
+        HttpURLConnection connection = null;
+        InputStream in = null;
+        try {
+            final URL tileUrl = new URL(url);
+            if (!TileServerHealth.getTileServerHealth().allowRequest(tileUrl.getHost())) {
+                return MapTileDownloader.TileFetch.ofBytes(null);
+            }
+            host = tileUrl.getHost();
+            connection = NetworkUtils.getHttpURLConnection(tileUrl);
+            validators.applyTo(connection);
+            responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_OK) {
+                // Changed, and the response already carries the new tile
+                in = connection.getInputStream();
+                final byte[] data = readFully(in, connection.getContentLength());
+                contentLength = data.length;
+                if (data.length == 0) {
+                    return MapTileDownloader.TileFetch.ofBytes(null);
+                }
+                aCache.putTileValidators(aTile, MapTileValidators.fromConnection(connection));
+                return MapTileDownloader.TileFetch.ofBytes(data);
+            }
+            if (responseCode != HttpURLConnection.HTTP_NOT_MODIFIED) {
+                return MapTileDownloader.TileFetch.ofBytes(null);
+            }
+            aCache.putTileValidators(aTile, validators.refresh(connection));
+            if (cached == null) {
+                cached = aCache.getMapTileFromDisk(aTile, getDecodeOptions());
+            }
+            // Evicted from the disk cache meanwhile, downloaded again
+            return cached != null ? MapTileDownloader.TileFetch.ofDrawable(cached) : null;
+        } catch (final Throwable e) {
+            Log.e(TAG, "Error revalidating MapTile: " + url + ":" + e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing left to read
+                }
+            } else if (connection != null) {
+                connection.disconnect();
+            }
+            activeThreads.decrementAndGet();
+            reportRequest(host, responseCode, contentLength, startMs);
+        }
+        return MapTileDownloader.TileFetch.ofBytes(null);
+    }
+
+    /**
+     * Report the outcome of a tile request to the download concurrency controller and to the
+     * circuit breaker of its host.
+     *
+     * @param host the host the request was sent to, or null if it wasn't sent
+     * @param responseCode the HTTP response code, or -1 if no response was received
+     * @param bytes the size of the response body, 0 if unknown
+     * @param startMs when the request was started, in {@link SystemClock#elapsedRealtime()} time
+     */
+    private static void reportRequest(final String host, final int responseCode, final long bytes,
+                                      final long startMs) {
+        if (host == null) {
+            return;
+        }
+        final long latencyMs = SystemClock.elapsedRealtime() - startMs;
+        TileServerHealth.getTileServerHealth().onRequestFinished(host, responseCode, latencyMs);
+        AdaptiveConcurrencyController.getAdaptiveConcurrencyController().onRequestFinished(
+                responseCode, bytes, latencyMs);
+    }
 }
@@ -0,0 +1,275 @@
+package com.mapbox.mapboxsdk.util;
+
+import android.util.Log;
+import com.mapbox.mapboxsdk.util.constants.UtilConstants;
+import com.squareup.okhttp.Cache;
+import com.squareup.okhttp.Connection;
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Response;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * A process-wide registry of {@link OkHttpClient} instances. Every client handed out by the
+ * registry shares the same {@link ConnectionPool}, so tiles, TileJSON, marker icons and offline
+ * downloads all reuse keep-alive connections (and HTTP/2 sessions) instead of paying for a new
+ * DNS lookup and TLS handshake on every request.
+ * <p/>
+ * Clients only differ by their {@link Cache} and {@link SSLSocketFactory}. Changing the
+ * configuration rebuilds the base client for subsequent requests.
+ */
+public class HttpClientRegistry {
+    private static final String TAG = "HttpClientRegistry";
+
+    public static final long DEFAULT_CONNECT_TIMEOUT_MS = 15000;
+    public static final long DEFAULT_READ_TIMEOUT_MS = 20000;
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 8;
+    public static final long DEFAULT_KEEP_ALIVE_DURATION_MS = 5 * 60 * 1000;
+    public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 8;
+
+    private static HttpClientRegistry httpClientRegistry = null;
+
+    private long mConnectTimeoutMs = DEFAULT_CONNECT_TIMEOUT_MS;
+    private long mReadTimeoutMs = DEFAULT_READ_TIMEOUT_MS;
+    private int mMaxIdleConnections = DEFAULT_MAX_IDLE_CONNECTIONS;
+    private long mKeepAliveDurationMs = DEFAULT_KEEP_ALIVE_DURATION_MS;
+    private int mMaxRequestsPerHost = DEFAULT_MAX_REQUESTS_PER_HOST;
+    private boolean mHttp2Enabled = true;
+
+    private ConnectionPool mConnectionPool;
+    private OkHttpClient mBaseClient;
+
+    // Connections that have already carried at least one request. Weak so that connections
+    // evicted from the pool can be collected.
+    private final Set<Connection> mSeenConnections =
+            Collections.newSetFromMap(new WeakHashMap<Connection, Boolean>());
+
+    private final AtomicLong mRequestCount = new AtomicLong(0);
+    private final AtomicLong mReusedConnectionCount = new AtomicLong(0);
+    private final AtomicLong mNewConnectionCount = new AtomicLong(0);
+
+    private HttpClientRegistry() {
+        super();
+    }
+
+    public static synchronized HttpClientRegistry getHttpClientRegistry() {
+        if (httpClientRegistry == null) {
+            httpClientRegistry = new HttpClientRegistry();
+        }
+        return httpClientRegistry;
+    }
+
+    /**
+     * Get the shared client without any response cache or custom socket factory.
+     *
+     * @return the shared client
+     */
+    public OkHttpClient getClient() {
+        return getClient(null, null);
+    }
+
+    /**
+     * Get a client for the given cache and socket factory. The returned client shares its
+     * connection pool with every other client of this registry.
+     *
+     * @param cache an optional response cache
+     * @param sslSocketFactory an optional socket factory
+     * @return a client backed by the shared connection pool
+     */
+    public synchronized OkHttpClient getClient(final Cache cache,
+                                               final SSLSocketFactory sslSocketFactory) {
+        final OkHttpClient base = getBaseClient();
+        if (cache == null && sslSocketFactory == null) {
+            return base;
+        }
+        // A clone is a shallow copy, so it keeps the shared pool and interceptors.
+        final OkHttpClient client = base.clone();
+        if (cache != null) {
+            client.setCache(cache);
+        }
+        if (sslSocketFactory != null) {
+            client.setSslSocketFactory(sslSocketFactory);
+        }
+        return client;
+    }
+
+    private OkHttpClient getBaseClient() {
+        if (mConnectionPool == null) {
+            mConnectionPool = new ConnectionPool(mMaxIdleConnections, mKeepAliveDurationMs);
+        }
+        if (mBaseClient == null) {
+            OkHttpClient client = new OkHttpClient();
+            client.setConnectionPool(mConnectionPool);
+            client.setConnectTimeout(mConnectTimeoutMs, TimeUnit.MILLISECONDS);
+            client.setReadTimeout(mReadTimeoutMs, TimeUnit.MILLISECONDS);
+            client.getDispatcher().setMaxRequestsPerHost(mMaxRequestsPerHost);
+
+            List<Protocol> protocols = new ArrayList<Protocol>();
+            if (mHttp2Enabled) {
+                protocols.add(Protocol.HTTP_2);
+                protocols.add(Protocol.SPDY_3);
+            }
+            protocols.add(Protocol.HTTP_1_1);
+            client.setProtocols(protocols);
+
+            client.networkInterceptors().add(new ConnectionStatsInterceptor());
+            mBaseClient = client;
+        }
+        return mBaseClient;
+    }
+
+    /**
+     * Drop the base client so that the next request picks up the new configuration.
+     *
+     * @param resetPool also replace the connection pool (pool settings changed)
+     */
+    private synchronized void invalidate(final boolean resetPool) {
+        mBaseClient = null;
+        if (resetPool && mConnectionPool != null) {
+            mConnectionPool.evictAll();
+            mConnectionPool = null;
+        }
+    }
+
+    public synchronized void setConnectTimeout(final long timeoutMs) {
+        mConnectTimeoutMs = timeoutMs;
+        invalidate(false);
+    }
+
+    public synchronized long getConnectTimeout() {
+        return mConnectTimeoutMs;
+    }
+
+    public synchronized void setReadTimeout(final long timeoutMs) {
+        mReadTimeoutMs = timeoutMs;
+        invalidate(false);
+    }
+
+    public synchronized long getReadTimeout() {
+        return mReadTimeoutMs;
+    }
+
+    /**
+     * Set the maximum number of concurrent requests to a single host. This is enforced by the
+     * OkHttp dispatcher for asynchronous calls; blocking connections are bounded by the thread
+     * pools issuing them.
+     *
+     * @param maxRequestsPerHost the maximum, at least 1
+     */
+    public synchronized void setMaxRequestsPerHost(final int maxRequestsPerHost) {
+        if (maxRequestsPerHost < 1) {
+            throw new IllegalArgumentException("maxRequestsPerHost < 1: " + maxRequestsPerHost);
+        }
+        mMaxRequestsPerHost = maxRequestsPerHost;
+        invalidate(false);
+    }
+
+    public synchronized int getMaxRequestsPerHost() {
+        return mMaxRequestsPerHost;
+    }
+
+    /**
+     * Set how many idle keep-alive connections are retained, and for how long. Connections are
+     * pooled by host, so this is the total across all tile and API hosts.
+     *
+     * @param maxIdleConnections the number of idle connections to keep
+     * @param keepAliveDurationMs how long an idle connection is kept
+     */
+    public synchronized void setConnectionPoolSize(final int maxIdleConnections,
+                                                   final long keepAliveDurationMs) {
+        mMaxIdleConnections = maxIdleConnections;
+        mKeepAliveDurationMs = keepAliveDurationMs;
+        invalidate(true);
+    }
+
+    /**
+     * Enable or disable HTTP/2 (and SPDY) negotiation. With it enabled, concurrent tile requests
+     * to a supporting host are multiplexed over a single connection.
+     */
+    public synchronized void setHttp2Enabled(final boolean enabled) {
+        mHttp2Enabled = enabled;
+        invalidate(true);
+    }
+
+    public synchronized boolean isHttp2Enabled() {
+        return mHttp2Enabled;
+    }
+
+    /**
+     * @return the number of requests sent over the network by registry clients
+     */
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * @return the number of requests that were sent over an already established connection
+     */
+    public long getReusedConnectionCount() {
+        return mReusedConnectionCount.get();
+    }
+
+    /**
+     * @return the number of requests that needed a new connection (and handshake)
+     */
+    public long getNewConnectionCount() {
+        return mNewConnectionCount.get();
+    }
+
+    /**
+     * @return the number of connections currently held by the shared pool
+     */
+    public synchronized int getPooledConnectionCount() {
+        return mConnectionPool != null ? mConnectionPool.getConnectionCount() : 0;
+    }
+
+    public void resetStats() {
+        mRequestCount.set(0);
+        mReusedConnectionCount.set(0);
+        mNewConnectionCount.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "HttpClientRegistry{requests=" + getRequestCount()
+                + ", reused=" + getReusedConnectionCount()
+                + ", new=" + getNewConnectionCount()
+                + ", pooled=" + getPooledConnectionCount() + "}";
+    }
+
+    /**
+     * Counts whether each network request went over a fresh or a pooled connection.
+     */
+    private class ConnectionStatsInterceptor implements Interceptor {
+        @Override
+        public Response intercept(final Chain chain) throws IOException {
+            mRequestCount.incrementAndGet();
+            final Connection connection = chain.connection();
+            if (connection != null) {
+                boolean reused;
+                synchronized (mSeenConnections) {
+                    reused = !mSeenConnections.add(connection);
+                }
+                if (reused) {
+                    mReusedConnectionCount.incrementAndGet();
+                } else {
+                    mNewConnectionCount.incrementAndGet();
+                    if (UtilConstants.DEBUGMODE) {
+                        Log.d(TAG, "New connection to " + chain.request().url().getHost());
+                    }
+                }
+            }
+            return chain.proceed(chain.request());
+        }
+    }
+}
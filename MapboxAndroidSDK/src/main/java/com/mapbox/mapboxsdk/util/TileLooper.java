@@ -4,6 +4,7 @@ import android.graphics.Canvas;
 import android.graphics.Point;
 import android.graphics.Rect;
 import android.os.Handler;
+import android.os.Looper;
 import com.mapbox.mapboxsdk.tileprovider.MapTile;
 import com.mapbox.mapboxsdk.views.util.Projection;
 import java.util.ArrayList;
@@ -12,6 +13,10 @@ import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 
 /**
  * A class that will loop around all the map tiles in the given viewport.
+ * <p/>
+ * Runs on every frame, so it doesn't allocate anything once the viewport stops growing: the
+ * {@link MapTile}s of the previous loop are handed out again for the tiles still in view, and
+ * drawables are released by a single reusable task.
  */
 public abstract class TileLooper {
 
@@ -21,6 +26,32 @@ public abstract class TileLooper {
     protected List<CacheableBitmapDrawable> mBeingUsedDrawables =
             new ArrayList<CacheableBitmapDrawable>();
 
+    // The tiles of the current and previous loops, row by row over their tile ranges
+    private MapTile[] mTiles = new MapTile[0];
+    private MapTile[] mPreviousTiles = new MapTile[0];
+    private int mTilesLeft;
+    private int mTilesTop;
+    private int mTilesWidth;
+    private int mTilesHeight;
+    private int mTilesZoom = -1;
+    private String mTilesCacheKey;
+    private int mTilesLayerId;
+    private int mPreviousLeft;
+    private int mPreviousTop;
+    private int mPreviousWidth;
+    private int mPreviousHeight;
+
+    private Handler mHandler;
+    private final Runnable mReleaseTask = new Runnable() {
+        @Override
+        public void run() {
+            for (int i = 0; i < mBeingUsedDrawables.size(); i++) {
+                mBeingUsedDrawables.get(i).setBeingUsed(false);
+            }
+            mBeingUsedDrawables.clear();
+        }
+    };
+
     public final int loop(final Canvas pCanvas, final String pCacheKey, final float pZoomLevel,
             final int pTileSizePx, final Rect pViewPort, final Rect pClipRect) {
         // Calculate the amount of tiles needed for each side around the center one.
@@ -35,6 +66,7 @@ public abstract class TileLooper {
         final int roundedZoom = (int) Math.floor(pZoomLevel);
         final int mapTileUpperBound = 1 << roundedZoom;
         initializeLoop(pZoomLevel, pTileSizePx);
+        startTiles(pCacheKey, roundedZoom);
 
         int tileX, tileY;
 
@@ -42,7 +74,7 @@ public abstract class TileLooper {
             for (int x = mUpperLeft.x; x <= mLowerRight.x; x++) {
                 tileY = GeometryMath.mod(y, mapTileUpperBound);
                 tileX = GeometryMath.mod(x, mapTileUpperBound);
-                final MapTile tile = new MapTile(pCacheKey, roundedZoom, tileX, tileY);
+                final MapTile tile = obtainTile(pCacheKey, roundedZoom, tileX, tileY, x, y);
                 handleTile(pCanvas, pCacheKey, pTileSizePx, tile, x, y, pClipRect);
             }
         }
@@ -52,21 +84,71 @@ public abstract class TileLooper {
         return  (mLowerRight.y - mUpperLeft.y) * (mLowerRight.x - mUpperLeft.x);
     }
 
+    /**
+     * Keep the tiles of the previous loop around to hand them out again, and make room for
+     * those of this one.
+     */
+    private void startTiles(final String pCacheKey, final int pZoom) {
+        final MapTile[] previous = mTiles;
+        mTiles = mPreviousTiles;
+        mPreviousTiles = previous;
+        if (pZoom != mTilesZoom || (pCacheKey == null ? mTilesCacheKey != null
+                : !pCacheKey.equals(mTilesCacheKey))) {
+            // None of them can be reused
+            mTilesWidth = 0;
+            mTilesHeight = 0;
+            mTilesLayerId = MapTile.getLayerId(pCacheKey);
+        }
+
+        // The range of the previous loop, to find tiles in the array just swapped out
+        mPreviousLeft = mTilesLeft;
+        mPreviousTop = mTilesTop;
+        mPreviousWidth = mTilesWidth;
+        mPreviousHeight = mTilesHeight;
+
+        mTilesLeft = mUpperLeft.x;
+        mTilesTop = mUpperLeft.y;
+        mTilesWidth = mLowerRight.x - mUpperLeft.x + 1;
+        mTilesHeight = mLowerRight.y - mUpperLeft.y + 1;
+        mTilesZoom = pZoom;
+        mTilesCacheKey = pCacheKey;
+        final int count = mTilesWidth * mTilesHeight;
+        if (mTiles.length < count) {
+            mTiles = new MapTile[count];
+        }
+    }
+
+    private MapTile obtainTile(final String pCacheKey, final int pZoom, final int pTileX,
+                               final int pTileY, final int pX, final int pY) {
+        final int previousColumn = pX - mPreviousLeft;
+        final int previousRow = pY - mPreviousTop;
+        MapTile tile = null;
+        if (previousColumn >= 0 && previousColumn < mPreviousWidth
+                && previousRow >= 0 && previousRow < mPreviousHeight) {
+            // Same zoom level and layer, same position: the same tile
+            tile = mPreviousTiles[previousRow * mPreviousWidth + previousColumn];
+        }
+        if (tile == null) {
+            tile = new MapTile(pCacheKey, mTilesLayerId, pZoom, pTileX, pTileY);
+        }
+        mTiles[(pY - mTilesTop) * mTilesWidth + (pX - mTilesLeft)] = tile;
+        return tile;
+    }
+
     public abstract void initializeLoop(float pZoomLevel, int pTileSizePx);
 
     public abstract void handleTile(Canvas pCanvas, final String pCacheKey, int pTileSizePx,
             MapTile pTile, int pX, int pY, final Rect pClipRect);
 
     public void finalizeLoop() {
+        if (mBeingUsedDrawables.isEmpty()) {
+            return;
+        }
+        if (mHandler == null) {
+            mHandler = new Handler(Looper.getMainLooper());
+        }
         //we delay just to make sure drawable bitmaps are not reused while being drawn.
-        (new Handler()).postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                for (CacheableBitmapDrawable drawable : mBeingUsedDrawables) {
-                    drawable.setBeingUsed(false);
-                }
-                mBeingUsedDrawables.clear();
-            }
-        }, 1);
+        mHandler.removeCallbacks(mReleaseTask);
+        mHandler.postDelayed(mReleaseTask, 1);
     }
 }
@@ -36,6 +36,7 @@ public class MapController implements MapViewConstants {
 
     private ILatLng zoomOnLatLong = null;
     private PointF zoomDeltaScroll = new PointF();
+    private final PointF mAnimationTargetCenter = new PointF();
     private ILatLng animateToTargetPoint = null;
     private boolean mCurrentlyUserAction = false;
     private ILatLng mPointToGoTo = null;
@@ -160,6 +161,16 @@ public class MapController implements MapViewConstants {
         this.mMapView.scrollTo(p.x, p.y);
     }
 
+    /**
+     * Get the centre the running zoom animation will end on, in map pixels at the zoom level
+     * the animation started from.
+     *
+     * @return the centre, only meaningful while {@link MapView#isAnimating()}
+     */
+    public PointF getAnimationTargetCenter() {
+        return mAnimationTargetCenter;
+    }
+
     public void stopPanning() {
         mMapView.mIsFlinging = false;
         mMapView.getScroller().forceFinished(true);
@@ -244,6 +255,13 @@ public class MapController implements MapViewConstants {
         mMapView.setAnimatedZoom(targetZoom);
 
         float factor = (float) Math.pow(2, targetZoom - currentZoom);
+        if (zoomAndMove) {
+            mAnimationTargetCenter.set(p);
+        } else {
+            // Scaling around p moves the centre towards it
+            mAnimationTargetCenter.set(p.x + (dCurrentScroll.x - p.x) / factor,
+                    p.y + (dCurrentScroll.y - p.y) / factor);
+        }
         propertiesList.add(PropertyValuesHolder.ofFloat("scale", 1.0f, factor));
 
         if (zoomAndMove) {
@@ -46,6 +46,7 @@ import com.mapbox.mapboxsdk.overlay.TilesOverlay;
 import com.mapbox.mapboxsdk.overlay.UserLocationOverlay;
 import com.mapbox.mapboxsdk.tileprovider.MapTileLayerBase;
 import com.mapbox.mapboxsdk.tileprovider.MapTileLayerBasic;
+import com.mapbox.mapboxsdk.tileprovider.MemoryGovernor;
 import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
 import com.mapbox.mapboxsdk.tileprovider.tilesource.ITileLayer;
 import com.mapbox.mapboxsdk.tileprovider.tilesource.MapboxTileLayer;
@@ -323,6 +324,12 @@ public class MapView extends ViewGroup implements MapViewConstants, MapEventsRec
         this.setMinZoomLevel(mTileProvider.getMinimumZoomLevel());
         this.setMaxZoomLevel(mTileProvider.getMaximumZoomLevel());
         this.setZoom(mZoomLevel);
+        // Well ahead of the first frame, which leaves the tiles being preloaded to the preload
+        mTileProvider.getHotSet().preload();
+        if (getWindowToken() != null) {
+            // The new source has its own partition of the memory cache
+            mTileProvider.joinCachePartition();
+        }
         if (!isLayedOut()) {
             return;
         }
@@ -1585,7 +1592,12 @@ public class MapView extends ViewGroup implements MapViewConstants, MapEventsRec
 
     public void onDetach() {
         this.getOverlayManager().onDetach(this);
-        mTileProvider.detach();
+        if (mTileProvider != null) {
+            // A handful of coordinates, for the next launch to start from memory
+            mTileProvider.getHotSet().save();
+            mTileProvider.leaveCachePartition();
+            mTileProvider.detach();
+        }
     }
 
     @Override
@@ -2005,6 +2017,79 @@ public class MapView extends ViewGroup implements MapViewConstants, MapEventsRec
     public void setDiskCacheEnabled(final boolean enabled) {
         if (mTileProvider != null) {
             mTileProvider.setDiskCacheEnabled(enabled);
+            if (enabled) {
+                mTileProvider.getHotSet().preload();
+            }
+        }
+    }
+
+    /**
+     * Keep the disk cache in a few large files instead of one file per tile, see
+     * {@link com.mapbox.mapboxsdk.tileprovider.PackedTileStore}
+     */
+    public void setPackedDiskStoreEnabled(final boolean enabled) {
+        if (mTileProvider != null) {
+            mTileProvider.setPackedDiskStoreEnabled(enabled);
+        }
+    }
+
+    /**
+     * Keep recently used tiles in memory as they were received, several times smaller than
+     * bitmaps, so that they can be drawn again without reading the disk, see
+     * {@link com.mapbox.mapboxsdk.tileprovider.EncodedTileCache}
+     *
+     * @param bytes the memory used in bytes, 0 to disable
+     */
+    public void setEncodedCacheSize(final int bytes) {
+        if (mTileProvider != null) {
+            mTileProvider.setEncodedCacheSize(bytes);
+        }
+    }
+
+    /**
+     * Keep the tiles around the viewport and at the zoom levels above it in memory longer than
+     * tiles that were only seen in passing, see
+     * {@link com.mapbox.mapboxsdk.tileprovider.MapTileEvictionPolicy}
+     */
+    public void setViewportEvictionEnabled(final boolean enabled) {
+        if (mTileProvider != null) {
+            mTileProvider.setViewportEvictionEnabled(enabled);
+        }
+    }
+
+    /**
+     * Set how long the tiles in view when the map was last detached may be read back from the
+     * disk cache at startup, when the tile source is set (so call this before setting it), see
+     * {@link com.mapbox.mapboxsdk.tileprovider.MapTileHotSet}
+     *
+     * @param budgetMs the time budget in milliseconds, 0 to disable the preload
+     */
+    public void setHotSetPreloadBudget(final long budgetMs) {
+        if (mTileProvider != null) {
+            mTileProvider.getHotSet().setPreloadBudget(budgetMs);
+            mTileProvider.getHotSet().setEnabled(budgetMs > 0);
+        }
+    }
+
+    /**
+     * Set the share of the tile memory cache this map is guaranteed, relative to the other
+     * maps drawn at the same time, see
+     * {@link com.mapbox.mapboxsdk.tileprovider.MapTileCacheManager}
+     *
+     * @param weight the weight, 1 by default
+     */
+    public void setCachePartitionWeight(final float weight) {
+        if (mTileProvider != null) {
+            mTileProvider.setCachePartitionWeight(weight);
+        }
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        MemoryGovernor.getMemoryGovernor().register(getContext());
+        if (mTileProvider != null) {
+            mTileProvider.joinCachePartition();
         }
     }
 
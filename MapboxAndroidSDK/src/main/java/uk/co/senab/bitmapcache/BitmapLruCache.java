@@ -29,17 +29,21 @@ import android.util.Log;
 import com.jakewharton.disklrucache.DiskLruCache;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.Charset;
 import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -111,10 +115,61 @@ public class BitmapLruCache {
         }
     }
 
+    /**
+     * Decides which entries the Memory Cache evicts once it is full, in place of evicting the
+     * least recently used one. To set this, use {@link #setEvictionPolicy(EvictionPolicy)}.
+     * <p/>
+     * Methods are called with the Memory Cache locked, they should return quickly.
+     */
+    public interface EvictionPolicy {
+        /**
+         * Called when an entry is added to the Memory Cache or found in it.
+         *
+         * @param url - String representing the URL of the image
+         */
+        void onAccess(String url);
+
+        /**
+         * Called when an entry leaves the Memory Cache.
+         *
+         * @param url - String representing the URL of the image
+         */
+        void onRemoved(String url);
+
+        /**
+         * @param url - String representing the URL of the image
+         * @return how readily the entry can be evicted, entries with the highest scores are
+         *         evicted first
+         */
+        float getEvictionScore(String url);
+    }
+
+    /**
+     * An {@link EvictionPolicy} which is also told the size of the entries added, for policies
+     * sharing out the Memory Cache by bytes.
+     */
+    public interface SizedEvictionPolicy extends EvictionPolicy {
+        /**
+         * Called in place of {@link #onAccess(String)} when an entry is added to the Memory
+         * Cache, or replaced.
+         *
+         * @param url  - String representing the URL of the image
+         * @param size - the size of the entry in bytes
+         */
+        void onAdded(String url, int size);
+    }
+
     // The number of seconds after the last edit that the Disk Cache should be
     // flushed
     static final int DISK_CACHE_FLUSH_DELAY_SECS = 5;
 
+    // How long writes are left to gather in the write queue before being committed together
+    static final int DISK_WRITE_DELAY_MS = 50;
+
+    static final int DISK_WRITE_BATCH_SIZE = 16;
+
+    public static final int DEFAULT_DISK_WRITE_QUEUE_MAX_SIZE = 2 * 1024 * 1024;
+
     /**
      * @throws IllegalStateException if the calling thread is the main/UI thread.
      */
@@ -137,6 +192,8 @@ public class BitmapLruCache {
         return Md5.encode(url);
     }
 
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
     private File mTempDir;
 
     private Resources mResources;
@@ -146,6 +203,15 @@ public class BitmapLruCache {
      */
     private BitmapMemoryLruCache mMemoryCache;
 
+    private final AtomicLong mMemoryHitCount = new AtomicLong(0);
+
+    private final AtomicLong mMemoryMissCount = new AtomicLong(0);
+
+    /**
+     * Memory Cache entries kept resident regardless of the Memory Cache's own eviction
+     */
+    private BitmapPinnedLruCache mPinnedCache;
+
     private RecyclePolicy mRecyclePolicy;
 
     /**
@@ -163,6 +229,30 @@ public class BitmapLruCache {
     // Transient
     private ScheduledFuture<?> mDiskCacheFuture;
 
+    /**
+     * Disk Cache writes not committed yet, see {@link #setDiskWriteQueueMaxSize(int)}
+     */
+    private DiskCacheWriteQueue mDiskWriteQueue;
+
+    private volatile int mDiskWriteQueueMaxSize = DEFAULT_DISK_WRITE_QUEUE_MAX_SIZE;
+
+    private final Runnable mDiskWriteRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            final DiskCacheWriteQueue queue = mDiskWriteQueue;
+            List<DiskCacheWriteQueue.Write> batch;
+            while (!(batch = queue.nextBatch(DISK_WRITE_BATCH_SIZE)).isEmpty()) {
+                for (DiskCacheWriteQueue.Write write : batch) {
+                    writeToDiskCache(write.url, write.data, write);
+                    queue.written(write);
+                }
+            }
+            // A single flush of the journal for the whole queue
+            scheduleDiskCacheFlush();
+        }
+    };
+
     BitmapLruCache(Context context) {
         if (null != context) {
             // Make sure we have the application context
@@ -197,6 +287,10 @@ public class BitmapLruCache {
         if (null != mDiskCache) {
             checkNotOnMainThread();
 
+            if (null != mDiskWriteQueue && mDiskWriteQueue.contains(url)) {
+                return true;
+            }
+
             try {
                 return null != mDiskCache.get(transformUrlForDiskCacheKey(url));
             } catch (IOException e) {
@@ -268,6 +362,17 @@ public class BitmapLruCache {
         if (null != mDiskCache) {
             checkNotOnMainThread();
 
+            final byte[] pending = null != mDiskWriteQueue ? mDiskWriteQueue.get(url) : null;
+            if (null != pending) {
+                // Not on disk yet
+                result = decodeBitmapToDrawable(new ByteArrayInputStreamProvider(pending), url,
+                        decodeOpts);
+                if (null != result && null != mMemoryCache) {
+                    mMemoryCache.put(result);
+                }
+                return result;
+            }
+
             try {
                 final String key = transformUrlForDiskCacheKey(url);
                 // Try and decode bitmap
@@ -311,23 +416,188 @@ public class BitmapLruCache {
                 if (null != result && !result.isBitmapValid()) {
                     mMemoryCache.remove(url);
                     result = null;
+                } else if (null != result) {
+                    mMemoryCache.onAccess(url);
                 }
             }
         }
 
+        final BitmapPinnedLruCache pinnedCache = mPinnedCache;
+        if (null == result && null != pinnedCache) {
+            result = pinnedCache.get(url);
+            if (null != result && !result.isBitmapValid()) {
+                pinnedCache.remove(url);
+                result = null;
+            }
+        }
+
+        if (null != result) {
+            mMemoryHitCount.incrementAndGet();
+        } else {
+            mMemoryMissCount.incrementAndGet();
+        }
         return result;
     }
 
-
-    public Bitmap getBitmapFromRemoved(final int width, final int height) {
+    /**
+     * Sets the policy deciding which entries the Memory Cache evicts once it is full.
+     *
+     * @param policy - the policy, or {@code null} to evict the least recently used entries
+     */
+    public void setEvictionPolicy(EvictionPolicy policy) {
         if (null != mMemoryCache) {
             synchronized (mMemoryCache) {
-                return mMemoryCache.getBitmapFromRemoved(width, height);
+                mMemoryCache.setEvictionPolicy(policy);
+            }
+        }
+    }
+
+    /**
+     * @return the number of lookups in the Memory Cache that found their entry
+     */
+    public long getMemoryCacheHitCount() {
+        return mMemoryHitCount.get();
+    }
+
+    /**
+     * @return the number of lookups in the Memory Cache that did not find their entry
+     */
+    public long getMemoryCacheMissCount() {
+        return mMemoryMissCount.get();
+    }
+
+    /**
+     * @return the number of entries the Memory Cache evicted to make room for others
+     */
+    public long getMemoryCacheEvictionCount() {
+        return null != mMemoryCache ? mMemoryCache.getEvictionCount() : 0;
+    }
+
+    public void resetMemoryCacheStats() {
+        mMemoryHitCount.set(0);
+        mMemoryMissCount.set(0);
+        if (null != mMemoryCache) {
+            mMemoryCache.resetEvictionCount();
+        }
+    }
+
+    /**
+     * Sets the budget of the pinned part of the Memory Cache, see {@link
+     * #pinInMemoryCache(String)}.
+     *
+     * @param maxSize - the maximum size in bytes, 0 to disable pinning and release all pinned
+     *                entries
+     */
+    public synchronized void setPinnedCacheMaxSize(int maxSize) {
+        if (maxSize <= 0) {
+            if (null != mPinnedCache) {
+                mPinnedCache.evictAll();
+                mPinnedCache = null;
             }
+        } else if (null == mPinnedCache) {
+            mPinnedCache = new BitmapPinnedLruCache(maxSize);
+        } else {
+            mPinnedCache.resize(maxSize);
+        }
+    }
+
+    /**
+     * @return the budget of the pinned part of the Memory Cache in bytes, 0 if disabled.
+     */
+    public int getPinnedCacheMaxSize() {
+        final BitmapPinnedLruCache pinnedCache = mPinnedCache;
+        return null != pinnedCache ? pinnedCache.maxSize() : 0;
+    }
+
+    /**
+     * @return the size in bytes of the entries currently pinned.
+     */
+    public int getPinnedCacheSize() {
+        final BitmapPinnedLruCache pinnedCache = mPinnedCache;
+        return null != pinnedCache ? pinnedCache.size() : 0;
+    }
+
+    /**
+     * Keeps the Memory Cache entry for {@code url} resident, even once the Memory Cache evicts
+     * it, until pinned entries exceed their own budget. This method is safe to be called from
+     * the main thread.
+     *
+     * @param url - String representing the URL of the image
+     * @return {@code true} if the entry is in memory and now pinned.
+     */
+    public boolean pinInMemoryCache(final String url) {
+        final BitmapPinnedLruCache pinnedCache = mPinnedCache;
+        if (null == pinnedCache) {
+            return false;
+        }
+        final CacheableBitmapDrawable drawable = getFromMemoryCache(url);
+        if (null == drawable) {
+            return false;
+        }
+        pinnedCache.pin(drawable);
+        return true;
+    }
+
+
+    public Bitmap getBitmapFromRemoved(final int width, final int height) {
+        return getBitmapFromRemoved(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    public Bitmap getBitmapFromRemoved(final int width, final int height,
+            final Bitmap.Config config) {
+        if (null != mMemoryCache) {
+            // The reuse pool has its own locking, decoding threads don't wait for the cache
+            return mMemoryCache.getBitmapFromRemoved(width, height, config);
         }
         return null;
     }
 
+    /**
+     * Sets the budget of the bitmaps evicted from the Memory Cache and kept to be decoded into,
+     * by default an eighth of the Memory Cache's.
+     *
+     * @param maxSize - the maximum size in bytes, 0 to keep none
+     */
+    public void setReusePoolMaxSize(int maxSize) {
+        if (null != mMemoryCache) {
+            mMemoryCache.setReusePoolMaxSize(maxSize);
+        }
+    }
+
+    /**
+     * @return the budget of the bitmaps kept for reuse in bytes
+     */
+    public int getReusePoolMaxSize() {
+        return null != mMemoryCache ? mMemoryCache.getReusePoolMaxSize() : 0;
+    }
+
+    /**
+     * @return the size in bytes of the bitmaps kept for reuse
+     */
+    public int getReusePoolSize() {
+        return null != mMemoryCache ? mMemoryCache.getReusePoolSize() : 0;
+    }
+
+    /**
+     * @return the number of decodes that reused an evicted bitmap
+     */
+    public long getReuseHitCount() {
+        return null != mMemoryCache ? mMemoryCache.getReuseHitCount() : 0;
+    }
+
+    /**
+     * @return the number of decodes that found no bitmap to reuse and allocated a new one
+     */
+    public long getReuseMissCount() {
+        return null != mMemoryCache ? mMemoryCache.getReuseMissCount() : 0;
+    }
+
+    public void resetReuseStats() {
+        if (null != mMemoryCache) {
+            mMemoryCache.resetReuseStats();
+        }
+    }
+
     /**
      * @return true if the Disk Cache is enabled.
      */
@@ -420,6 +690,15 @@ public class BitmapLruCache {
         if (null != mDiskCache) {
             checkNotOnMainThread();
 
+            if (isDiskWriteQueueEnabled()) {
+                // Compressed here, once evicted the bitmap may be decoded into again
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                drawable.getBitmap().compress(compressFormat, compressQuality, bytes);
+                queueDiskCacheWrite(url, bytes.toByteArray());
+                return drawable;
+            }
+
+            cancelQueuedDiskWrite(url);
             final String key = transformUrlForDiskCacheKey(url);
             final ReentrantLock lock = getLockForDiskCacheEdit(key);
             lock.lock();
@@ -452,6 +731,99 @@ public class BitmapLruCache {
 
         return putInDiskCache(url, d, compressFormat, compressQuality);
     }
+
+    /**
+     * Caches the encoded image {@code data} for {@code url} into the disk cache, as it is. Unlike
+     * {@link #putInDiskCache(String, Bitmap)}, nothing is decoded or re-compressed: the disk cache
+     * keeps the original JPEG, PNG or WebP and {@link #getFromDiskCache(String,
+     * BitmapFactory.Options)} decodes those bytes. <p/> With the write queue enabled, see {@link
+     * #setDiskWriteQueueMaxSize(int)}, the data is only queued. <p/> You should not call this
+     * method from the main/UI thread.
+     *
+     * @param url  - String representing the URL of the image
+     * @param data - Raw data opened from {@code url}, not to be modified afterwards
+     * @return true if the data was written to the disk cache, or queued to be
+     */
+    public boolean putInDiskCache(final String url, final byte[] data) {
+        if (null == mDiskCache || null == data) {
+            return false;
+        }
+        checkNotOnMainThread();
+
+        if (isDiskWriteQueueEnabled()) {
+            return queueDiskCacheWrite(url, data);
+        }
+        cancelQueuedDiskWrite(url);
+        final boolean written = writeToDiskCache(url, data, null);
+        scheduleDiskCacheFlush();
+        return written;
+    }
+
+    /**
+     * Writes {@code data} to the Disk Cache, unless {@code pending} is given and no longer the
+     * latest write queued for {@code url}.
+     */
+    private boolean writeToDiskCache(final String url, final byte[] data,
+            final DiskCacheWriteQueue.Write pending) {
+        final String key = transformUrlForDiskCacheKey(url);
+        final ReentrantLock lock = getLockForDiskCacheEdit(key);
+        lock.lock();
+
+        OutputStream os = null;
+        boolean written = false;
+
+        try {
+            if (null != pending && !mDiskWriteQueue.isPending(pending)) {
+                // Replaced or removed while waiting
+                return false;
+            }
+            DiskLruCache.Editor editor = mDiskCache.edit(key);
+            if (null != editor) {
+                os = editor.newOutputStream(0);
+                os.write(data);
+                os.flush();
+                editor.commit();
+                written = true;
+            }
+        } catch (IOException e) {
+            Log.e(Constants.LOG_TAG, "Error while writing to disk cache. URL: " + url, e);
+        } finally {
+            IoUtils.closeStream(os);
+            lock.unlock();
+        }
+        return written;
+    }
+
+    private boolean queueDiskCacheWrite(final String url, final byte[] data) {
+        final DiskCacheWriteQueue queue = mDiskWriteQueue;
+        if (!queue.offer(url, data)) {
+            if (Constants.DEBUG) {
+                Log.d(Constants.LOG_TAG, "Disk write queue full, dropping " + url);
+            }
+            return false;
+        }
+        if (queue.startDraining()) {
+            mDiskCacheFlusherExecutor.schedule(mDiskWriteRunnable, DISK_WRITE_DELAY_MS,
+                    TimeUnit.MILLISECONDS);
+        }
+        return true;
+    }
+
+    private boolean isDiskWriteQueueEnabled() {
+        return null != mDiskWriteQueue && mDiskWriteQueueMaxSize > 0;
+    }
+
+    /**
+     * Drops the write still queued for {@code url}, if any, before a direct write: left queued, it
+     * would be read instead of the newer data and then overwrite it once drained.
+     */
+    private void cancelQueuedDiskWrite(final String url) {
+        final DiskCacheWriteQueue queue = mDiskWriteQueue;
+        if (null != queue) {
+            queue.remove(url);
+        }
+    }
+
     /**
      * Caches resulting bitmap from {@code inputStream} for {@code url} into all enabled caches.
      * This version of the method should be preferred as it allows the original image contents to be
@@ -480,8 +852,8 @@ public class BitmapLruCache {
      * <ul>
      * <li>If the memory cache is enabled, the decoded Bitmap will be cached to
      * memory.</li>
-     * <li>If the disk cache is enabled, a temporay version of the contents is
-     * copied to disk before decoding and then cached to disk.</li>
+     * <li>If the disk cache is enabled, the contents of the array are written
+     * to disk as they are, without going through a temporary file.</li>
      * </ul>
      * <p/>
      * You should not call this method from the main/UI thread.
@@ -494,22 +866,22 @@ public class BitmapLruCache {
      */
     public CacheableBitmapDrawable put(final String url, final byte[] data,
             final BitmapFactory.Options decodeOpts) {
+        if (data == null) return null;
         checkNotOnMainThread();
 
-        if (null == mDiskCache) {
-            // shortcut to avoid temporary storage on disk
-            CacheableBitmapDrawable d = decodeBitmapToDrawable(new ByteArrayInputStreamProvider(data), url,
-                    decodeOpts);
-            if (null != d) {
-                if (null != mMemoryCache) {
-                    d.setCached(true);
-                    mMemoryCache.put(d.getUrl(), d);
+        // The array can be read multiple times, no temporary storage on disk is needed
+        CacheableBitmapDrawable d = decodeBitmapToDrawable(new ByteArrayInputStreamProvider(data), url,
+                decodeOpts);
+        if (null != d) {
+            if (null != mMemoryCache) {
+                // The Memory Cache marks it as cached
+                synchronized (mMemoryCache) {
+                    mMemoryCache.put(d);
                 }
-                return d;
             }
+            putInDiskCache(url, data);
         }
-
-        return put(url, new ByteArrayInputStream(data), decodeOpts);
+        return d;
     }
 
     /**
@@ -561,15 +933,17 @@ public class BitmapLruCache {
 
             if (d != null) {
                 if (null != mMemoryCache) {
-                    d.setCached(true);
+                    // The Memory Cache marks it as cached
                     synchronized (mMemoryCache) {
-                        mMemoryCache.put(d.getUrl(), d);
+                        mMemoryCache.put(d);
                     }
                 }
 
                 if (null != mDiskCache) {
+                    cancelQueuedDiskWrite(url);
                     final String key = transformUrlForDiskCacheKey(url);
-                    final ReentrantLock lock = getLockForDiskCacheEdit(url);
+                    // Same lock as the queued writes, which are keyed by the disk cache key
+                    final ReentrantLock lock = getLockForDiskCacheEdit(key);
                     lock.lock();
 
                     try {
@@ -605,13 +979,7 @@ public class BitmapLruCache {
 
         if (null != mDiskCache) {
             checkNotOnMainThread();
-
-            try {
-                mDiskCache.remove(transformUrlForDiskCacheKey(url));
-                scheduleDiskCacheFlush();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            removeFromDiskCacheInternal(url);
         }
     }
 
@@ -630,14 +998,141 @@ public class BitmapLruCache {
      * Removes the entry for {@code url} from disk cache, if it exists. <p/> You should not call this method from main/UI thread.
      */
     public void removeFromDiskCache(String url) {
+        if (null != mDiskCache) {
+            checkNotOnMainThread();
+            removeFromDiskCacheInternal(url);
+        }
+    }
+
+    private void removeFromDiskCacheInternal(String url) {
+        if (null != mDiskWriteQueue) {
+            mDiskWriteQueue.remove(url);
+        }
+        final String key = transformUrlForDiskCacheKey(url);
+        // Not while a queued write is being committed, the entry would be left behind
+        final ReentrantLock lock = getLockForDiskCacheEdit(key);
+        lock.lock();
+        try {
+            mDiskCache.remove(key);
+            scheduleDiskCacheFlush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a string stored alongside the bitmaps with {@link #putStringInDiskCache(String,
+     * String)}. You should not call this method from main/UI thread.
+     *
+     * @param url - String representing the key of the value
+     * @return the value, or {@code null} if the disk cache is not enabled or has no such entry
+     */
+    public String getStringFromDiskCache(String url) {
         if (null != mDiskCache) {
             checkNotOnMainThread();
 
+            final byte[] pending = null != mDiskWriteQueue ? mDiskWriteQueue.get(url) : null;
+            if (null != pending) {
+                return new String(pending, UTF_8);
+            }
+
+            DiskLruCache.Snapshot snapshot = null;
             try {
-                mDiskCache.remove(transformUrlForDiskCacheKey(url));
-                scheduleDiskCacheFlush();
+                snapshot = mDiskCache.get(transformUrlForDiskCacheKey(url));
+                if (null != snapshot) {
+                    return snapshot.getString(0);
+                }
             } catch (IOException e) {
-                e.printStackTrace();
+                Log.e(Constants.LOG_TAG, "Error while reading from disk cache", e);
+            } finally {
+                if (null != snapshot) {
+                    snapshot.close();
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the contents stored in the disk cache for {@code url} as they are, without decoding
+     * them. You should not call this method from main/UI thread.
+     *
+     * @param url - String representing the URL of the image
+     * @return the contents, or {@code null} if the disk cache is not enabled or has no such entry
+     */
+    public byte[] getBytesFromDiskCache(String url) {
+        if (null != mDiskCache) {
+            checkNotOnMainThread();
+
+            final byte[] pending = null != mDiskWriteQueue ? mDiskWriteQueue.get(url) : null;
+            if (null != pending) {
+                return pending;
+            }
+
+            DiskLruCache.Snapshot snapshot = null;
+            InputStream is = null;
+            try {
+                snapshot = mDiskCache.get(transformUrlForDiskCacheKey(url));
+                if (null != snapshot) {
+                    final byte[] data = new byte[(int) snapshot.getLength(0)];
+                    is = snapshot.getInputStream(0);
+                    int read = 0;
+                    int count;
+                    while (read < data.length
+                            && (count = is.read(data, read, data.length - read)) != -1) {
+                        read += count;
+                    }
+                    return read == data.length ? data : null;
+                }
+            } catch (IOException e) {
+                Log.e(Constants.LOG_TAG, "Error while reading from disk cache", e);
+            } finally {
+                IoUtils.closeStream(is);
+                if (null != snapshot) {
+                    snapshot.close();
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Stores a small string, such as metadata about a cached bitmap, in the disk cache. You should
+     * not call this method from main/UI thread.
+     *
+     * @param url   - String representing the key of the value
+     * @param value - the value
+     */
+    public void putStringInDiskCache(String url, String value) {
+        if (null != mDiskCache) {
+            checkNotOnMainThread();
+
+            if (isDiskWriteQueueEnabled()) {
+                // Read back with the same encoding by getStringFromDiskCache()
+                queueDiskCacheWrite(url, value.getBytes(UTF_8));
+                return;
+            }
+
+            cancelQueuedDiskWrite(url);
+            final String key = transformUrlForDiskCacheKey(url);
+            final ReentrantLock lock = getLockForDiskCacheEdit(key);
+            lock.lock();
+
+            try {
+                DiskLruCache.Editor editor = mDiskCache.edit(key);
+                if (null != editor) {
+                    editor.set(0, value);
+                    editor.commit();
+                }
+            } catch (IOException e) {
+                Log.e(Constants.LOG_TAG, "Error while writing to disk cache", e);
+            } finally {
+                lock.unlock();
+                scheduleDiskCacheFlush();
             }
         }
     }
@@ -646,6 +1141,44 @@ public class BitmapLruCache {
         mMemoryCache.resizeMemoryForTiles(numberOfTiles);
     }
 
+    /**
+     * @return the size in bytes the Memory Cache needs for the tiles on screen, as last given to
+     * {@link #resizeMemoryForTiles(int)}, or 0 if unknown.
+     */
+    public int getMemorySizeForTiles() {
+        return null != mMemoryCache ? mMemoryCache.getMemorySizeForTiles() : 0;
+    }
+
+    /**
+     * Sets the budget of the Memory Cache, evicting entries if it is now over budget.
+     *
+     * @param maxSize - the maximum size in bytes
+     */
+    public void setMemoryCacheMaxSize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Invalid memory cache size: " + maxSize);
+        }
+        if (null != mMemoryCache) {
+            synchronized (mMemoryCache) {
+                mMemoryCache.resize(maxSize);
+            }
+        }
+    }
+
+    /**
+     * @return the budget of the Memory Cache in bytes, 0 if disabled.
+     */
+    public int getMemoryCacheMaxSize() {
+        return null != mMemoryCache ? mMemoryCache.maxSize() : 0;
+    }
+
+    /**
+     * @return the size in bytes of the entries in the Memory Cache.
+     */
+    public int getMemoryCacheSize() {
+        return null != mMemoryCache ? mMemoryCache.size() : 0;
+    }
+
     /**
      * This method iterates through the memory cache (if enabled) and removes any entries which are
      * not currently being displayed. A good place to call this would be from {@link
@@ -657,6 +1190,11 @@ public class BitmapLruCache {
                 mMemoryCache.trimMemory();
             }
         }
+        dropPendingDiskWrites();
+        final BitmapPinnedLruCache pinnedCache = mPinnedCache;
+        if (null != pinnedCache) {
+            pinnedCache.evictAll();
+        }
     }
 
     public void purgeMemoryCache() {
@@ -665,11 +1203,18 @@ public class BitmapLruCache {
                 mMemoryCache.evictAll();
             }
         }
+        final BitmapPinnedLruCache pinnedCache = mPinnedCache;
+        if (null != pinnedCache) {
+            pinnedCache.evictAll();
+        }
     }
 
     public void purgeDiskCache() {
         if (null != mDiskCache) {
             checkNotOnMainThread();
+            if (null != mDiskWriteQueue) {
+                mDiskWriteQueue.clear();
+            }
             try {
                 mDiskCache.delete();
             } catch (IOException ex) {
@@ -685,6 +1230,96 @@ public class BitmapLruCache {
             mDiskCacheEditLocks = new HashMap<String, ReentrantLock>();
             mDiskCacheFlusherExecutor = new ScheduledThreadPoolExecutor(1);
             mDiskCacheFlusherRunnable = new DiskCacheFlushRunnable(diskCache);
+            mDiskWriteQueue = new DiskCacheWriteQueue(mDiskWriteQueueMaxSize);
+        }
+    }
+
+    /**
+     * Sets the memory used by Disk Cache writes waiting to be committed. Entries put in the Disk
+     * Cache are queued and written in batches by a background thread, instead of making the
+     * thread putting them wait for the disk, and are read back from the queue until then.
+     * Writes that don't fit are dropped. Defaults to {@link #DEFAULT_DISK_WRITE_QUEUE_MAX_SIZE}.
+     *
+     * @param maxSize - the size in bytes, 0 to write entries as they are put
+     */
+    public synchronized void setDiskWriteQueueMaxSize(int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Invalid disk write queue size: " + maxSize);
+        }
+        mDiskWriteQueueMaxSize = maxSize;
+        if (null != mDiskWriteQueue && maxSize > 0) {
+            // Writes queued before the queue was disabled are still written
+            mDiskWriteQueue.setMaxSize(maxSize);
+        }
+    }
+
+    public int getDiskWriteQueueMaxSize() {
+        return mDiskWriteQueueMaxSize;
+    }
+
+    /**
+     * Drops the Disk Cache writes waiting to be committed, to free their memory. The entries are
+     * then only in the Memory Cache, if at all.
+     *
+     * @return the number of writes dropped
+     */
+    public int dropPendingDiskWrites() {
+        final DiskCacheWriteQueue queue = mDiskWriteQueue;
+        return null != queue ? queue.clear() : 0;
+    }
+
+    /**
+     * @return the memory used by Disk Cache writes waiting to be committed, in bytes
+     */
+    public int getDiskWriteQueueSize() {
+        final DiskCacheWriteQueue queue = mDiskWriteQueue;
+        return null != queue ? queue.size() : 0;
+    }
+
+    public int getPendingDiskWriteCount() {
+        final DiskCacheWriteQueue queue = mDiskWriteQueue;
+        return null != queue ? queue.getPendingCount() : 0;
+    }
+
+    /**
+     * @return the number of Disk Cache writes dropped, because the queue was full or to free
+     * memory
+     */
+    public long getDroppedDiskWriteCount() {
+        final DiskCacheWriteQueue queue = mDiskWriteQueue;
+        return null != queue ? queue.getDroppedCount() : 0;
+    }
+
+    public long getQueuedDiskWriteCount() {
+        final DiskCacheWriteQueue queue = mDiskWriteQueue;
+        return null != queue ? queue.getQueuedCount() : 0;
+    }
+
+    public long getCommittedDiskWriteCount() {
+        final DiskCacheWriteQueue queue = mDiskWriteQueue;
+        return null != queue ? queue.getWrittenCount() : 0;
+    }
+
+    /**
+     * @return the number of batches the queued writes were committed in
+     */
+    public long getDiskWriteBatchCount() {
+        final DiskCacheWriteQueue queue = mDiskWriteQueue;
+        return null != queue ? queue.getBatchCount() : 0;
+    }
+
+    /**
+     * @return the number of Disk Cache reads served by writes not committed yet
+     */
+    public long getPendingDiskWriteReadCount() {
+        final DiskCacheWriteQueue queue = mDiskWriteQueue;
+        return null != queue ? queue.getReadCount() : 0;
+    }
+
+    public void resetDiskWriteQueueStats() {
+        final DiskCacheWriteQueue queue = mDiskWriteQueue;
+        if (null != queue) {
+            queue.resetStats();
         }
     }
 
@@ -743,6 +1378,12 @@ public class BitmapLruCache {
         }
 
         try {
+            if (opts != null && opts.inPreferredConfig == Bitmap.Config.RGB_565
+                    && !isOpaqueImage(ip)) {
+                // RGB_565 can't hold the alpha channel of this one
+                opts.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            }
+
             if (mRecyclePolicy.canInBitmap()) {
                 // Create an options instance if we haven't been provided with one
                 if (opts == null) {
@@ -776,6 +1417,90 @@ public class BitmapLruCache {
         return bm;
     }
 
+    // Enough to get past the palette of a PNG, to its transparency chunk
+    private static final int IMAGE_HEADER_SIZE = 1024;
+
+    /**
+     * Tell from its header whether an encoded image is opaque: JPEG and lossy WebP images
+     * always are, PNG images are unless they have an alpha channel or a transparency chunk.
+     *
+     * @param ip the encoded image
+     * @return true if the image has no transparent pixels, false if it has or if unsure
+     */
+    static boolean isOpaqueImage(InputStreamProvider ip) {
+        final byte[] header;
+        if (ip instanceof ByteArrayInputStreamProvider) {
+            header = ((ByteArrayInputStreamProvider) ip).array;
+        } else {
+            header = new byte[IMAGE_HEADER_SIZE];
+            final InputStream is = ip.getInputStream();
+            if (is == null) {
+                return false;
+            }
+            try {
+                int read = 0;
+                int count;
+                while (read < header.length
+                        && (count = is.read(header, read, header.length - read)) != -1) {
+                    read += count;
+                }
+            } catch (IOException e) {
+                return false;
+            } finally {
+                IoUtils.closeStream(is);
+            }
+        }
+        return isOpaqueImage(header);
+    }
+
+    static boolean isOpaqueImage(byte[] data) {
+        if (data == null || data.length < 16) {
+            return false;
+        }
+        if ((data[0] & 0xff) == 0xff && (data[1] & 0xff) == 0xd8) {
+            // JPEG
+            return true;
+        }
+        if (data[0] == 'R' && data[1] == 'I' && data[2] == 'F' && data[3] == 'F'
+                && data[8] == 'W' && data[9] == 'E' && data[10] == 'B' && data[11] == 'P') {
+            // Lossy WebP, or extended WebP without the alpha flag
+            return data[12] == 'V' && data[13] == 'P' && data[14] == '8'
+                    && (data[15] == ' ' || (data[15] == 'X' && data.length > 20
+                    && (data[20] & 0x10) == 0));
+        }
+        if ((data[0] & 0xff) != 0x89 || data[1] != 'P' || data[2] != 'N' || data[3] != 'G'
+                || data.length < 33) {
+            return false;
+        }
+        // IHDR comes first, its color type says whether there is an alpha channel
+        final int colorType = data[25] & 0xff;
+        if (colorType == 4 || colorType == 6) {
+            return false;
+        }
+        // Look for a transparency chunk, found before the image data if any
+        int offset = 8;
+        while (offset + 8 <= data.length) {
+            final int length = ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                    | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+            final int type = offset + 4;
+            if (data[type] == 't' && data[type + 1] == 'R' && data[type + 2] == 'N'
+                    && data[type + 3] == 'S') {
+                return false;
+            }
+            if (data[type] == 'I' && data[type + 1] == 'D' && data[type + 2] == 'A'
+                    && data[type + 3] == 'T') {
+                return true;
+            }
+            if (length < 0 || length > data.length) {
+                return false;
+            }
+            // length, type, data and CRC
+            offset += 12 + length;
+        }
+        // The header was cut before the image data
+        return false;
+    }
+
     private boolean addInBitmapOptions(InputStreamProvider ip, BitmapFactory.Options opts) {
         // Create InputStream for decoding the bounds
         final InputStream is = ip.getInputStream();
@@ -794,16 +1519,16 @@ public class BitmapLruCache {
         // Make sure the decoded file is mutable
         opts.inMutable = true;
 
-        // Try and find Bitmap to use for inBitmap
-        synchronized (mMemoryCache) {
-            Bitmap reusableBm = mMemoryCache.getBitmapFromRemoved(opts.outWidth, opts.outHeight);
-            if (reusableBm != null) {
-                if (Constants.DEBUG) {
-                    Log.i(Constants.LOG_TAG, "Using inBitmap");
-                }
-                SDK11.addInBitmapOption(opts, reusableBm);
-                return true;
+        // Try and find Bitmap to use for inBitmap, without holding the Memory Cache's lock
+        Bitmap reusableBm = mMemoryCache.getBitmapFromRemoved(opts.outWidth, opts.outHeight,
+                opts.inPreferredConfig != null ? opts.inPreferredConfig
+                        : Bitmap.Config.ARGB_8888);
+        if (reusableBm != null) {
+            if (Constants.DEBUG) {
+                Log.i(Constants.LOG_TAG, "Using inBitmap");
             }
+            SDK11.addInBitmapOption(opts, reusableBm);
+            return true;
         }
 
 
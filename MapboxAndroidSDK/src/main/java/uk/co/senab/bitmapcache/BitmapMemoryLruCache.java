@@ -20,27 +20,27 @@ import android.graphics.Color;
 import android.support.v4.util.LruCache;
 import android.util.Log;
 
-import java.lang.ref.SoftReference;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 final class BitmapMemoryLruCache extends LruCache<String, CacheableBitmapDrawable> {
 
     public static final String TAG = "BitmapMemoryLruCache";
-    private final Set<SoftReference<CacheableBitmapDrawable>> mRemovedEntries;
+    private final BitmapReusePool mReusePool;
     private final BitmapLruCache.RecyclePolicy mRecyclePolicy;
     private int largestValueSeenBytes;
+    private volatile int mNumberOfTiles;
+    private BitmapLruCache.EvictionPolicy mEvictionPolicy;
+    private final AtomicLong mEvictionCount = new AtomicLong(0);
 
     BitmapMemoryLruCache(int maxSize, BitmapLruCache.RecyclePolicy policy) {
         super(maxSize);
 
         mRecyclePolicy = policy;
-        mRemovedEntries = policy.canInBitmap()
-                ? Collections.synchronizedSet(new HashSet<SoftReference<CacheableBitmapDrawable>>())
-                : null;
+        mReusePool = policy.canInBitmap() ? new BitmapReusePool(maxSize / 8) : null;
         largestValueSeenBytes = 0;
     }
 
@@ -48,27 +48,109 @@ final class BitmapMemoryLruCache extends LruCache<String, CacheableBitmapDrawabl
         if (null != value) {
             value.setCached(true);
             largestValueSeenBytes = Math.max(value.getMemorySize(), largestValueSeenBytes);
+            final BitmapLruCache.EvictionPolicy policy = mEvictionPolicy;
+            if (policy instanceof BitmapLruCache.SizedEvictionPolicy) {
+                ((BitmapLruCache.SizedEvictionPolicy) policy).onAdded(value.getUrl(),
+                        value.getMemorySize());
+            } else if (null != policy) {
+                policy.onAccess(value.getUrl());
+            }
             return put(value.getUrl(), value);
         }
 
         return null;
     }
 
+    void onAccess(String url) {
+        final BitmapLruCache.EvictionPolicy policy = mEvictionPolicy;
+        if (null != policy) {
+            policy.onAccess(url);
+        }
+    }
+
+    void setEvictionPolicy(BitmapLruCache.EvictionPolicy policy) {
+        mEvictionPolicy = policy;
+        if (null != policy) {
+            // Entries already cached start out as if just used, in their current order
+            for (Entry<String, CacheableBitmapDrawable> entry : snapshot().entrySet()) {
+                if (policy instanceof BitmapLruCache.SizedEvictionPolicy) {
+                    ((BitmapLruCache.SizedEvictionPolicy) policy).onAdded(entry.getKey(),
+                            entry.getValue().getMemorySize());
+                } else {
+                    policy.onAccess(entry.getKey());
+                }
+            }
+        }
+    }
+
+    long getEvictionCount() {
+        return mEvictionCount.get();
+    }
+
+    void resetEvictionCount() {
+        mEvictionCount.set(0);
+    }
+
+    /**
+     * Evicts the entries the {@link BitmapLruCache.EvictionPolicy} scores highest, or the least
+     * recently used ones if there is no policy. Every entry is scored once per call, so a put
+     * making room for a large bitmap doesn't score them again for each one evicted.
+     */
+    @Override
+    public void trimToSize(int maxSize) {
+        final BitmapLruCache.EvictionPolicy policy = mEvictionPolicy;
+        if (null == policy) {
+            super.trimToSize(maxSize);
+            return;
+        }
+        if (size() <= maxSize) {
+            return;
+        }
+
+        final Map<String, CacheableBitmapDrawable> entries = snapshot();
+        final String[] urls = entries.keySet().toArray(new String[entries.size()]);
+        final long[] order = new long[urls.length];
+        for (int i = 0; i < urls.length; i++) {
+            // Scores are non-negative floats, whose bits sort like the floats. Negated to sort
+            // the highest first, with the index in the low bits
+            final float value = policy.getEvictionScore(urls[i]);
+            final float score = value > 0 ? value : 0;
+            order[i] = ((long) -Float.floatToIntBits(score) << 32) | i;
+        }
+        Arrays.sort(order);
+
+        for (int i = 0; i < order.length && size() > maxSize; i++) {
+            final String url = urls[(int) order[i]];
+            if (null != remove(url)) {
+                mEvictionCount.incrementAndGet();
+            }
+        }
+    }
+
     BitmapLruCache.RecyclePolicy getRecyclePolicy() {
         return mRecyclePolicy;
     }
 
     public void resizeMemoryForTiles(int numberOfTiles) {
-        if (largestValueSeenBytes > 0 && numberOfTiles > 0) {
-            float factor = numberOfTiles * 1.05f; //increase by 5%
-            int newSize = (int) (factor * largestValueSeenBytes);
-            if (newSize > maxSize()) {
-                Log.d(TAG, "resizing for " + numberOfTiles + " tiles - to " + newSize / (1024 * 1024) + "MB");
-                resize(newSize);
-            }
+        if (numberOfTiles > 0) {
+            mNumberOfTiles = numberOfTiles;
+        }
+        int newSize = getMemorySizeForTiles();
+        if (newSize > maxSize()) {
+            Log.d(TAG, "resizing for " + numberOfTiles + " tiles - to " + newSize / (1024 * 1024) + "MB");
+            resize(newSize);
         }
     }
 
+    /**
+     * @return the size needed by the tiles on screen, as last given to {@link
+     * #resizeMemoryForTiles(int)}, or 0 if unknown
+     */
+    int getMemorySizeForTiles() {
+        float factor = mNumberOfTiles * 1.05f; //increase by 5%
+        return (int) (factor * largestValueSeenBytes);
+    }
+
     @Override
     protected int sizeOf(String key, CacheableBitmapDrawable value) {
         return value.getMemorySize();
@@ -80,42 +162,71 @@ final class BitmapMemoryLruCache extends LruCache<String, CacheableBitmapDrawabl
         // Notify the wrapper that it's no longer being cached
         oldValue.setCached(false);
 
-        if (mRemovedEntries != null && canUseForInBitmap(oldValue)) {
-            synchronized (mRemovedEntries) {
-                mRemovedEntries.add(new SoftReference<CacheableBitmapDrawable>(oldValue));
-            }
+        if (evicted) {
+            mEvictionCount.incrementAndGet();
+        }
+        final BitmapLruCache.EvictionPolicy policy = mEvictionPolicy;
+        if (null != policy && null == newValue) {
+            policy.onRemoved(key);
+        }
+
+        if (mReusePool != null && canUseForInBitmap(oldValue)) {
+            mReusePool.put(oldValue);
         }
     }
 
     public Bitmap getBitmapFromRemoved(final int width, final int height) {
-        if (mRemovedEntries == null) {
+        return getBitmapFromRemoved(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Find a bitmap to decode into. Its config must match: decoding into a bitmap of another
+     * config fails before KitKat, and would change the memory used by the tile after it. Safe to
+     * call without holding the cache's lock.
+     */
+    public Bitmap getBitmapFromRemoved(final int width, final int height,
+            final Bitmap.Config config) {
+        if (mReusePool == null) {
             return null;
         }
 
-        Bitmap result = null;
+        final Bitmap result = mReusePool.get(width, height, config);
+        if (result != null && config != Bitmap.Config.RGB_565) {
+            SDK12.setHasAlpha(result, true);
+            result.eraseColor(Color.TRANSPARENT);
+        }
+        return result;
+    }
 
-        synchronized (mRemovedEntries) {
-            final Iterator<SoftReference<CacheableBitmapDrawable>> it = mRemovedEntries.iterator();
+    /**
+     * Sets the budget of the bitmaps kept for reuse, by default an eighth of the cache's.
+     */
+    void setReusePoolMaxSize(int maxSize) {
+        if (mReusePool != null) {
+            mReusePool.setMaxSize(maxSize);
+        }
+    }
 
-            while (it.hasNext()) {
-                CacheableBitmapDrawable value = it.next().get();
+    int getReusePoolMaxSize() {
+        return mReusePool != null ? mReusePool.getMaxSize() : 0;
+    }
 
-                if (canUseForInBitmap(value)) {
-                    if (canUseForInBitmapForSize(value, width, height) && !value.isBeingDisplayed() && !value.isReferencedByCache()) {
-                        result = value.getBitmap();
-                        SDK12.setHasAlpha(result, true);
-                        result.eraseColor(Color.TRANSPARENT);
-                        value.setReused();
-                        it.remove();
-                        break;
-                    }
-                } else {
-                    it.remove();
-                }
-            }
-        }
+    int getReusePoolSize() {
+        return mReusePool != null ? mReusePool.size() : 0;
+    }
 
-        return result;
+    long getReuseHitCount() {
+        return mReusePool != null ? mReusePool.getHitCount() : 0;
+    }
+
+    long getReuseMissCount() {
+        return mReusePool != null ? mReusePool.getMissCount() : 0;
+    }
+
+    void resetReuseStats() {
+        if (mReusePool != null) {
+            mReusePool.resetStats();
+        }
     }
 
     private static boolean canUseForInBitmap(
@@ -125,13 +236,6 @@ final class BitmapMemoryLruCache extends LruCache<String, CacheableBitmapDrawabl
                 candidate.isBitmapMutable();
     }
 
-    private static boolean canUseForInBitmapForSize(
-            CacheableBitmapDrawable candidate, int width, int height) {
-        return
-                candidate.getIntrinsicWidth() == width &&
-                candidate.getIntrinsicHeight() == height;
-    }
-
     void trimMemory() {
         final Set<Entry<String, CacheableBitmapDrawable>> values = snapshot().entrySet();
 
@@ -141,10 +245,8 @@ final class BitmapMemoryLruCache extends LruCache<String, CacheableBitmapDrawabl
                 remove(entry.getKey());
             }
         }
-        if (mRemovedEntries != null) {
-            synchronized (mRemovedEntries) {
-                mRemovedEntries.clear();
-            }
+        if (mReusePool != null) {
+            mReusePool.evictAll();
         }
     }
 }
@@ -0,0 +1,49 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Chris Banes.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.co.senab.bitmapcache;
+
+import android.support.v4.util.LruCache;
+
+/**
+ * Keeps selected entries of the memory cache resident within a budget of their own, whatever
+ * the memory cache evicts. Pinned entries count as cached, so their bitmaps are not reused.
+ */
+final class BitmapPinnedLruCache extends LruCache<String, CacheableBitmapDrawable> {
+
+    BitmapPinnedLruCache(int maxSize) {
+        super(maxSize);
+    }
+
+    CacheableBitmapDrawable pin(CacheableBitmapDrawable value) {
+        if (null != value && get(value.getUrl()) != value) {
+            value.setCached(true);
+            return put(value.getUrl(), value);
+        }
+
+        return null;
+    }
+
+    @Override
+    protected int sizeOf(String key, CacheableBitmapDrawable value) {
+        return value.getMemorySize();
+    }
+
+    @Override
+    protected void entryRemoved(boolean evicted, String key, CacheableBitmapDrawable oldValue,
+            CacheableBitmapDrawable newValue) {
+        oldValue.setCached(false);
+    }
+}
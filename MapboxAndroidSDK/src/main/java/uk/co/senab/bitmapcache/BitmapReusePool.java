@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Chris Banes.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.co.senab.bitmapcache;
+
+import android.graphics.Bitmap;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bitmaps evicted from the Memory Cache, kept to be decoded into with {@code inBitmap}. They are
+ * bucketed by width, height and config, the only bitmaps {@code inBitmap} accepts before KitKat,
+ * so that finding one takes a lookup rather than a scan of every evicted bitmap. Buckets are
+ * lock free queues: decoding threads taking bitmaps out don't block the Memory Cache or each
+ * other.
+ * <p/>
+ * An evicted bitmap may still be displayed, in which case it is put back at the end of its
+ * bucket until it no longer is. The bitmaps kept are limited to a maximum size in bytes. Over
+ * it, buckets are emptied one after the other, in no particular order, the oldest bitmaps of
+ * each bucket first: as tiles mostly share one size and config, that is mostly the oldest
+ * tiles, but bitmaps of other sizes may go before older ones.
+ */
+final class BitmapReusePool {
+
+    /**
+     * How many bitmaps still being displayed are skipped before giving up on a bucket.
+     */
+    private static final int MAX_SKIPPED = 4;
+
+    private final ConcurrentHashMap<Long, Queue<CacheableBitmapDrawable>> mBuckets =
+            new ConcurrentHashMap<Long, Queue<CacheableBitmapDrawable>>();
+
+    private final AtomicInteger mSize = new AtomicInteger(0);
+
+    private volatile int mMaxSize;
+
+    private final AtomicLong mHitCount = new AtomicLong(0);
+
+    private final AtomicLong mMissCount = new AtomicLong(0);
+
+    BitmapReusePool(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    private static Long key(int width, int height, Bitmap.Config config) {
+        final int ordinal = null != config ? config.ordinal() : 0xff;
+        return ((long) width << 32) | ((long) (height & 0xffffff) << 8) | ordinal;
+    }
+
+    /**
+     * Keeps a bitmap evicted from the Memory Cache for reuse, evicting others if the pool is
+     * full.
+     */
+    void put(CacheableBitmapDrawable value) {
+        final int size = value.getMemorySize();
+        if (size > mMaxSize) {
+            return;
+        }
+        final Bitmap bitmap = value.getBitmap();
+        final Long key = key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        Queue<CacheableBitmapDrawable> bucket = mBuckets.get(key);
+        if (null == bucket) {
+            bucket = new ConcurrentLinkedQueue<CacheableBitmapDrawable>();
+            final Queue<CacheableBitmapDrawable> existing = mBuckets.putIfAbsent(key, bucket);
+            if (null != existing) {
+                bucket = existing;
+            }
+        }
+        bucket.offer(value);
+        mSize.addAndGet(size);
+        trimToSize(mMaxSize);
+    }
+
+    /**
+     * Takes a bitmap out of the pool, if one of this size and config isn't used anymore.
+     *
+     * @return the bitmap, or {@code null} if there is none
+     */
+    Bitmap get(int width, int height, Bitmap.Config config) {
+        final Queue<CacheableBitmapDrawable> bucket = mBuckets.get(key(width, height, config));
+        if (null != bucket) {
+            int skipped = 0;
+            CacheableBitmapDrawable value;
+            while (skipped < MAX_SKIPPED && null != (value = bucket.poll())) {
+                if (!value.isBitmapValid() || !value.isBitmapMutable()) {
+                    mSize.addAndGet(-value.getMemorySize());
+                } else if (value.isBeingDisplayed() || value.isReferencedByCache()) {
+                    // Maybe by the time the others have been reused
+                    bucket.offer(value);
+                    skipped++;
+                } else {
+                    mSize.addAndGet(-value.getMemorySize());
+                    value.setReused();
+                    mHitCount.incrementAndGet();
+                    return value.getBitmap();
+                }
+            }
+        }
+        mMissCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Changes the maximum size of the pool, evicting bitmaps if it shrinks.
+     */
+    void setMaxSize(int maxSize) {
+        mMaxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    int getMaxSize() {
+        return mMaxSize;
+    }
+
+    int size() {
+        return mSize.get();
+    }
+
+    void evictAll() {
+        trimToSize(0);
+    }
+
+    private void trimToSize(int maxSize) {
+        final Iterator<Queue<CacheableBitmapDrawable>> buckets = mBuckets.values().iterator();
+        while (mSize.get() > maxSize && buckets.hasNext()) {
+            final Queue<CacheableBitmapDrawable> bucket = buckets.next();
+            // Oldest first within each bucket
+            while (mSize.get() > maxSize && evictOne(bucket)) {
+                continue;
+            }
+        }
+    }
+
+    private boolean evictOne(Queue<CacheableBitmapDrawable> bucket) {
+        final CacheableBitmapDrawable value = bucket.poll();
+        if (null == value) {
+            return false;
+        }
+        mSize.addAndGet(-value.getMemorySize());
+        return true;
+    }
+
+    long getHitCount() {
+        return mHitCount.get();
+    }
+
+    long getMissCount() {
+        return mMissCount.get();
+    }
+
+    void resetStats() {
+        mHitCount.set(0);
+        mMissCount.set(0);
+    }
+}
@@ -0,0 +1,218 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Chris Banes.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.co.senab.bitmapcache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Writes waiting to be committed to the Disk Cache, so that the threads putting entries don't
+ * wait for the disk. Entries are written in the order they were queued, a single writer taking
+ * them out in batches, and can be read back from here until they are on disk.
+ * <p/>
+ * The queue is limited to a maximum size in bytes: writes that don't fit are dropped rather
+ * than making the thread putting them wait, the entry is then only in memory.
+ */
+final class DiskCacheWriteQueue {
+
+    static final class Write {
+        final String url;
+        final byte[] data;
+
+        Write(String url, byte[] data) {
+            this.url = url;
+            this.data = data;
+        }
+    }
+
+    private final LinkedHashMap<String, Write> mPending = new LinkedHashMap<String, Write>();
+
+    private int mSize;
+
+    private int mMaxSize;
+
+    // Whether the writer has been asked to drain the queue
+    private boolean mDraining;
+
+    private long mQueuedCount;
+
+    private long mDroppedCount;
+
+    private long mWrittenCount;
+
+    private long mBatchCount;
+
+    private long mReadCount;
+
+    DiskCacheWriteQueue(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Queues {@code data} to be written for {@code url}, replacing any write still waiting for
+     * it.
+     *
+     * @return false if the write was dropped because the queue is full
+     */
+    synchronized boolean offer(String url, byte[] data) {
+        final Write previous = mPending.remove(url);
+        if (null != previous) {
+            mSize -= previous.data.length;
+        }
+        if (mSize + data.length > mMaxSize) {
+            mDroppedCount++;
+            return false;
+        }
+        mPending.put(url, new Write(url, data));
+        mSize += data.length;
+        mQueuedCount++;
+        return true;
+    }
+
+    /**
+     * @return true if the writer needs to be started, false if it is already draining the queue
+     */
+    synchronized boolean startDraining() {
+        if (mDraining) {
+            return false;
+        }
+        mDraining = true;
+        return true;
+    }
+
+    /**
+     * Returns the oldest writes, which stay readable until {@link #written(Write)} is called for
+     * them. Once there are none left, the writer has to be started again for further writes.
+     */
+    synchronized List<Write> nextBatch(int maxCount) {
+        final List<Write> batch = new ArrayList<Write>(Math.min(maxCount, mPending.size()));
+        final Iterator<Write> writes = mPending.values().iterator();
+        while (batch.size() < maxCount && writes.hasNext()) {
+            batch.add(writes.next());
+        }
+        if (batch.isEmpty()) {
+            mDraining = false;
+        } else {
+            mBatchCount++;
+        }
+        return batch;
+    }
+
+    /**
+     * @return whether {@code write} is still the latest for its URL, and not removed
+     */
+    synchronized boolean isPending(Write write) {
+        return mPending.get(write.url) == write;
+    }
+
+    synchronized void written(Write write) {
+        if (mPending.get(write.url) == write) {
+            mPending.remove(write.url);
+            mSize -= write.data.length;
+            mWrittenCount++;
+        }
+    }
+
+    /**
+     * @return the data waiting to be written for {@code url}, or {@code null}
+     */
+    synchronized byte[] get(String url) {
+        final Write write = mPending.get(url);
+        if (null == write) {
+            return null;
+        }
+        mReadCount++;
+        return write.data;
+    }
+
+    synchronized boolean contains(String url) {
+        return mPending.containsKey(url);
+    }
+
+    synchronized void remove(String url) {
+        final Write write = mPending.remove(url);
+        if (null != write) {
+            mSize -= write.data.length;
+        }
+    }
+
+    /**
+     * Drops every write waiting, the entries are then only in memory.
+     *
+     * @return the number of writes dropped
+     */
+    synchronized int clear() {
+        final int count = mPending.size();
+        mDroppedCount += count;
+        mPending.clear();
+        mSize = 0;
+        return count;
+    }
+
+    synchronized void setMaxSize(int maxSize) {
+        mMaxSize = maxSize;
+        if (mSize > maxSize) {
+            // The newest go first, the oldest are about to be written
+            final List<Write> writes = new ArrayList<Write>(mPending.values());
+            for (int i = writes.size() - 1; i >= 0 && mSize > maxSize; i--) {
+                remove(writes.get(i).url);
+                mDroppedCount++;
+            }
+        }
+    }
+
+    synchronized int getMaxSize() {
+        return mMaxSize;
+    }
+
+    synchronized int size() {
+        return mSize;
+    }
+
+    synchronized int getPendingCount() {
+        return mPending.size();
+    }
+
+    synchronized long getQueuedCount() {
+        return mQueuedCount;
+    }
+
+    synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    synchronized long getWrittenCount() {
+        return mWrittenCount;
+    }
+
+    synchronized long getBatchCount() {
+        return mBatchCount;
+    }
+
+    synchronized long getReadCount() {
+        return mReadCount;
+    }
+
+    synchronized void resetStats() {
+        mQueuedCount = 0;
+        mDroppedCount = 0;
+        mWrittenCount = 0;
+        mBatchCount = 0;
+        mReadCount = 0;
+    }
+}